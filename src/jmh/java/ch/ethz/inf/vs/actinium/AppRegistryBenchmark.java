@@ -0,0 +1,164 @@
+package ch.ethz.inf.vs.actinium;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.ethz.inf.vs.actinium.cfg.AppConfig;
+import ch.ethz.inf.vs.actinium.cfg.Config;
+import ch.ethz.inf.vs.actinium.plugnplay.AbstractApp;
+import ch.ethz.inf.vs.actinium.plugnplay.JavaScriptApp;
+
+/**
+ * Measures the AppRegistry with 10000 app instances of 100 installed apps:
+ * installing all instances into an empty registry (checking each name first,
+ * as AppManager does), looking up an instance by name, as AcServer does for
+ * every request, and finding the instances of an installed app. The
+ * instances are created once and never started.
+ * <p>
+ * installThroughManager installs new instances the way a client does with
+ * /install: AppManager.ensureValidName() and AppResource.installApp(), which
+ * also adds the config resource and the observer of every instance. Each
+ * invocation gets a new AppResource and new instances, which are not part of
+ * the measurement.
+ *
+ * @author Martin Lanter
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AppRegistryBenchmark {
+
+	public static final int APPS = 100; // installed apps
+
+	@Param({"10000"})
+	public int instances;
+
+	private AbstractApp[] apps;
+	private String[] names;
+	private AppRegistry registry;
+
+	@Setup
+	public void setup() {
+		apps = createApps(instances);
+		names = new String[instances];
+		registry = new AppRegistry();
+		for (int i=0;i<instances;i++) {
+			names[i] = apps[i].getName();
+			registry.add(apps[i]);
+		}
+	}
+
+	private static AbstractApp[] createApps(int instances) {
+		AbstractApp[] apps = new AbstractApp[instances];
+		for (int i=0;i<instances;i++) {
+			AppConfig appcfg = new AppConfig();
+			appcfg.setProperty(AppConfig.NAME, "instance"+i);
+			appcfg.setProperty(AppConfig.APP, "app"+(i % APPS));
+			apps[i] = new JavaScriptApp(appcfg);
+		}
+		return apps;
+	}
+
+	/**
+	 * The index of the next name a thread looks up.
+	 */
+	@State(Scope.Thread)
+	public static class Index {
+		private int next;
+
+		private int next(int length) {
+			int i = next;
+			next = i+1 < length ? i+1 : 0;
+			return i;
+		}
+	}
+
+	/**
+	 * A new AppResource of a server in a temporary directory and new
+	 * instances to install.
+	 */
+	@State(Scope.Thread)
+	public static class Server {
+
+		private File dir;
+		private AppManager manager;
+		private AppResource resource;
+		private AbstractApp[] apps;
+
+		@Setup
+		public void setup() throws Exception {
+			dir = BenchmarkServer.createTempDirectory();
+			Config config = BenchmarkServer.createConfig(dir);
+			config.setProperty(Config.START_ON_INSTALL, false);
+			manager = new AppManager(config);
+		}
+
+		@Setup(Level.Invocation)
+		public void createResource(AppRegistryBenchmark benchmark) {
+			resource = new AppResource(manager); // the manager's AppResource from now on
+			apps = createApps(benchmark.instances);
+		}
+
+		@TearDown
+		public void tearDown() {
+			BenchmarkServer.deleteDirectory(dir);
+		}
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public AppRegistry install() {
+		AppRegistry empty = new AppRegistry();
+		for (AbstractApp app:apps) {
+			if (!empty.contains(app.getName()))
+				empty.add(app);
+		}
+		return empty;
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public AppResource installThroughManager(Server server) {
+		for (AbstractApp app:server.apps) {
+			server.manager.ensureValidName(app.getConfig());
+			server.resource.installApp(app);
+		}
+		return server.resource;
+	}
+
+	@Benchmark
+	public AbstractApp lookup(Index index) {
+		return registry.get(names[index.next(names.length)]);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public AbstractApp lookupConcurrently(Index index) {
+		return registry.get(names[index.next(names.length)]);
+	}
+
+	@Benchmark
+	public AbstractApp[] instancesOfApp() {
+		return registry.getInstances("app0");
+	}
+}
@@ -0,0 +1,145 @@
+package ch.ethz.inf.vs.actinium;
+
+import java.io.File;
+import java.io.IOException;
+
+import ch.ethz.inf.vs.actinium.cfg.Config;
+import ch.ethz.inf.vs.californium.coap.CodeRegistry;
+import ch.ethz.inf.vs.californium.coap.Request;
+import ch.ethz.inf.vs.californium.coap.Response;
+
+/**
+ * BenchmarkServer is an AcServer in a temporary directory for the benchmarks.
+ * Apps are installed and instantiated with requests from LocalExchange, as a
+ * client would do with /install. The server binds the CoAP port, but the
+ * benchmarks never send anything over it.
+ *
+ * @author Martin Lanter
+ */
+public class BenchmarkServer {
+
+	public static final long TIMEOUT = 10000; // ms
+
+	private final File dir;
+	private final Config config;
+	private final AcServer server;
+
+	/**
+	 * Constructs a new AcServer in a new temporary directory.
+	 *
+	 * @throws IOException if the directory cannot be created or the port is
+	 *             blocked
+	 */
+	public BenchmarkServer() throws IOException {
+		this.dir = createTempDirectory();
+		this.config = createConfig(dir);
+		this.server = new AcServer(config);
+	}
+
+	/**
+	 * Creates a config, that stores everything in the specified directory.
+	 * Apps start as soon as they are instantiated.
+	 *
+	 * @param dir the directory
+	 * @return the config
+	 */
+	public static Config createConfig(File dir) {
+		Config config = new Config(new File(dir, "config.cfg").getPath());
+		config.setProperty(Config.APP_PATH, mkdir(dir, "installed"));
+		config.setProperty(Config.APP_CONFIG_PATH, mkdir(dir, "apps"));
+		config.setProperty(Config.SCRIPT_CACHE_PATH, mkdir(dir, "compiled"));
+		config.setProperty(Config.START_ON_INSTALL, true);
+		return config;
+	}
+
+	/**
+	 * Creates a new temporary directory.
+	 *
+	 * @return the directory
+	 * @throws IOException if the directory cannot be created
+	 */
+	public static File createTempDirectory() throws IOException {
+		File dir = File.createTempFile("actinium-bench", "");
+		if (!dir.delete() || !dir.mkdir())
+			throw new IOException("Unable to create directory "+dir);
+		return dir;
+	}
+
+	public AcServer getServer() {
+		return server;
+	}
+
+	public Config getConfig() {
+		return config;
+	}
+
+	/**
+	 * Installs the specified code as app, instantiates it with the same name
+	 * and waits until the specified path of the instance responds with 2.05.
+	 *
+	 * @param name the name of the app and its instance
+	 * @param code the JavaScript code
+	 * @param path the path of a resource of the instance to wait for
+	 * @throws IOException if the app cannot be installed or does not start
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public void installApp(String name, String code, String path) throws IOException, InterruptedException {
+		expect(request(LocalExchange.post("coap://localhost/install?"+name, code)), CodeRegistry.RESP_CREATED);
+		expect(request(LocalExchange.post("coap://localhost/install/"+name, "name = "+name)), CodeRegistry.RESP_CREATED);
+
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (System.currentTimeMillis() < deadline) {
+			Response response = request(LocalExchange.get("coap://localhost"+path));
+			if (response!=null && response.getCode()==CodeRegistry.RESP_CONTENT)
+				return;
+			Thread.sleep(10);
+		}
+		throw new IOException("App "+name+" did not respond to "+path);
+	}
+
+	/**
+	 * Handles the specified request and waits for its response.
+	 *
+	 * @param request the request from LocalExchange
+	 * @return the response or null, if the timeout has expired
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public Response request(Request request) throws InterruptedException {
+		server.handleRequest(request);
+		return LocalExchange.await(request, TIMEOUT);
+	}
+
+	/**
+	 * Deletes the temporary directory.
+	 */
+	public void delete() {
+		deleteDirectory(dir);
+	}
+
+	private static void expect(Response response, int code) throws IOException {
+		if (response==null)
+			throw new IOException("No response");
+		if (response.getCode()!=code)
+			throw new IOException("Unexpected response "+response.getCode()+": "+response.getPayloadString());
+	}
+
+	private static String mkdir(File parent, String name) {
+		File dir = new File(parent, name);
+		dir.mkdirs();
+		return dir.getPath()+File.separator;
+	}
+
+	/**
+	 * Deletes the specified directory with all its content.
+	 *
+	 * @param file the directory
+	 */
+	public static void deleteDirectory(File file) {
+		File[] children = file.listFiles();
+		if (children!=null) {
+			for (File child:children)
+				deleteDirectory(child);
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,73 @@
+package ch.ethz.inf.vs.actinium;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.ethz.inf.vs.californium.coap.Request;
+import ch.ethz.inf.vs.californium.coap.Response;
+import ch.ethz.inf.vs.californium.endpoint.Resource;
+
+/**
+ * Measures how AcServer dispatches a request to a subresource of an app:
+ * <ul>
+ * <li>lookup: the resource lookup by the URI path,</li>
+ * <li>handleRequest: handleRequest() with the stats, the lookup, the delivery
+ * to the app's queue and the JavaScript handler, until the response.</li>
+ * </ul>
+ *
+ * @author Martin Lanter
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+
+	public static final String APP = "bench";
+	public static final String PATH = "/apps/running/"+APP+"/res";
+	public static final String CODE =
+			"var res = new JavaScriptResource('res');\n" +
+			"res.onget = function(request) {\n" +
+			"	request.respond(69, 'Hello World');\n" +
+			"};\n" +
+			"app.root.add(res);\n";
+
+	private BenchmarkServer server;
+	private String uriPath;
+
+	@Setup
+	public void setup() throws Exception {
+		server = new BenchmarkServer();
+		server.installApp(APP, CODE, PATH);
+		uriPath = LocalExchange.get("coap://localhost"+PATH).getUriPath();
+	}
+
+	@TearDown
+	public void tearDown() {
+		server.delete();
+	}
+
+	@Benchmark
+	public Resource lookup() {
+		return server.getServer().getResource(uriPath);
+	}
+
+	@Benchmark
+	public Response handleRequest() throws InterruptedException {
+		Request request = LocalExchange.get("coap://localhost"+PATH);
+		return server.request(request);
+	}
+}
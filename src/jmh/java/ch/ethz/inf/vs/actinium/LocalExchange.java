@@ -0,0 +1,170 @@
+package ch.ethz.inf.vs.actinium;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import ch.ethz.inf.vs.californium.coap.GETRequest;
+import ch.ethz.inf.vs.californium.coap.Message.messageType;
+import ch.ethz.inf.vs.californium.coap.POSTRequest;
+import ch.ethz.inf.vs.californium.coap.Request;
+import ch.ethz.inf.vs.californium.coap.Response;
+
+/**
+ * LocalExchange creates requests that never leave the process. They can be
+ * passed to AcServer.handleRequest() or to a resource directly. Their response
+ * is kept instead of being sent, so that the benchmarks do not depend on
+ * sockets.
+ *
+ * @author Martin Lanter
+ */
+public class LocalExchange {
+
+	/**
+	 * Creates a new non-confirmable GET request for the specified URI.
+	 *
+	 * @param uri the URI
+	 * @return the request
+	 */
+	public static Request get(String uri) {
+		return init(new LocalGETRequest(), uri, "");
+	}
+
+	/**
+	 * Creates a new non-confirmable POST request for the specified URI with the
+	 * specified payload.
+	 *
+	 * @param uri the URI
+	 * @param payload the payload
+	 * @return the request
+	 */
+	public static Request post(String uri, String payload) {
+		return init(new LocalPOSTRequest(), uri, payload);
+	}
+
+	/**
+	 * Waits for the response of the specified request, that has been created
+	 * by this class.
+	 *
+	 * @param request the request
+	 * @param timeout the timeout in milliseconds
+	 * @return the response or null, if the timeout has expired
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public static Response await(Request request, long timeout) throws InterruptedException {
+		return ((Local) request).outcome().await(timeout);
+	}
+
+	private static Request init(Request request, String uri, String payload) {
+		request.setType(messageType.NON);
+		request.setURI(uri);
+		request.setPayload(payload);
+		return request;
+	}
+
+	/*
+	 * A request of this class.
+	 */
+	private interface Local {
+		public Outcome outcome();
+	}
+
+	/*
+	 * Keeps the first response of a request.
+	 */
+	private static class Outcome {
+
+		private final CountDownLatch latch = new CountDownLatch(1);
+		private volatile Response response;
+
+		private void respond(Response response) {
+			if (this.response==null) {
+				this.response = response;
+				latch.countDown();
+			}
+		}
+
+		private void respond(int code, String message, int contentType) {
+			Response response = new Response(code);
+			if (message!=null) {
+				if (contentType<0)
+					response.setPayload(message);
+				else
+					response.setPayload(message, contentType);
+			}
+			respond(response);
+		}
+
+		private Response await(long timeout) throws InterruptedException {
+			latch.await(timeout, TimeUnit.MILLISECONDS);
+			return response;
+		}
+	}
+
+	private static class LocalGETRequest extends GETRequest implements Local {
+
+		private final Outcome outcome = new Outcome();
+
+		public Outcome outcome() {
+			return outcome;
+		}
+
+		@Override
+		public void accept() {
+			// nothing to acknowledge
+		}
+
+		@Override
+		public void respond(int code) {
+			outcome.respond(code, null, -1);
+		}
+
+		@Override
+		public void respond(int code, String message) {
+			outcome.respond(code, message, -1);
+		}
+
+		@Override
+		public void respond(int code, String message, int contentType) {
+			outcome.respond(code, message, contentType);
+		}
+
+		@Override
+		public void respond(Response response) {
+			outcome.respond(response);
+		}
+	}
+
+	private static class LocalPOSTRequest extends POSTRequest implements Local {
+
+		private final Outcome outcome = new Outcome();
+
+		public Outcome outcome() {
+			return outcome;
+		}
+
+		@Override
+		public void accept() {
+			// nothing to acknowledge
+		}
+
+		@Override
+		public void respond(int code) {
+			outcome.respond(code, null, -1);
+		}
+
+		@Override
+		public void respond(int code, String message) {
+			outcome.respond(code, message, -1);
+		}
+
+		@Override
+		public void respond(int code, String message, int contentType) {
+			outcome.respond(code, message, contentType);
+		}
+
+		@Override
+		public void respond(Response response) {
+			outcome.respond(response);
+		}
+	}
+}
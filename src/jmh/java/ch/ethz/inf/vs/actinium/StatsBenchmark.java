@@ -0,0 +1,79 @@
+package ch.ethz.inf.vs.actinium;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.ethz.inf.vs.actinium.cfg.Config;
+import ch.ethz.inf.vs.californium.coap.Request;
+import ch.ethz.inf.vs.californium.endpoint.LocalResource;
+import ch.ethz.inf.vs.californium.endpoint.Resource;
+
+/**
+ * Measures StatsResource.record() for a request to a subresource of an app,
+ * which AcServer calls for every request, by a single thread and by four
+ * threads recording concurrently.
+ *
+ * @author Martin Lanter
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StatsBenchmark {
+
+	public static final String APP = "bench";
+
+	private File dir;
+	private StatsResource stats;
+	private Resource resource;
+	private Request request;
+
+	@Setup
+	public void setup() throws Exception {
+		dir = BenchmarkServer.createTempDirectory();
+		Config config = BenchmarkServer.createConfig(dir);
+		AppManager manager = new AppManager(config);
+		AppResource apps = new AppResource(manager);
+		stats = new StatsResource(config, manager);
+		stats.oninstallApp(APP);
+
+		// /apps/running/bench/res
+		LocalResource app = new LocalResource(APP);
+		apps.getResource(config.getProperty(Config.RUNNING_RESOURCE_ID)).add(app);
+		resource = new LocalResource("res");
+		app.add(resource);
+
+		request = LocalExchange.get("coap://localhost"+resource.getPath());
+	}
+
+	@TearDown
+	public void tearDown() {
+		BenchmarkServer.deleteDirectory(dir);
+	}
+
+	@Benchmark
+	public void record() {
+		stats.record(request, resource);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public void recordConcurrently() {
+		stats.record(request, resource);
+	}
+}
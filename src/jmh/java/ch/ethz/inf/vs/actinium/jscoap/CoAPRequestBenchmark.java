@@ -0,0 +1,43 @@
+package ch.ethz.inf.vs.actinium.jscoap;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.ethz.inf.vs.californium.coap.Request;
+
+/**
+ * Measures how a CoAPRequest of an app creates the Californium request, that
+ * it sends: opening the request, setting the headers and copying the options
+ * into a new request in createNewRequest().
+ *
+ * @author Martin Lanter
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CoAPRequestBenchmark {
+
+	public static final String URI = "coap://localhost:5683/apps/running/bench/res?query";
+
+	@Benchmark
+	public Request createNewRequest() {
+		CoAPRequest coapRequest = new CoAPRequest();
+		coapRequest.open(CoAPMethod.POST, URI, true);
+		coapRequest.setRequestHeader(CoAPConstants.Accept, "text/plain");
+		coapRequest.setRequestHeader(CoAPConstants.Content_Type, "text/plain");
+		coapRequest.setRequestHeader(CoAPConstants.ETag, "abcd");
+		return coapRequest.createNewRequest("Hello World");
+	}
+}
@@ -0,0 +1,76 @@
+package ch.ethz.inf.vs.actinium.jscoap;
+
+import java.util.concurrent.TimeUnit;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Scriptable;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.ethz.inf.vs.actinium.LocalExchange;
+import ch.ethz.inf.vs.actinium.plugnplay.BudgetContextFactory;
+import ch.ethz.inf.vs.actinium.plugnplay.SharedScope;
+import ch.ethz.inf.vs.californium.coap.GETRequest;
+import ch.ethz.inf.vs.californium.coap.Response;
+
+/**
+ * Measures the overhead of calling a JavaScript handler of a
+ * JavaScriptResource: entering a context, wrapping the request in a
+ * JavaScriptCoAPRequest and calling the function.
+ * <ul>
+ * <li>empty: the handler does nothing,</li>
+ * <li>respond: the handler responds with a short text.</li>
+ * </ul>
+ *
+ * @author Martin Lanter
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JavaScriptResourceBenchmark {
+
+	public static final String URI = "coap://localhost/apps/running/bench/res";
+
+	private JavaScriptResource empty;
+	private JavaScriptResource respond;
+
+	@Setup
+	public void setup() {
+		BudgetContextFactory.install();
+		Context cx = Context.enter();
+		try {
+			Scriptable scope = SharedScope.createAppScope(cx);
+			empty = new JavaScriptResource("empty");
+			empty.onget = cx.compileFunction(scope,
+					"function(request) { }", "empty", 1, null);
+			respond = new JavaScriptResource("respond");
+			respond.onget = cx.compileFunction(scope,
+					"function(request) { request.respond(69, 'Hello World'); }", "respond", 1, null);
+		} finally {
+			Context.exit();
+		}
+	}
+
+	@Benchmark
+	public void empty() {
+		empty.performGET((GETRequest) LocalExchange.get(URI));
+	}
+
+	@Benchmark
+	public Response respond() throws InterruptedException {
+		GETRequest request = (GETRequest) LocalExchange.get(URI);
+		respond.performGET(request);
+		return LocalExchange.await(request, 0);
+	}
+}
@@ -0,0 +1,169 @@
+package ch.ethz.inf.vs.actinium.plugnplay;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.concurrent.TimeUnit;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.ImporterTopLevel;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import xmlhttp.XMLHttpRequest;
+
+import ch.ethz.inf.vs.actinium.jscoap.JavaScriptCoAPRequest;
+
+/**
+ * Measures the creation of the scope of an app instance with the SharedScope
+ * and, as baseline, with a scope of its own as every app had before: its own
+ * standard objects, an ImporterTopLevel, the classes XMLHttpRequest and
+ * JavaScriptCoAPRequest and the imports of the default packages. Run with
+ * "-prof gc": gc.alloc.rate.norm is the memory allocated for a scope.
+ * <p>
+ * The retained benchmarks create as many scopes as apps and keep them, and
+ * report the heap they retain after a full GC per app and how many apps fit
+ * into 1 GB (as the counters bytesPerApp and appsPerGB).
+ *
+ * @author Martin Lanter
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScopeBenchmark {
+
+	// the imports, that were prepended to the code of every app
+	private static final String IMPORTS;
+	static {
+		StringBuilder buffer = new StringBuilder();
+		for (String pckg:new String[] { "java.lang", "java.util", "java.io", "java.net", "java.text",
+				"ch.ethz.inf.vs.californium.coap", "ch.ethz.inf.vs.actinium.jscoap",
+				"ch.ethz.inf.vs.actinium.jscoap.jserror" }) {
+			buffer.append("importPackage(Packages."+pckg+");");
+		}
+		IMPORTS = buffer.toString();
+	}
+
+	@Param({"1000"})
+	public int apps; // for the retained benchmarks
+
+	private Context cx;
+
+	@Setup
+	public void setup() {
+		BudgetContextFactory.install();
+		cx = Context.enter();
+		SharedScope.getInstance(cx); // not part of the measurement
+	}
+
+	@TearDown
+	public void tearDown() {
+		Context.exit();
+	}
+
+	@Benchmark
+	public Scriptable createAppScope() {
+		return SharedScope.createAppScope(cx);
+	}
+
+	@Benchmark
+	public Scriptable createIsolatedScope() throws Exception {
+		return isolatedScope(cx);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	@Warmup(iterations = 1)
+	@Measurement(iterations = 1)
+	public Object retainedAppScopes(Retained retained) throws Exception {
+		return retained.measure(cx, apps, true);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	@Warmup(iterations = 1)
+	@Measurement(iterations = 1)
+	public Object retainedIsolatedScopes(Retained retained) throws Exception {
+		return retained.measure(cx, apps, false);
+	}
+
+	/*
+	 * Creates the scope of an app as JavaScriptApp did before the SharedScope.
+	 */
+	private static Scriptable isolatedScope(Context cx) throws Exception {
+		ScriptableObject scope = cx.initStandardObjects();
+		Scriptable s = new ImporterTopLevel(cx);
+		scope.setPrototype(s);
+		String[] names = { "dump", "addSubResource"};
+		scope.defineFunctionProperties(names, JavaScriptStaticAccess.class, ScriptableObject.DONTENUM);
+		ScriptableObject.defineClass(scope, XMLHttpRequest.class);
+		ScriptableObject.defineClass(scope, JavaScriptCoAPRequest.class);
+		cx.evaluateString(scope, IMPORTS, "imports", 1, null);
+		return scope;
+	}
+
+	/**
+	 * The heap retained by the scopes of the last measurement.
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class Retained {
+
+		private static final MemoryMXBean MEMORY_BEAN = ManagementFactory.getMemoryMXBean();
+
+		public long bytesPerApp;
+		public long appsPerGB;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			bytesPerApp = 0;
+			appsPerGB = 0;
+		}
+
+		private Object measure(Context cx, int apps, boolean shared) throws Exception {
+			long before = usedHeap();
+			Scriptable[] scopes = new Scriptable[apps];
+			for (int i=0;i<apps;i++)
+				scopes[i] = shared ? SharedScope.createAppScope(cx) : isolatedScope(cx);
+			long after = usedHeap();
+			bytesPerApp = Math.max(0, after - before) / apps;
+			appsPerGB = bytesPerApp>0 ? (1L << 30) / bytesPerApp : 0;
+			return scopes;
+		}
+
+		/*
+		 * Collects until the used heap does not shrink anymore, since the
+		 * scopes of the warmup may need several collections to be freed.
+		 */
+		private static long usedHeap() {
+			long used = Long.MAX_VALUE;
+			for (int i=0;i<20;i++) {
+				System.gc();
+				System.runFinalization();
+				long current = MEMORY_BEAN.getHeapMemoryUsage().getUsed();
+				if (current>=used)
+					break;
+				used = current;
+			}
+			return used;
+		}
+	}
+}
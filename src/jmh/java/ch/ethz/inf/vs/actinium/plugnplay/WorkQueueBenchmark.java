@@ -0,0 +1,128 @@
+package ch.ethz.inf.vs.actinium.plugnplay;
+
+import java.util.LinkedList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the throughput from WorkQueue.deliver() to the execution of the
+ * task by the queue's thread. Every benchmark thread is a producer, that
+ * delivers a batch of tasks and waits until all of them have been executed.
+ * <p>
+ * monitorQueue is the baseline: the former WorkQueue, a LinkedList guarded by
+ * its monitor, where the consumer executes the tasks while holding the
+ * monitor.
+ *
+ * @author Martin Lanter
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+@Fork(1)
+public class WorkQueueBenchmark {
+
+	public static final int BATCH = 1000;
+
+	private WorkQueue workQueue;
+	private MonitorQueue monitorQueue;
+
+	@Setup
+	public void setup() {
+		workQueue = new WorkQueue("WorkQueueBenchmark");
+		workQueue.start();
+		monitorQueue = new MonitorQueue();
+		monitorQueue.start();
+	}
+
+	@TearDown
+	public void tearDown() {
+		workQueue.stop();
+		monitorQueue.interrupt();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public void workQueue() throws InterruptedException {
+		Batch batch = new Batch();
+		for (int i=0;i<BATCH;i++)
+			workQueue.deliver(batch);
+		batch.await();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public void monitorQueue() throws InterruptedException {
+		Batch batch = new Batch();
+		for (int i=0;i<BATCH;i++)
+			monitorQueue.deliver(batch);
+		batch.await();
+	}
+
+	/*
+	 * The task a producer delivers BATCH times.
+	 */
+	private static class Batch implements Runnable {
+
+		private final CountDownLatch latch = new CountDownLatch(BATCH);
+
+		public void run() {
+			latch.countDown();
+		}
+
+		private void await() throws InterruptedException {
+			latch.await();
+		}
+	}
+
+	/*
+	 * The WorkQueue before it became a lock-free queue.
+	 */
+	private static class MonitorQueue extends Thread {
+
+		private final LinkedList<Runnable> queue = new LinkedList<Runnable>();
+
+		private MonitorQueue() {
+			super("MonitorQueue");
+			setDaemon(true);
+		}
+
+		private void deliver(Runnable runnable) {
+			synchronized (queue) {
+				queue.addLast(runnable);
+				queue.notify();
+			}
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					synchronized (queue) {
+						while (queue.isEmpty())
+							queue.wait();
+						queue.removeFirst().run();
+					}
+				}
+			} catch (InterruptedException e) {
+				// stopped
+			}
+		}
+	}
+}
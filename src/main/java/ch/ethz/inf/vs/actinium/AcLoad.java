@@ -0,0 +1,331 @@
+package ch.ethz.inf.vs.actinium;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.Scanner;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import ch.ethz.inf.vs.californium.coap.CodeRegistry;
+import ch.ethz.inf.vs.californium.coap.GETRequest;
+import ch.ethz.inf.vs.californium.coap.Message.messageType;
+import ch.ethz.inf.vs.californium.coap.POSTRequest;
+import ch.ethz.inf.vs.californium.coap.PUTRequest;
+import ch.ethz.inf.vs.californium.coap.Request;
+import ch.ethz.inf.vs.californium.coap.Response;
+import ch.ethz.inf.vs.californium.coap.ResponseHandler;
+
+/**
+ * A console based load generator for an Actinium (Ac) app-server. It installs
+ * an app through /install, creates an instance of it, and then sends a mix of
+ * GET, POST and PUT requests to a resource of the instance at a fixed rate.
+ * <p>
+ * The load is open-loop: the requests are sent at their scheduled time,
+ * whether or not the previous ones have been responded. The latency of a
+ * request is measured from its scheduled time, so that the latency is not
+ * underestimated, when the generator itself falls behind (coordinated
+ * omission). The latency from the actual send time is reported as well.
+ * <p>
+ * Start the load generator with
+ * <pre>
+ * java -cp target/classes:lib/* ch.ethz.inf.vs.actinium.AcLoad -install appserver/installed/helloworld.js -rate 1000 -duration 10
+ * </pre>
+ *
+ * @author Martin Lanter
+ */
+public class AcLoad {
+
+	public static final int ERR_INIT_FAILED = 1;
+	public static final int ERR_INVALID_ARGUMENTS = 2;
+	public static final int ERR_FILE_IO = 3;
+
+	public static final long HIGHEST_LATENCY = 3600L * 1000000L; // us
+
+	private static final int GET = 0;
+	private static final int POST = 1;
+	private static final int PUT = 2;
+	private static final String[] METHODS = {"GET", "POST", "PUT"};
+
+	private String host = "localhost";
+	private int port = 5683;
+	private String install; // the file of the app to install or null
+	private String app; // the name of the installed app
+	private String instance; // the name of the instance
+	private String path = ""; // the path below the instance
+	private int[] mix = {100, 0, 0}; // weights of GET, POST, PUT
+	private int rate = 100; // requests per second
+	private int duration = 10; // seconds
+	private boolean confirmable = false;
+	private String payload = "";
+	private long timeout = 5000; // ms to wait for the last responses
+
+	private final LatencyHistogram corrected = new LatencyHistogram(HIGHEST_LATENCY);
+	private final LatencyHistogram uncorrected = new LatencyHistogram(HIGHEST_LATENCY);
+	private final AtomicLongArray codes = new AtomicLongArray(256);
+	private final AtomicLong sent = new AtomicLong();
+	private final AtomicLong errors = new AtomicLong();
+	private final AtomicInteger outstanding = new AtomicInteger();
+
+	/**
+	 * Installs the app, if specified, and creates the instance.
+	 *
+	 * @throws IOException if the app cannot be installed
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public void setup() throws IOException, InterruptedException {
+		if (install!=null) {
+			Scanner scanner = new Scanner(new File(install)).useDelimiter("\\Z");
+			String code = scanner.next();
+			scanner.close();
+			Response response = post("install?"+app, code);
+			System.out.println("Install "+app+": "+describe(response));
+		}
+		Response response = post("install/"+app, "name = "+instance);
+		System.out.println("Instantiate "+instance+": "+describe(response));
+	}
+
+	/**
+	 * Sends the requests at the configured rate for the configured duration
+	 * and waits for the outstanding responses.
+	 *
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public void run() throws InterruptedException {
+		String uri = uri("apps/running/"+instance+(path.length()>0 ? "/"+path : ""));
+		long interval = 1000000000L / rate; // ns
+		long count = (long) rate * duration;
+		Random random = new Random(0);
+		int total = mix[GET] + mix[POST] + mix[PUT];
+
+		System.out.println("Sending "+count+" requests to "+uri+" at "+rate+"/s ("+(confirmable?"CON":"NON")+")");
+		long start = System.nanoTime();
+		for (long i=0;i<count;i++) {
+			long scheduled = start + i * interval;
+			long delay;
+			while ((delay = scheduled - System.nanoTime()) > 0)
+				LockSupport.parkNanos(delay);
+
+			int r = random.nextInt(total);
+			int method = r<mix[GET] ? GET : r<mix[GET]+mix[POST] ? POST : PUT;
+			send(method, uri, scheduled);
+		}
+		long sendTime = System.nanoTime() - start;
+
+		// wait for the outstanding responses
+		long deadline = System.currentTimeMillis() + timeout;
+		while (outstanding.get()>0 && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		long elapsed = System.nanoTime() - start;
+
+		report(sendTime, elapsed);
+	}
+
+	private void send(int method, String uri, final long scheduled) {
+		Request request = method==GET ? new GETRequest() : method==POST ? new POSTRequest() : new PUTRequest();
+		request.setType(confirmable ? messageType.CON : messageType.NON);
+		request.setURI(uri);
+		if (method!=GET)
+			request.setPayload(payload);
+
+		final long sending = System.nanoTime();
+		final AtomicBoolean responded = new AtomicBoolean();
+		request.registerResponseHandler(new ResponseHandler() {
+			public void handleResponse(Response response) {
+				if (response.isEmptyACK() || !responded.compareAndSet(false, true))
+					return;
+				long now = System.nanoTime();
+				corrected.recordValue((now - scheduled) / 1000);
+				uncorrected.recordValue((now - sending) / 1000);
+				codes.incrementAndGet(response.getCode() & 0xFF);
+				outstanding.decrementAndGet();
+			}
+		});
+
+		outstanding.incrementAndGet();
+		sent.incrementAndGet();
+		try {
+			request.execute();
+		} catch (IOException e) {
+			outstanding.decrementAndGet();
+			errors.incrementAndGet();
+		}
+	}
+
+	private void report(long sendTime, long elapsed) {
+		long responses = corrected.getTotalCount();
+		System.out.println();
+		System.out.println("Sent:        "+sent.get()+" requests in "+String.format("%.2f", sendTime / 1e9)+" s ("+String.format("%.1f", sent.get() * 1e9 / sendTime)+"/s)");
+		System.out.println("Received:    "+responses+" responses in "+String.format("%.2f", elapsed / 1e9)+" s ("+String.format("%.1f", responses * 1e9 / elapsed)+"/s)");
+		System.out.println("Lost:        "+outstanding.get());
+		System.out.println("Send errors: "+errors.get());
+		for (int code=0;code<codes.length();code++) {
+			long n = codes.get(code);
+			if (n>0)
+				System.out.println("  "+CodeRegistry.toString(code)+": "+n);
+		}
+		System.out.println("Latency in ms from the scheduled send time (corrected for coordinated omission):");
+		printPercentiles(corrected);
+		System.out.println("Latency in ms from the actual send time:");
+		printPercentiles(uncorrected);
+	}
+
+	private static void printPercentiles(LatencyHistogram histogram) {
+		System.out.println(String.format("  mean=%.3f p50=%.3f p90=%.3f p99=%.3f p99.9=%.3f max=%.3f",
+				histogram.getMean() / 1000.0,
+				histogram.getValueAtPercentile(50) / 1000.0,
+				histogram.getValueAtPercentile(90) / 1000.0,
+				histogram.getValueAtPercentile(99) / 1000.0,
+				histogram.getValueAtPercentile(99.9) / 1000.0,
+				histogram.getMax() / 1000.0));
+	}
+
+	/*
+	 * Sends a confirmable POST and waits for the response.
+	 */
+	private Response post(String relative, String payload) throws IOException, InterruptedException {
+		POSTRequest request = new POSTRequest();
+		request.setType(messageType.CON);
+		request.setURI(uri(relative));
+		request.setPayload(payload);
+
+		final CountDownLatch latch = new CountDownLatch(1);
+		final Response[] result = new Response[1];
+		request.registerResponseHandler(new ResponseHandler() {
+			public void handleResponse(Response response) {
+				if (!response.isEmptyACK()) {
+					result[0] = response;
+					latch.countDown();
+				}
+			}
+		});
+		request.execute();
+		latch.await(timeout, TimeUnit.MILLISECONDS);
+		return result[0];
+	}
+
+	private String uri(String relative) {
+		return "coap://"+host+":"+port+"/"+relative;
+	}
+
+	private static String describe(Response response) {
+		if (response==null)
+			return "no response";
+		return CodeRegistry.toString(response.getCode())+" "+response.getPayloadString();
+	}
+
+	public static void main(String[] args) {
+		AcLoad load = new AcLoad();
+		try {
+			for (int i=0;i<args.length;i++) {
+				String arg = args[i];
+				if (i+1>=args.length) {
+					throw new IllegalArgumentException("Missing value for "+arg);
+				} else if (arg.equals("-host")) {
+					load.host = args[++i];
+				} else if (arg.equals("-port")) {
+					load.port = Integer.parseInt(args[++i]);
+				} else if (arg.equals("-install")) {
+					load.install = args[++i];
+				} else if (arg.equals("-app")) {
+					load.app = args[++i];
+				} else if (arg.equals("-name")) {
+					load.instance = args[++i];
+				} else if (arg.equals("-path")) {
+					load.path = args[++i];
+				} else if (arg.equals("-mix")) {
+					load.mix = parseMix(args[++i]);
+				} else if (arg.equals("-rate")) {
+					load.rate = Integer.parseInt(args[++i]);
+				} else if (arg.equals("-duration")) {
+					load.duration = Integer.parseInt(args[++i]);
+				} else if (arg.equals("-type")) {
+					load.confirmable = "CON".equalsIgnoreCase(args[++i]);
+				} else if (arg.equals("-payload")) {
+					load.payload = args[++i];
+				} else if (arg.equals("-timeout")) {
+					load.timeout = Long.parseLong(args[++i]);
+				} else {
+					throw new IllegalArgumentException("Unknown option "+arg);
+				}
+			}
+			if (load.app==null && load.install!=null) {
+				String name = new File(load.install).getName();
+				load.app = name.endsWith(".js") ? name.substring(0, name.length()-3) : name;
+			}
+			if (load.app==null)
+				throw new IllegalArgumentException("No app specified (use -install or -app)");
+			if (load.instance==null)
+				load.instance = load.app+"-load";
+			if (load.rate<=0 || load.duration<=0)
+				throw new IllegalArgumentException("Rate and duration must be positive");
+		} catch (IllegalArgumentException e) {
+			System.err.println("Error: "+e.getMessage());
+			printInfo();
+			System.exit(ERR_INVALID_ARGUMENTS);
+		}
+
+		try {
+			load.setup();
+		} catch (IOException e) {
+			System.err.println("Failed to set up the app: "+e.getMessage());
+			System.exit(ERR_FILE_IO);
+		} catch (InterruptedException e) {
+			System.exit(ERR_INIT_FAILED);
+		}
+
+		try {
+			load.run();
+		} catch (InterruptedException e) {
+			System.exit(ERR_INIT_FAILED);
+		}
+		System.exit(0);
+	}
+
+	/*
+	 * Parses a mix like "get=80,post=10,put=10".
+	 */
+	private static int[] parseMix(String str) {
+		int[] mix = new int[3];
+		for (String part:str.split(",")) {
+			String[] kv = part.split("=");
+			if (kv.length!=2)
+				throw new IllegalArgumentException("Invalid mix "+str);
+			int weight = Integer.parseInt(kv[1].trim());
+			String method = kv[0].trim().toUpperCase();
+			if (method.equals(METHODS[GET])) mix[GET] = weight;
+			else if (method.equals(METHODS[POST])) mix[POST] = weight;
+			else if (method.equals(METHODS[PUT])) mix[PUT] = weight;
+			else throw new IllegalArgumentException("Unknown method "+kv[0]+" in mix");
+		}
+		if (mix[GET] + mix[POST] + mix[PUT] <= 0)
+			throw new IllegalArgumentException("Invalid mix "+str);
+		return mix;
+	}
+
+	public static void printInfo() {
+		System.out.println(
+				"Actinium (Ac) Load Generator" +
+				"\n" +
+				"\nUsage: AcLoad [-install FILE | -app NAME] [options]" +
+				"\n  -install: Install the specified JavaScript file as app" +
+				"\n  -app:     Name of the app (Default: filename of -install)" +
+				"\nOptions:" +
+				"\n  -host:     Host of the app-server (Default: localhost)" +
+				"\n  -port:     Port of the app-server (Default: 5683)" +
+				"\n  -name:     Name of the instance (Default: app name + \"-load\")" +
+				"\n  -path:     Path of the resource below the instance (Default: the instance)" +
+				"\n  -mix:      Weights of the methods (Default: get=100,post=0,put=0)" +
+				"\n  -rate:     Requests per second (Default: 100)" +
+				"\n  -duration: Seconds to send requests (Default: 10)" +
+				"\n  -type:     CON or NON (Default: NON)" +
+				"\n  -payload:  Payload of POST and PUT requests (Default: empty)" +
+				"\n  -timeout:  Milliseconds to wait for the last responses (Default: 5000)"
+			);
+	}
+}
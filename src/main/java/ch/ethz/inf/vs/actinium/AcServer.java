@@ -3,6 +3,7 @@ package ch.ethz.inf.vs.actinium;
 import java.net.SocketException;
 import java.util.logging.Level;
 
+import ch.ethz.inf.vs.actinium.RouteTable.Route;
 import ch.ethz.inf.vs.actinium.cfg.Config;
 import ch.ethz.inf.vs.actinium.install.InstallResource;
 import ch.ethz.inf.vs.actinium.jscoap.JavaScriptResource;
@@ -26,6 +27,9 @@ import ch.ethz.inf.vs.californium.util.Log;
  * Therefore every app has its own thread for handling requests. If a requests
  * has an app or a subresource of an app as target the server passes the request
  * to this app, which's receiver thread then will handle the request.
+ * <p>
+ * The server resolves the path of a request to its resource, app and stats
+ * only once and keeps the route in a RouteTable.
  * 
  * @author Martin Lanter
  */
@@ -40,6 +44,9 @@ public class AcServer extends LocalEndpoint {
 	// resource that holds the stats for all app instances
 	private StatsResource stats;
 	
+	// the routes of the requested paths
+	private RouteTable routes;
+	
 	/**
 	 * Constructs a new Actinium app-server with the specified config.
 	 * @param config the app server's config.
@@ -53,6 +60,7 @@ public class AcServer extends LocalEndpoint {
 		this.config = config;
 		
 		this.manager = new AppManager(config);
+		this.routes = new RouteTable();
 		
 		AppResource appres = new AppResource(manager);
 		InstallResource insres = new InstallResource(manager);
@@ -76,11 +84,13 @@ public class AcServer extends LocalEndpoint {
 	 */
 	@Override
 	public void handleRequest(Request request) {
+		long received = System.nanoTime();
+		Route route = null;
 		try {
-			// record message
-			Resource resource = getResource( request.getUriPath() );
-			if (resource!=null)
-				stats.record(request, resource);
+			// resolve route and record message
+			route = getRoute(request.getUriPath());
+			if (route!=null)
+				stats.record(request, route.getStats());
 			
 		} catch (Exception e) {
 			e.printStackTrace();
@@ -88,60 +98,44 @@ public class AcServer extends LocalEndpoint {
 		
 		try {
 			// deliver message to receiver
-			deliverRequest(request);
+			deliverRequest(request, route, received);
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
 	}
 	
 	// from super.handleRequest with special treat for subresources of apps
-	private void deliverRequest(Request request) {
+	private void deliverRequest(Request request, Route route, long received) {
 		if (request != null) {
-
-			// lookup resource
-			LocalResource resource = getResource( request.getUriPath() );
+			long start = EventRecorder.begin();
 
 			// check if resource available
-			if (resource != null) {
+			if (route != null) {
 				
+				LocalResource resource = route.getResource();
 				request.setResource(resource);
 				
-				if (resource instanceof JavaScriptApp) {
-					
-					JavaScriptApp appRes = (JavaScriptApp) resource;
-					
-					String appname = appRes.getName();
-					if (appname!=null) { // request for a subresource of an app
-						// invoke request handler of the app the resource belongs to
-						/*
-						 * An app or its subresources must not block the receiver
-						 * thread. Therefore every app has its own thread for
-						 * handling requests.
-						 */
-						AbstractApp app = manager.getApp(appname);
-						app.deliverRequestToSubResource(request, resource);
-					}
+				if (route.isDelivered()) {
 					
-
-				} else if (resource instanceof JavaScriptResource) {
-					
-					String appname = getAppName(resource);
-					
-					if (appname!=null) { // request for a subresource of an app
+					AbstractApp app = route.getApp();
+					if (app!=null) { // request for an app or a subresource of an app
 						// invoke request handler of the app the resource belongs to
 						/*
 						 * An app or its subresources must not block the receiver
 						 * thread. Therefore every app has its own thread for
 						 * handling requests.
 						 */
-						AbstractApp app = manager.getApp(appname);
-						app.deliverRequestToSubResource(request, resource);
+						app.deliverRequestToSubResource(request, resource, received);
 					}
 					
 				} else {
 					// invoke request handler of the resource
 					request.dispatch(resource);
 				}
+				
+				if (start!=0)
+					EventRecorder.commit(EventRecorder.DISPATCH, start,
+							route.getApp()!=null ? route.getApp().getName() : null, resource.getPath(), request);
 
 			} else {
 				// resource does not exist
@@ -152,6 +146,47 @@ public class AcServer extends LocalEndpoint {
 		}
 	}
 	
+	/*
+	 * Returns the route of the specified path from the route table or
+	 * resolves it, if not known yet. Returns null, if there is no resource.
+	 */
+	private Route getRoute(String path) {
+		Route route = routes.get(path);
+		if (route==null) {
+			long generation = routes.getGeneration();
+			LocalResource resource = getResource(path);
+			if (resource==null)
+				return null;
+			route = createRoute(resource);
+			// an app that has not been registered yet is looked up again
+			if (!route.isDelivered() || route.getApp()!=null)
+				routes.put(path, route, generation);
+		}
+		return route;
+	}
+	
+	/*
+	 * Requests to an app or to a JavaScriptResource are delivered to the app
+	 * the resource belongs to. Requests to all other resources are dispatched
+	 * right away.
+	 */
+	private Route createRoute(LocalResource resource) {
+		AbstractApp app = null;
+		boolean deliver = false;
+		if (resource instanceof JavaScriptApp) {
+			deliver = true;
+			String appname = ((JavaScriptApp) resource).getName();
+			if (appname!=null)
+				app = manager.getApp(appname);
+		} else if (resource instanceof JavaScriptResource) {
+			deliver = true;
+			String appname = getAppName(resource);
+			if (appname!=null)
+				app = manager.getApp(appname);
+		}
+		return new Route(resource, app, deliver, stats.getResourceInfo(resource));
+	}
+	
 	/**
 	 * Returns the name of the app instance to which the specified resource
 	 * belongs to or null if it corresponds to no app instance.
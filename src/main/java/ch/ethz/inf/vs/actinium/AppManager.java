@@ -10,7 +10,10 @@ import ch.ethz.inf.vs.actinium.cfg.AppConfig;
 import ch.ethz.inf.vs.actinium.cfg.AppType;
 import ch.ethz.inf.vs.actinium.cfg.Config;
 import ch.ethz.inf.vs.actinium.plugnplay.AbstractApp;
+import ch.ethz.inf.vs.actinium.plugnplay.BudgetContextFactory;
+import ch.ethz.inf.vs.actinium.plugnplay.EventLoopGroup;
 import ch.ethz.inf.vs.actinium.plugnplay.JavaScriptApp;
+import ch.ethz.inf.vs.actinium.plugnplay.ScriptCache;
 
 /**
  * The AppManager is the connection between all resources that deal with apps
@@ -65,12 +68,25 @@ public class AppManager {
 	// StatsResource, which holds stats about all apps
 	private StatsResource statsresource; // possibly null in the beginning
 	
+	// the compiled code of all apps, shared by their instances
+	private ScriptCache scriptCache;
+	
+	// the event loops that execute the apps or null, if every app has a thread
+	private EventLoopGroup eventLoops;
+	
 	/**
 	 * Contructs an AppManager with the specified properties.
 	 * @param config the app server's config
 	 */
 	public AppManager(Config config) {
 		this.config = config;
+		BudgetContextFactory.install(); // before any JavaScript is executed
+		if (config.getBool(Config.SCRIPT_CACHE_PERSIST))
+			this.scriptCache = new ScriptCache(config.getProperty(Config.SCRIPT_CACHE_PATH));
+		else
+			this.scriptCache = new ScriptCache();
+		if (Config.EXECUTION_EVENT_LOOP.equals(config.getProperty(Config.EXECUTION_MODE)))
+			this.eventLoops = new EventLoopGroup("EventLoop", config.getInt(Config.EVENT_LOOP_THREADS));
 	}
 
 	/**
@@ -237,7 +253,7 @@ public class AppManager {
 
 	/**
 	 * Ensures that the specified AppConfig contains a valid name for a new app,
-	 * i.e. the name is defined and not in use yet.
+	 * i.e. the name is defined, not in use yet and not reserved for the stats.
 	 * 
 	 * @param appcfg the AppConfig to be validated.
 	 */
@@ -246,11 +262,11 @@ public class AppManager {
 		if (name==null || name.equals(AppConfig.UNNAMED))
 			throw new IllegalArgumentException("No name has been specified for the app: "+name);
 		
-		for (String nm:appresource.getAppsNames()) {
-			if (nm.equals(name)) {
-				throw new IllegalArgumentException("The name "+name+" is already in use for an app. Please specify a new name");
-			}
-		}
+		if (appresource.containsApp(name))
+			throw new IllegalArgumentException("The name "+name+" is already in use for an app. Please specify a new name");
+		
+		if (StatsResource.isReservedName(name))
+			throw new IllegalArgumentException("The name "+name+" is reserved for the stats. Please specify a new name");
 	}
 
 	/**
@@ -281,7 +297,9 @@ public class AppManager {
 			throw new NullPointerException("App config "+appcfg+" returned null as app type");
 		
 		if (type.equals(AppType.JAVASCRIPT)) {
-			return new JavaScriptApp(appcfg);
+			AbstractApp app = new JavaScriptApp(appcfg, scriptCache);
+			app.setEventLoopGroup(eventLoops);
+			return app;
 		} else {
 			throw new RuntimeException("App config "+appcfg+" retuned an unknown type: "+type);
 		}
@@ -0,0 +1,194 @@
+package ch.ethz.inf.vs.actinium;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ch.ethz.inf.vs.actinium.cfg.AppConfig;
+import ch.ethz.inf.vs.actinium.plugnplay.AbstractApp;
+
+/**
+ * AppRegistry holds the app instances of the AppResource. It indexes them by
+ * their name and by the name of the installed app they execute, so that an
+ * instance or all instances of an app are found with a single lookup, e.g.
+ * when a request is routed or when an app has been updated or deleted.
+ * <p>
+ * Lookups do not lock. Instances are added and removed by the threads that
+ * install apps and by the observers of the apps' configs, which synchronize
+ * on the registry. Iterations get an immutable snapshot of all instances,
+ * which is only created again after a change.
+ *
+ * @author Martin Lanter
+ */
+public class AppRegistry {
+
+	// maps the names of the instances to the instances
+	private final ConcurrentHashMap<String, AbstractApp> apps;
+
+	// maps the names of the installed apps to their instances
+	private final ConcurrentHashMap<String, Set<AbstractApp>> instances;
+
+	// maps the names of the instances to the name they are indexed with in instances
+	private final Map<String, String> installed;
+
+	// incremented on every change
+	private final AtomicInteger version;
+
+	// the latest snapshot or null
+	private volatile Snapshot snapshot;
+
+	/**
+	 * Constructs a new empty AppRegistry.
+	 */
+	public AppRegistry() {
+		this.apps = new ConcurrentHashMap<String, AbstractApp>();
+		this.instances = new ConcurrentHashMap<String, Set<AbstractApp>>();
+		this.installed = new HashMap<String, String>();
+		this.version = new AtomicInteger();
+	}
+
+	/**
+	 * Adds the specified app instance, unless its name is already in use.
+	 *
+	 * @param app the app instance
+	 * @return true, if the app has been added, false if the name is in use
+	 */
+	public synchronized boolean add(AbstractApp app) {
+		if (apps.putIfAbsent(app.getName(), app)!=null)
+			return false;
+		index(app);
+		version.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Removes the specified app instance.
+	 *
+	 * @param app the app instance
+	 * @return true, if the app has been removed
+	 */
+	public synchronized boolean remove(AbstractApp app) {
+		if (!apps.remove(app.getName(), app))
+			return false;
+		unindex(app);
+		version.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Indexes the specified app instance again, after the installed app it
+	 * executes has changed.
+	 *
+	 * @param app the app instance
+	 */
+	public synchronized void update(AbstractApp app) {
+		if (apps.get(app.getName())==app) {
+			unindex(app);
+			index(app);
+		}
+	}
+
+	/**
+	 * Returns the app instance with the specified name.
+	 *
+	 * @param name the name of the instance
+	 * @return the app instance or null
+	 */
+	public AbstractApp get(String name) {
+		if (name==null) return null;
+		return apps.get(name);
+	}
+
+	/**
+	 * Returns true, if an app instance has the specified name.
+	 *
+	 * @param name the name
+	 * @return true, if the name is in use
+	 */
+	public boolean contains(String name) {
+		return apps.containsKey(name);
+	}
+
+	/**
+	 * Returns the instances of the installed app with the specified name.
+	 *
+	 * @param appname the name of the installed app
+	 * @return a new array with the instances
+	 */
+	public AbstractApp[] getInstances(String appname) {
+		Set<AbstractApp> set = instances.get(appname);
+		if (set==null)
+			return new AbstractApp[0];
+		return set.toArray(new AbstractApp[set.size()]);
+	}
+
+	/**
+	 * Returns an immutable snapshot of all app instances.
+	 *
+	 * @return all app instances
+	 */
+	public List<AbstractApp> getApps() {
+		Snapshot s = snapshot;
+		if (s==null || s.version!=version.get()) {
+			// read the version first, so that a concurrent change makes the snapshot outdated
+			int v = version.get();
+			AbstractApp[] all = apps.values().toArray(new AbstractApp[0]);
+			s = new Snapshot(v, Collections.unmodifiableList(Arrays.asList(all)));
+			snapshot = s;
+		}
+		return s.apps;
+	}
+
+	/**
+	 * Returns the number of app instances.
+	 *
+	 * @return the number of app instances
+	 */
+	public int size() {
+		return apps.size();
+	}
+
+	private void index(AbstractApp app) {
+		String appname = app.getConfig().getProperty(AppConfig.APP);
+		if (appname==null)
+			return;
+		Set<AbstractApp> set = instances.get(appname);
+		if (set==null) {
+			set = Collections.newSetFromMap(new ConcurrentHashMap<AbstractApp, Boolean>());
+			instances.put(appname, set);
+		}
+		set.add(app);
+		installed.put(app.getName(), appname);
+	}
+
+	private void unindex(AbstractApp app) {
+		String appname = installed.remove(app.getName());
+		if (appname==null)
+			return;
+		Set<AbstractApp> set = instances.get(appname);
+		if (set!=null) {
+			set.remove(app);
+			if (set.isEmpty())
+				instances.remove(appname);
+		}
+	}
+
+	/*
+	 * The apps of a version of the registry.
+	 */
+	private static final class Snapshot {
+
+		private final int version;
+		private final List<AbstractApp> apps;
+
+		private Snapshot(int version, List<AbstractApp> apps) {
+			this.version = version;
+			this.apps = apps;
+		}
+	}
+}
@@ -2,7 +2,6 @@ package ch.ethz.inf.vs.actinium;
 
 import java.io.IOException;
 import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Observable;
 import java.util.Observer;
@@ -29,6 +28,9 @@ import ch.ethz.inf.vs.californium.endpoint.LocalResource;
  * RunningResource. If it is stopped, AppResource removes it from it. When an
  * app restarts, AppResource does nothing.
  * <p>
+ * The apps are held in an AppRegistry, since they are looked up for every
+ * request and changed by the observers of their configs on any thread.
+ * <p>
  * On a GET request, AppResource returns a list of all running apps. POST, PUT
  * and DELETE requests are not allowed.
  * 
@@ -38,8 +40,8 @@ public class AppResource extends LocalResource {
 
 	private AppManager manager;
 	
-	// the list of all apps
-	private List<AbstractApp> apps;
+	// all apps by name and by installed app
+	private AppRegistry apps;
 	
 	// the resource that holds the app's configs
 	private AppConfigsResource appConfigsRes;
@@ -62,7 +64,7 @@ public class AppResource extends LocalResource {
 		
 		this.manager = manager;
 		
-		this.apps = new LinkedList<AbstractApp>();
+		this.apps = new AppRegistry();
 		
 		this.appConfigsRes = new AppConfigsResource(manager.getConfig().getProperty(Config.APP_CONFIG_RESOURSES));
 		add(appConfigsRes);
@@ -81,7 +83,7 @@ public class AppResource extends LocalResource {
 	}
 	
 	public void startApps() {
-		for (AbstractApp app:apps) {
+		for (AbstractApp app:apps.getApps()) {
 			if (app.getConfig().getBool(AppConfig.START_ON_STARTUP)) {
 				app.start();
 			}
@@ -101,20 +103,25 @@ public class AppResource extends LocalResource {
 	 * @return a list of all available apps' names.
 	 */
 	public String[] getAppsNames() {
-		String[] names = new String[apps.size()];
+		List<AbstractApp> all = apps.getApps();
+		String[] names = new String[all.size()];
 		for (int i=0;i<names.length;i++) {
-			names[i] = apps.get(i).getName();
+			names[i] = all.get(i).getName();
 		}
 		return names;
 	}
 	
 	public AbstractApp getApp(String appname) {
-		if (appname==null) return null;
-		for (AbstractApp app:apps) {
-			if (appname.equals(app.getName()))
-				return app;
-		}
-		return null;
+		return apps.get(appname);
+	}
+	
+	/**
+	 * Returns true, if an available app has the specified name.
+	 * @param appname the name
+	 * @return true, if the name is in use
+	 */
+	public boolean containsApp(String appname) {
+		return apps.contains(appname);
 	}
 	
 	/**
@@ -122,7 +129,8 @@ public class AppResource extends LocalResource {
 	 * @return an array of all available apps
 	 */
 	public AbstractApp[] getAllApps() {
-		return apps.toArray(new AbstractApp[apps.size()]);
+		List<AbstractApp> all = apps.getApps();
+		return all.toArray(new AbstractApp[all.size()]);
 	}
 
 	/**
@@ -132,9 +140,8 @@ public class AppResource extends LocalResource {
 	 * @param appname the app's name
 	 */
 	public void restartApps(String appname) {
-		for (AbstractApp app:apps) {
-			if (appname.equals(app.getConfig().getProperty(AppConfig.APP))
-					&& app.getConfig().getProperty(AppConfig.RUNNING).equals(AppConfig.START)) {
+		for (AbstractApp app:apps.getInstances(appname)) {
+			if (app.getConfig().getProperty(AppConfig.RUNNING).equals(AppConfig.START)) {
 				app.getConfig().setPropertyAndNotify(AppConfig.RUNNING, AppConfig.RESTART);
 			}
 		}
@@ -150,15 +157,13 @@ public class AppResource extends LocalResource {
 	 *             accessible.
 	 */
 	public void deleteApps(String appname) throws IOException {
-		for (AbstractApp app:apps.toArray(new AbstractApp[apps.size()])) {
+		for (AbstractApp app:apps.getInstances(appname)) {
 			AppConfig appcfg = app.getConfig();
-			if (appname.equals(appcfg.getProperty(AppConfig.APP))) {
-				if (appcfg.getProperty(AppConfig.RUNNING).equals(AppConfig.START) 
-						|| appcfg.getProperty(AppConfig.RUNNING).equals(AppConfig.RESTART)) {
-					appcfg.setPropertyAndNotify(AppConfig.RUNNING, AppConfig.STOP);
-				}
-				appcfg.deleteConfig();
+			if (appcfg.getProperty(AppConfig.RUNNING).equals(AppConfig.START) 
+					|| appcfg.getProperty(AppConfig.RUNNING).equals(AppConfig.RESTART)) {
+				appcfg.setPropertyAndNotify(AppConfig.RUNNING, AppConfig.STOP);
 			}
+			appcfg.deleteConfig();
 		}
 	}
 
@@ -168,9 +173,11 @@ public class AppResource extends LocalResource {
 	 * and adds it to the running apps.
 	 * 
 	 * @param app the app
+	 * @throws IllegalArgumentException if the name of the app is in use
 	 */
 	public void installApp(AbstractApp app) {
-		addApp(app);
+		if (!addApp(app))
+			throw new IllegalArgumentException("The name "+app.getName()+" is already in use for an app. Please specify a new name");
 		if (manager.getConfig().getBool(Config.START_ON_INSTALL)) {
 			app.start();
 		}
@@ -181,9 +188,9 @@ public class AppResource extends LocalResource {
 	 * Add the specified app to the available apps. AppResource adds the app to
 	 * its list of apps and adds their configs to the AppConfigsResource.
 	 * Finally it adds an Observer to the app that listens to different changes
-	 * in the app config.
+	 * in the app config. Returns false, if the name of the app is in use.
 	 */
-	private void addApp(final AbstractApp app) {
+	private boolean addApp(final AbstractApp app) {
 		String tempid = app.getName();
 		
 //		identifier must be equal to name for stats
@@ -199,7 +206,10 @@ public class AppResource extends LocalResource {
 //		}
 		
 		// add app
-		apps.add(app);
+		if (!apps.add(app)) {
+			System.err.println("The name "+tempid+" is already in use for an app. App is ignored");
+			return false;
+		}
 		
 		// add app's config with given resid
 		final String resid = tempid;
@@ -217,6 +227,7 @@ public class AppResource extends LocalResource {
 					return;
 				ConfigChangeSet set = (ConfigChangeSet) arg;
 				if (set.contains(AppConfig.APP)) {
+					apps.update(app);
 					app.restart();
 				}
 				if (set.contains(AppConfig.RUNNING)) {
@@ -236,6 +247,7 @@ public class AppResource extends LocalResource {
 				}
 			}
 		});
+		return true;
 	}
 	
 	/**
@@ -245,7 +257,7 @@ public class AppResource extends LocalResource {
 	@SuppressWarnings("unused")
 	private String createUniqueResourceId(String resid) {
 		HashSet<String> allids = new HashSet<String>();
-		for (AbstractApp a:apps)
+		for (AbstractApp a:apps.getApps())
 			allids.add(a.getName());
 		
 		for (int i=2;i<allids.size()+1+2;i++) {
@@ -0,0 +1,214 @@
+package ch.ethz.inf.vs.actinium;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import ch.ethz.inf.vs.actinium.plugnplay.CpuBudget;
+import ch.ethz.inf.vs.californium.coap.CodeRegistry;
+import ch.ethz.inf.vs.californium.coap.Message;
+
+/**
+ * EventRecorder records timed events, like a flight recorder: the server
+ * dispatching a request, a WorkQueue executing a task, a JavaScript handler
+ * or timer function executing and an app sending a request and receiving its
+ * response or timeout. Every event carries the app, the path of the resource
+ * (or the URI of an outgoing request), the method and the payload size, so
+ * that the recording shows which app and handler consumed the time.
+ * <p>
+ * The recording is continuous: the events go into a ring of fixed capacity,
+ * that overwrites the oldest events. A point of interest calls begin() and
+ * commit() with the start time. While the recording is off, begin() returns 0
+ * after reading a single volatile field, and commit() returns right away.
+ *
+ * @author Martin Lanter
+ */
+public final class EventRecorder {
+
+	// the types of events
+	public static final String DISPATCH = "dispatch"; // the server dispatches a request
+	public static final String TASK = "task"; // a WorkQueue executes a task
+	public static final String HANDLER = "handler"; // a JavaScript request handler executes
+	public static final String TIMER = "timer"; // a function of setTimeout or setInterval executes
+	public static final String SEND = "send"; // an app sends a request
+	public static final String RESPONSE = "response"; // an app receives a response
+	public static final String TIMEOUT = "timeout"; // a request of an app has timed out
+
+	// the recorded events or null while the recording is off
+	private static volatile AtomicReferenceArray<Event> ring;
+	private static final AtomicLong sequence = new AtomicLong();
+
+	private EventRecorder() {}
+
+	/**
+	 * Starts recording the last events up to the specified capacity. If
+	 * already recording, the recorded events are discarded.
+	 *
+	 * @param capacity the number of events to keep
+	 */
+	public static synchronized void start(int capacity) {
+		ring = new AtomicReferenceArray<Event>(Math.max(1, capacity));
+	}
+
+	/**
+	 * Stops recording and discards the recorded events.
+	 */
+	public static synchronized void stop() {
+		ring = null;
+	}
+
+	/**
+	 * Returns true, if events are recorded.
+	 *
+	 * @return true, if recording
+	 */
+	public static boolean isRecording() {
+		return ring!=null;
+	}
+
+	/**
+	 * Returns the start time for an event or 0, if the recording is off.
+	 *
+	 * @return the time in ns (System.nanoTime()) or 0
+	 */
+	public static long begin() {
+		return ring!=null ? System.nanoTime() : 0;
+	}
+
+	/**
+	 * Records an event, that has started at the specified time and ends now,
+	 * unless the recording has been off at the start.
+	 *
+	 * @param type the type of the event
+	 * @param start the time returned by begin()
+	 * @param app the name of the app or null
+	 * @param path the path of the resource or the URI
+	 * @param method the method or null
+	 * @param payload the payload size in bytes
+	 */
+	public static void commit(String type, long start, String app, String path, String method, int payload) {
+		AtomicReferenceArray<Event> events = ring;
+		if (start==0 || events==null)
+			return;
+		long duration = System.nanoTime() - start;
+		Event event = new Event(sequence.getAndIncrement(), type,
+				System.currentTimeMillis() - duration / 1000000, duration / 1000,
+				Thread.currentThread().getName(), app, path, method, payload);
+		events.set((int) (event.sequence % events.length()), event);
+	}
+
+	/**
+	 * Records an event of the specified message as commit() does.
+	 *
+	 * @param type the type of the event
+	 * @param start the time returned by begin()
+	 * @param app the name of the app or null
+	 * @param path the path of the resource
+	 * @param message the request
+	 */
+	public static void commit(String type, long start, String app, String path, Message message) {
+		if (start!=0)
+			commit(type, start, app, path, method(message), payloadSize(message));
+	}
+
+	/**
+	 * Returns the recorded events, oldest first.
+	 *
+	 * @return the events
+	 */
+	public static List<Event> getEvents() {
+		List<Event> events = new ArrayList<Event>();
+		AtomicReferenceArray<Event> current = ring;
+		if (current==null)
+			return events;
+		long last = sequence.get();
+		long first = Math.max(0, last - current.length());
+		for (long seq=first;seq<last;seq++) {
+			Event event = current.get((int) (seq % current.length()));
+			if (event!=null && event.sequence==seq)
+				events.add(event);
+		}
+		return events;
+	}
+
+	/**
+	 * Returns the name of the app the current thread is executing or null.
+	 *
+	 * @return the name of the current app or null
+	 */
+	public static String currentApp() {
+		CpuBudget budget = CpuBudget.current();
+		return budget!=null ? budget.getName() : null;
+	}
+
+	private static String method(Message message) {
+		return CodeRegistry.toString(message.getCode());
+	}
+
+	private static int payloadSize(Message message) {
+		byte[] payload = message.getPayload();
+		return payload!=null ? payload.length : 0;
+	}
+
+	/**
+	 * A recorded event.
+	 */
+	public static final class Event {
+
+		private final long sequence;
+		private final String type;
+		private final long time; // ms, start
+		private final long duration; // us
+		private final String thread;
+		private final String app;
+		private final String path;
+		private final String method;
+		private final int payload; // bytes
+
+		private Event(long sequence, String type, long time, long duration, String thread,
+				String app, String path, String method, int payload) {
+			this.sequence = sequence;
+			this.type = type;
+			this.time = time;
+			this.duration = duration;
+			this.thread = thread;
+			this.app = app;
+			this.path = path;
+			this.method = method;
+			this.payload = payload;
+		}
+
+		public String getType() {
+			return type;
+		}
+
+		public long getTime() {
+			return time;
+		}
+
+		public long getDuration() {
+			return duration;
+		}
+
+		public String getThread() {
+			return thread;
+		}
+
+		public String getApp() {
+			return app;
+		}
+
+		public String getPath() {
+			return path;
+		}
+
+		public String getMethod() {
+			return method;
+		}
+
+		public int getPayload() {
+			return payload;
+		}
+	}
+}
@@ -0,0 +1,141 @@
+package ch.ethz.inf.vs.actinium;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * HistoryRing is a ring buffer of samples in a memory-mapped file. A sample is
+ * a fixed number of longs, the first of which is its time. When the ring is
+ * full, a new sample overwrites the oldest one. Therefore, the file and the
+ * memory it maps keep their size, no matter how long the server runs. Since
+ * the samples are in the file, they survive a restart of the server.
+ * <p>
+ * The file starts with a header: a magic number, the number of fields per
+ * sample, the capacity and the number of samples ever appended. A file with
+ * another layout is cleared when opened.
+ *
+ * @author Martin Lanter
+ */
+public class HistoryRing {
+
+	private static final int MAGIC = 0x41634852; // "AcHR"
+	private static final int HEADER_SIZE = 32; // bytes
+
+	private static final int MAGIC_POSITION = 0;
+	private static final int FIELDS_POSITION = 4;
+	private static final int CAPACITY_POSITION = 8;
+	private static final int APPENDED_POSITION = 16;
+
+	private final File file;
+	private final int fields;
+	private final int capacity;
+	private final MappedByteBuffer buffer;
+
+	private long appended; // samples ever appended
+
+	/**
+	 * Opens the ring in the specified file or creates it.
+	 *
+	 * @param file the file
+	 * @param fields the number of longs per sample (including the time)
+	 * @param capacity the number of samples the ring holds
+	 * @throws IOException if the file cannot be mapped
+	 */
+	public HistoryRing(File file, int fields, int capacity) throws IOException {
+		this.file = file;
+		this.fields = fields;
+		this.capacity = capacity;
+
+		File dir = file.getParentFile();
+		if (dir!=null && !dir.exists())
+			dir.mkdirs();
+		long size = HEADER_SIZE + (long) capacity * fields * 8;
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			boolean valid = raf.length()==size;
+			raf.setLength(size);
+			this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+			// the mapping remains valid after the file is closed
+			valid = valid && buffer.getInt(MAGIC_POSITION)==MAGIC
+					&& buffer.getInt(FIELDS_POSITION)==fields
+					&& buffer.getInt(CAPACITY_POSITION)==capacity;
+			if (valid) {
+				appended = buffer.getLong(APPENDED_POSITION);
+			} else {
+				buffer.putInt(MAGIC_POSITION, MAGIC);
+				buffer.putInt(FIELDS_POSITION, fields);
+				buffer.putInt(CAPACITY_POSITION, capacity);
+				buffer.putLong(APPENDED_POSITION, 0);
+				appended = 0;
+			}
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Appends the specified sample, overwriting the oldest one if the ring is
+	 * full.
+	 *
+	 * @param sample the sample with the time at index 0
+	 */
+	public synchronized void append(long[] sample) {
+		int position = position(appended % capacity);
+		for (int i=0;i<fields;i++)
+			buffer.putLong(position + i*8, sample[i]);
+		appended++;
+		// written after the sample, so that a crash leaves no partial sample
+		buffer.putLong(APPENDED_POSITION, appended);
+	}
+
+	/**
+	 * Returns the samples since the specified time, oldest first. The sample
+	 * right before the specified time is included, if the ring still holds
+	 * it, so that the changes since the specified time can be computed.
+	 *
+	 * @param since the time in ms
+	 * @return the samples
+	 */
+	public synchronized List<long[]> read(long since) {
+		long available = Math.min(appended, capacity);
+		List<long[]> samples = new ArrayList<long[]>();
+		long[] before = null;
+		for (long i=appended-available;i<appended;i++) {
+			long[] sample = read(position(i % capacity));
+			if (sample[0]<since) {
+				samples.clear(); // if the clock has jumped back
+				before = sample;
+			} else {
+				samples.add(sample);
+			}
+		}
+		if (before!=null)
+			samples.add(0, before);
+		return samples;
+	}
+
+	/**
+	 * Returns the file of this ring.
+	 *
+	 * @return the file
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	private long[] read(int position) {
+		long[] sample = new long[fields];
+		for (int i=0;i<fields;i++)
+			sample[i] = buffer.getLong(position + i*8);
+		return sample;
+	}
+
+	private int position(long index) {
+		return HEADER_SIZE + (int) index * fields * 8;
+	}
+}
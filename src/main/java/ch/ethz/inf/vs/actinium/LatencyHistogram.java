@@ -0,0 +1,188 @@
+package ch.ethz.inf.vs.actinium;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * LatencyHistogram counts values (e.g. latencies in microseconds) in buckets
+ * with a bounded relative error, as HdrHistogram does. Values below 128 are
+ * counted exactly. Above, every power of two is divided into 64 buckets, so
+ * that a value is off by less than 1/64 of itself. Values above the highest
+ * trackable value are counted as the highest trackable value.
+ * <p>
+ * The buckets are an AtomicLongArray. Recording a value increments its
+ * bucket and updates the total count, sum and max, each atomically but not
+ * together, so a concurrent reader may see them slightly apart.
+ *
+ * @author Martin Lanter
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 7;
+	private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS; // 128
+	private static final int SUB_BUCKET_HALF = SUB_BUCKET_COUNT >> 1; // 64
+
+	private final long highestTrackableValue;
+	private final AtomicLongArray counts;
+
+	private final AtomicLong totalCount;
+	private final AtomicLong sum;
+	private final AtomicLong max;
+
+	/**
+	 * Constructs a new LatencyHistogram for values from 0 up to the specified
+	 * highest trackable value.
+	 *
+	 * @param highestTrackableValue the highest value to distinguish
+	 */
+	public LatencyHistogram(long highestTrackableValue) {
+		if (highestTrackableValue<SUB_BUCKET_COUNT)
+			highestTrackableValue = SUB_BUCKET_COUNT;
+		this.highestTrackableValue = highestTrackableValue;
+		this.counts = new AtomicLongArray(indexOf(highestTrackableValue) + 1);
+		this.totalCount = new AtomicLong();
+		this.sum = new AtomicLong();
+		this.max = new AtomicLong();
+	}
+
+	/**
+	 * Records the specified value.
+	 *
+	 * @param value the value
+	 */
+	public void recordValue(long value) {
+		if (value<0) value = 0;
+		if (value>highestTrackableValue) value = highestTrackableValue;
+		counts.incrementAndGet(indexOf(value));
+		totalCount.incrementAndGet();
+		sum.addAndGet(value);
+		long current = max.get();
+		while (value>current && !max.compareAndSet(current, value))
+			current = max.get();
+	}
+
+	/**
+	 * Returns the number of recorded values.
+	 *
+	 * @return the number of recorded values
+	 */
+	public long getTotalCount() {
+		return totalCount.get();
+	}
+
+	/**
+	 * Returns the largest recorded value.
+	 *
+	 * @return the largest value
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * Returns the sum of the recorded values.
+	 *
+	 * @return the sum
+	 */
+	public long getSum() {
+		return sum.get();
+	}
+
+	/**
+	 * Returns the mean of the recorded values.
+	 *
+	 * @return the mean or 0, if no value has been recorded
+	 */
+	public double getMean() {
+		long count = totalCount.get();
+		return count==0 ? 0 : (double) sum.get() / count;
+	}
+
+	/**
+	 * Returns the value, at or below which the specified percentage of the
+	 * recorded values lie (e.g. 99.9 for the 99.9th percentile). The value is
+	 * the highest value of its bucket.
+	 *
+	 * @param percentile the percentile from 0 to 100
+	 * @return the value at the percentile
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long total = totalCount.get();
+		if (total==0)
+			return 0;
+		long target = (long) Math.ceil(Math.min(100, Math.max(0, percentile)) / 100.0 * total);
+		if (target<1) target = 1;
+		long seen = 0;
+		for (int i=0;i<counts.length();i++) {
+			seen += counts.get(i);
+			if (seen>=target)
+				return Math.min(highestValueAt(i), max.get());
+		}
+		return max.get();
+	}
+
+	/**
+	 * Adds the values recorded by the specified histogram to this histogram.
+	 * Values above the highest trackable value of this histogram are counted
+	 * as the highest trackable value.
+	 *
+	 * @param other the other histogram
+	 */
+	public void add(LatencyHistogram other) {
+		int last = counts.length() - 1;
+		for (int i=0;i<other.counts.length();i++) {
+			long count = other.counts.get(i);
+			if (count>0)
+				counts.addAndGet(Math.min(i, last), count);
+		}
+		totalCount.addAndGet(other.totalCount.get());
+		sum.addAndGet(other.sum.get());
+		long value = Math.min(other.max.get(), highestTrackableValue);
+		long current = max.get();
+		while (value>current && !max.compareAndSet(current, value))
+			current = max.get();
+	}
+
+	/**
+	 * Removes all recorded values.
+	 */
+	public void reset() {
+		for (int i=0;i<counts.length();i++)
+			counts.set(i, 0);
+		totalCount.set(0);
+		sum.set(0);
+		max.set(0);
+	}
+
+	/**
+	 * Returns a summary of the count, mean and percentiles p50, p90, p99,
+	 * p99.9 and the maximum.
+	 */
+	@Override
+	public String toString() {
+		return String.format("count=%d mean=%.1f p50=%d p90=%d p99=%d p99.9=%d max=%d",
+				getTotalCount(), getMean(),
+				getValueAtPercentile(50), getValueAtPercentile(90),
+				getValueAtPercentile(99), getValueAtPercentile(99.9),
+				getMax());
+	}
+
+	/*
+	 * Values below 128 have a bucket of their own. Above, a value v lies in
+	 * bucket m*64 + (v >> m), where m is chosen so that v >> m is in [64, 128).
+	 */
+	private static int indexOf(long value) {
+		if (value<SUB_BUCKET_COUNT)
+			return (int) value;
+		int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		return shift * SUB_BUCKET_HALF + (int) (value >>> shift);
+	}
+
+	private static long highestValueAt(int index) {
+		if (index<SUB_BUCKET_COUNT)
+			return index;
+		int shift = index / SUB_BUCKET_HALF - 1;
+		long sub = index - shift * SUB_BUCKET_HALF;
+		return ((sub + 1) << shift) - 1;
+	}
+}
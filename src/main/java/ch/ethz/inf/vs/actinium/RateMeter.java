@@ -0,0 +1,125 @@
+package ch.ethz.inf.vs.actinium;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * RateMeter counts events and computes their exponentially weighted moving
+ * average rates over 1 second, 1 minute, 5 minutes and 15 minutes, as the
+ * load average of Unix does. The events are counted in a StripedCounter. The
+ * averages advance in ticks of one second. There is no timer: the thread that
+ * marks or reads the meter first after a tick has passed updates the averages
+ * for all ticks since the last update. It is elected by a CAS on the time of
+ * the last tick.
+ *
+ * @author Martin Lanter
+ */
+public class RateMeter {
+
+	private static final long TICK = 1000000000L; // ns
+	private static final long MAX_TICKS = 9000; // after 2.5 h all averages are 0
+
+	// the weight of a new tick for each average: 1 - exp(-tick/window)
+	private static final double ALPHA_1S = 1 - Math.exp(-1);
+	private static final double ALPHA_1M = 1 - Math.exp(-1 / 60.0);
+	private static final double ALPHA_5M = 1 - Math.exp(-1 / 300.0);
+	private static final double ALPHA_15M = 1 - Math.exp(-1 / 900.0);
+
+	private final StripedCounter count;
+	private final AtomicLong lastTick; // ns
+	private volatile long ticked; // the count at the last tick, only written by the ticking thread
+
+	// events per second
+	private volatile double rate1s;
+	private volatile double rate1m;
+	private volatile double rate5m;
+	private volatile double rate15m;
+
+	/**
+	 * Constructs a new RateMeter without any events.
+	 */
+	public RateMeter() {
+		this.count = new StripedCounter();
+		this.lastTick = new AtomicLong(System.nanoTime());
+	}
+
+	/**
+	 * Marks the occurrence of an event.
+	 */
+	public void mark() {
+		tickIfNecessary();
+		count.increment();
+	}
+
+	/**
+	 * Returns the number of events since the meter has been created.
+	 *
+	 * @return the number of events
+	 */
+	public long getCount() {
+		return count.sum();
+	}
+
+	/**
+	 * Returns the average rate of events per second over the last second.
+	 *
+	 * @return the 1 second rate
+	 */
+	public double getOneSecondRate() {
+		tickIfNecessary();
+		return rate1s;
+	}
+
+	/**
+	 * Returns the average rate of events per second over the last minute.
+	 *
+	 * @return the 1 minute rate
+	 */
+	public double getOneMinuteRate() {
+		tickIfNecessary();
+		return rate1m;
+	}
+
+	/**
+	 * Returns the average rate of events per second over the last 5 minutes.
+	 *
+	 * @return the 5 minutes rate
+	 */
+	public double getFiveMinuteRate() {
+		tickIfNecessary();
+		return rate5m;
+	}
+
+	/**
+	 * Returns the average rate of events per second over the last 15
+	 * minutes.
+	 *
+	 * @return the 15 minutes rate
+	 */
+	public double getFifteenMinuteRate() {
+		tickIfNecessary();
+		return rate15m;
+	}
+
+	/*
+	 * Only the thread that advances lastTick updates the averages. All events
+	 * counted since the last tick fall into the first of the passed ticks.
+	 */
+	private void tickIfNecessary() {
+		long last = lastTick.get();
+		long now = System.nanoTime();
+		long age = now - last;
+		if (age<TICK || !lastTick.compareAndSet(last, now - age % TICK))
+			return;
+
+		long total = count.sum();
+		double rate = total - ticked; // per tick, i.e. per second
+		ticked = total;
+		for (long ticks = Math.min(age / TICK, MAX_TICKS); ticks>0; ticks--) {
+			rate1s += ALPHA_1S * (rate - rate1s);
+			rate1m += ALPHA_1M * (rate - rate1m);
+			rate5m += ALPHA_5M * (rate - rate5m);
+			rate15m += ALPHA_15M * (rate - rate15m);
+			rate = 0;
+		}
+	}
+}
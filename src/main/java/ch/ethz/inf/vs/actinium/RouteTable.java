@@ -0,0 +1,163 @@
+package ch.ethz.inf.vs.actinium;
+
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ch.ethz.inf.vs.actinium.plugnplay.AbstractApp;
+import ch.ethz.inf.vs.californium.endpoint.LocalResource;
+
+/**
+ * RouteTable maps the URI paths of requests to their route: the target
+ * resource, the app it belongs to and its slot in the StatsResource. The
+ * server resolves a path only once, when it is requested first. Afterwards,
+ * a request is routed with a single lookup in a ConcurrentHashMap, which does
+ * not allocate any objects.
+ * <p>
+ * Only paths of existing resources are held. Before a resource is removed or
+ * replaced, its path and all paths below are invalidated, so that they are
+ * resolved again on their next request. Resources call the static method
+ * invalidate(), which invalidates the paths in all route tables. The tables
+ * are only weakly referenced, so that the table of a server, that is not used
+ * anymore (e.g. of a benchmark), is collected with the server and its apps.
+ *
+ * @author Martin Lanter
+ */
+public class RouteTable {
+
+	// all route tables, usually only one
+	private static final CopyOnWriteArrayList<WeakReference<RouteTable>> TABLES = new CopyOnWriteArrayList<WeakReference<RouteTable>>();
+
+	// maps URI paths to their route
+	private final ConcurrentHashMap<String, Route> routes;
+
+	// incremented on every invalidation
+	private final AtomicLong generation;
+
+	/**
+	 * Constructs a new empty RouteTable.
+	 */
+	public RouteTable() {
+		this.routes = new ConcurrentHashMap<String, Route>();
+		this.generation = new AtomicLong();
+		TABLES.add(new WeakReference<RouteTable>(this));
+	}
+
+	/**
+	 * Invalidates the routes of the resource with the specified path and of
+	 * all resources below it in all route tables. Must be called before a
+	 * resource is removed or replaced by a resource with the same path.
+	 *
+	 * @param path the path of the resource
+	 */
+	public static void invalidate(String path) {
+		for (WeakReference<RouteTable> reference:TABLES) {
+			RouteTable table = reference.get();
+			if (table!=null)
+				table.invalidatePath(path);
+			else
+				TABLES.remove(reference); // collected
+		}
+	}
+
+	/**
+	 * Returns the route of the specified URI path or null, if it has not been
+	 * resolved yet or has been invalidated.
+	 *
+	 * @param uriPath the URI path of a request
+	 * @return the route or null
+	 */
+	public Route get(String uriPath) {
+		return routes.get(uriPath);
+	}
+
+	/**
+	 * Returns the current generation, which must be read before a path is
+	 * resolved and passed to put().
+	 *
+	 * @return the generation
+	 */
+	public long getGeneration() {
+		return generation.get();
+	}
+
+	/**
+	 * Adds the specified route of the specified URI path, unless a route has
+	 * been invalidated since the specified generation, since the route might
+	 * have been resolved from a resource that has been removed meanwhile.
+	 *
+	 * @param uriPath the URI path
+	 * @param route the route
+	 * @param generation the generation before the path has been resolved
+	 */
+	public void put(String uriPath, Route route, long generation) {
+		routes.put(uriPath, route);
+		if (this.generation.get()!=generation)
+			routes.remove(uriPath, route);
+	}
+
+	/**
+	 * Returns the number of routes.
+	 *
+	 * @return the number of routes
+	 */
+	public int size() {
+		return routes.size();
+	}
+
+	private void invalidatePath(String path) {
+		generation.incrementAndGet();
+		String below = path.endsWith("/") ? path : path+"/";
+		for (Iterator<Route> it=routes.values().iterator(); it.hasNext();) {
+			String resolved = it.next().path;
+			if (resolved.equals(path) || resolved.startsWith(below))
+				it.remove();
+		}
+	}
+
+	/**
+	 * The route of a URI path.
+	 */
+	public static final class Route {
+
+		private final String path; // of the resource
+		private final LocalResource resource;
+		private final AbstractApp app; // null if the resource belongs to no app
+		private final boolean deliver; // true, if delivered to the app, false if dispatched right away
+		private final StatsResource.ResourceInfo stats; // null if not recorded
+
+		/**
+		 * Constructs a new route.
+		 *
+		 * @param resource the target resource
+		 * @param app the app of the resource or null
+		 * @param deliver true, if the request is delivered to the app
+		 * @param stats the stats slot of the resource or null
+		 */
+		Route(LocalResource resource, AbstractApp app, boolean deliver, StatsResource.ResourceInfo stats) {
+			this.path = resource.getPath();
+			this.resource = resource;
+			this.app = app;
+			this.deliver = deliver;
+			this.stats = stats;
+		}
+
+		public LocalResource getResource() {
+			return resource;
+		}
+
+		public AbstractApp getApp() {
+			return app;
+		}
+
+		public boolean isDelivered() {
+			return deliver;
+		}
+
+		StatsResource.ResourceInfo getStats() {
+			return stats;
+		}
+	}
+}
@@ -40,6 +40,15 @@ public class RunningResource extends LocalResource {
 		add(app);
 	}
 	
+	/**
+	 * Removes the app with the specified name, when it stops.
+	 */
+	@Override
+	public void removeSubResource(String resid) {
+		RouteTable.invalidate(getPath()+"/"+resid);
+		super.removeSubResource(resid);
+	}
+	
 	/**
 	 * Responds with a list of all running apps.
 	 */
@@ -0,0 +1,189 @@
+package ch.ethz.inf.vs.actinium;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * StatsHistory keeps a sample of the stats of every app and of the whole
+ * server per second in a HistoryRing of its own. A sample holds the counters
+ * of requests, responses per code class, CPU time, allocated bytes and
+ * latencies since the start of the server, and the gauges of the app's queue.
+ * <p>
+ * A query downsamples the samples to steps of a given length on the server:
+ * the counters become rates per second over the step (a counter that has
+ * decreased, e.g. after a restart, counts from 0), the gauges become their
+ * maximum within the step.
+ *
+ * @author Martin Lanter
+ */
+public class StatsHistory {
+
+	private static final Logger LOG = Logger.getLogger(StatsHistory.class.getName());
+
+	public static final String ALL = "_all"; // the series of the whole server
+
+	// the fields of a sample
+	public static final int TIME = 0; // ms
+	public static final int REQUESTS = 1;
+	public static final int SUCCESS = 2; // 2.xx
+	public static final int CLIENT_ERRORS = 3; // 4.xx
+	public static final int SERVER_ERRORS = 4; // 5.xx
+	public static final int CPU_TIME = 5; // ns
+	public static final int ALLOCATED = 6; // bytes
+	public static final int LATENCY_COUNT = 7;
+	public static final int LATENCY_SUM = 8; // us
+	public static final int QUEUE_DEPTH = 9; // gauge
+	public static final int QUEUE_AGE = 10; // gauge, ms
+	public static final int FIELDS = 11;
+
+	private static final String SUFFIX = ".history";
+
+	private final File dir;
+	private final int capacity;
+
+	// maps the names of the series to their ring
+	private final ConcurrentHashMap<String, HistoryRing> rings;
+
+	/**
+	 * Constructs a new StatsHistory, that keeps its rings in the specified
+	 * directory.
+	 *
+	 * @param dir the directory
+	 * @param capacity the number of samples per series
+	 */
+	public StatsHistory(File dir, int capacity) {
+		this.dir = dir;
+		this.capacity = Math.max(1, capacity);
+		this.rings = new ConcurrentHashMap<String, HistoryRing>();
+	}
+
+	/**
+	 * Appends the specified sample to the series with the specified name.
+	 *
+	 * @param name the name of the app or ALL
+	 * @param sample the sample with FIELDS fields
+	 */
+	public void append(String name, long[] sample) {
+		HistoryRing ring = getRing(name, true);
+		if (ring!=null)
+			ring.append(sample);
+	}
+
+	/**
+	 * Deletes the series with the specified name, e.g. of a deleted app.
+	 *
+	 * @param name the name of the app
+	 */
+	public void delete(String name) {
+		HistoryRing ring = rings.remove(name);
+		File file = ring!=null ? ring.getFile() : new File(dir, name+SUFFIX);
+		if (file.exists() && !file.delete())
+			LOG.warning("Could not delete history "+file);
+	}
+
+	/**
+	 * Returns the series with the specified name since the specified time,
+	 * downsampled to steps of the specified length.
+	 *
+	 * @param name the name of the app or ALL
+	 * @param since the time in ms
+	 * @param step the length of a step in ms
+	 * @return the downsampled series or null, if there is no such series
+	 */
+	public Map<String, Object> query(String name, long since, long step) {
+		HistoryRing ring = getRing(name, false);
+		if (ring==null)
+			return null;
+		step = Math.max(1000, step);
+		List<long[]> samples = ring.read(since);
+
+		List<Object> steps = new ArrayList<Object>();
+		long[] previous = null;
+		long[] deltas = null; // of the counters within the current step
+		long[] maxima = null; // of the gauges within the current step
+		long stepStart = 0;
+		for (long[] sample:samples) {
+			if (sample[TIME]<since) {
+				previous = sample; // only for the deltas
+				continue;
+			}
+			long start = since + (sample[TIME] - since) / step * step;
+			if (deltas==null || start!=stepStart) {
+				if (deltas!=null)
+					steps.add(downsample(stepStart, deltas, maxima));
+				stepStart = start;
+				deltas = new long[FIELDS];
+				maxima = new long[FIELDS];
+			}
+			if (previous!=null) {
+				for (int i=TIME;i<QUEUE_DEPTH;i++) {
+					long delta = sample[i] - previous[i];
+					deltas[i] += delta>=0 ? delta : sample[i];
+				}
+			}
+			for (int i=QUEUE_DEPTH;i<FIELDS;i++)
+				maxima[i] = Math.max(maxima[i], sample[i]);
+			previous = sample;
+		}
+		if (deltas!=null)
+			steps.add(downsample(stepStart, deltas, maxima));
+
+		Map<String, Object> history = new LinkedHashMap<String, Object>();
+		history.put("app", name);
+		history.put("since", since);
+		history.put("step", step);
+		history.put("samples", steps);
+		return history;
+	}
+
+	private static Map<String, Object> downsample(long start, long[] deltas, long[] maxima) {
+		double seconds = deltas[TIME] / 1000d;
+		Map<String, Object> step = new LinkedHashMap<String, Object>();
+		step.put("time", start);
+		step.put("requests", rate(deltas[REQUESTS], seconds)); // per s
+		step.put("2.xx", rate(deltas[SUCCESS], seconds));
+		step.put("4.xx", rate(deltas[CLIENT_ERRORS], seconds));
+		step.put("5.xx", rate(deltas[SERVER_ERRORS], seconds));
+		step.put("cpu", seconds>0 ? deltas[CPU_TIME] / (seconds * 1e9) : null); // cores
+		step.put("allocation", rate(deltas[ALLOCATED], seconds)); // bytes per s
+		step.put("latency", deltas[LATENCY_COUNT]>0 ? deltas[LATENCY_SUM] / deltas[LATENCY_COUNT] : null); // mean in us
+		step.put("queue_depth", maxima[QUEUE_DEPTH]);
+		step.put("queue_age", maxima[QUEUE_AGE]); // ms
+		return step;
+	}
+
+	private static Double rate(long delta, double seconds) {
+		return seconds>0 ? delta / seconds : null;
+	}
+
+	/*
+	 * Returns the ring of the series, opening it if necessary, or null if it
+	 * cannot be opened. If create is false, only an existing ring is opened.
+	 */
+	private HistoryRing getRing(String name, boolean create) {
+		if (name.indexOf('/')>=0 || name.indexOf('\\')>=0 || name.startsWith("."))
+			return null; // not a name of an app
+		HistoryRing ring = rings.get(name);
+		if (ring==null) {
+			synchronized (rings) {
+				ring = rings.get(name);
+				File file = new File(dir, name+SUFFIX);
+				if (ring==null && (create || file.exists())) {
+					try {
+						ring = new HistoryRing(file, FIELDS, capacity);
+						rings.put(name, ring);
+					} catch (IOException e) {
+						LOG.warning("Could not open history of "+name+": "+e);
+					}
+				}
+			}
+		}
+		return ring;
+	}
+}
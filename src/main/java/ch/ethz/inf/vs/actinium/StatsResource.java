@@ -1,13 +1,29 @@
 package ch.ethz.inf.vs.actinium;
 
-import java.lang.management.ManagementFactory;
-import java.lang.management.ThreadMXBean;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Observable;
+import java.util.Observer;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
 
+import ch.ethz.inf.vs.actinium.EventRecorder.Event;
+import ch.ethz.inf.vs.actinium.cfg.AbstractConfig.ConfigChangeSet;
 import ch.ethz.inf.vs.actinium.cfg.Config;
+import ch.ethz.inf.vs.actinium.jscoap.OutboundStats;
 import ch.ethz.inf.vs.actinium.plugnplay.AbstractApp;
+import ch.ethz.inf.vs.actinium.plugnplay.AdmissionControl;
+import ch.ethz.inf.vs.actinium.plugnplay.LatencyStats;
+import ch.ethz.inf.vs.actinium.plugnplay.LatencyStats.Latencies;
+import ch.ethz.inf.vs.actinium.plugnplay.SlowHandlerLog;
+import ch.ethz.inf.vs.actinium.plugnplay.WorkQueue;
 import ch.ethz.inf.vs.californium.coap.CodeRegistry;
 import ch.ethz.inf.vs.californium.coap.DELETERequest;
 import ch.ethz.inf.vs.californium.coap.GETRequest;
@@ -19,21 +35,84 @@ import ch.ethz.inf.vs.californium.endpoint.Resource;
 
 /**
  * Statsresource holds the stats of all app instances and their subresources.
+ * For every app, it has a subresource with the stats of this app only, a
+ * subresource latency with the latency percentiles in microseconds of the
+ * app's requests (e.g. /stats/appname/latency) and a subresource queue with
+ * the gauges of the app's WorkQueue (e.g. /stats/appname/queue). Since the
+ * stats of the apps are next to the other subresources, the names outbound,
+ * history, events and slow and the name of the server's history (_all) are
+ * reserved and AppManager does not accept them for app instances.
+ * <p>
+ * The resources do not compute the stats per request. A thread refreshes a
+ * snapshot of the stats every Config.STATS_INTERVAL milliseconds and notifies
+ * the observers of the resources. The snapshot is represented as text, JSON or
+ * CBOR according to the Accept option of a request. If the interval is 0, the
+ * snapshot is refreshed on every request instead.
+ * <p>
+ * Besides the total counts, the stats contain the current request rates of
+ * every app and resource and the rates of their responses by code class as
+ * moving averages over 1 s, 1 min, 5 min and 15 min (see RateMeter).
+ * <p>
+ * Every second, a thread of its own appends a sample of the stats of every app
+ * and of the whole server to the StatsHistory, since sampling takes time with
+ * many apps and must not delay the timer of the apps. The subresource history
+ * responds with the history of an app downsampled on the server, e.g.
+ * /stats/history?app=appname&since=1350000000000&step=60 for the rates and
+ * gauges per minute since the specified time in ms. Without app, it responds
+ * with the history of the whole server, without since with the last 10
+ * minutes.
+ * <p>
+ * The subresource outbound holds the stats of the requests the apps send with
+ * CoAPRequest: the round trip times in microseconds, the requests in flight
+ * and the timeouts, aborts and network errors, by app and by remote endpoint
+ * (see OutboundStats).
+ * <p>
+ * If Config.EVENT_RECORDING is true, the subresource events responds with the
+ * latest events of the EventRecorder, e.g. /stats/events?app=appname for the
+ * events of a single app.
+ * <p>
+ * The subresource slow responds with the latest handlers and timeouts, that
+ * have exceeded the AppConfig.SLOW_THRESHOLD of their app, with the script
+ * stack captured while they were running, e.g. /stats/slow?app=appname.
  * 
  * @author Martin Lanter
  */
 public class StatsResource extends LocalResource {
 
+	private static final Logger LOG = Logger.getLogger(StatsResource.class.getName());
+
 	// the app server's config
 	private Config config;
 	
 	// the AppManager to get retrieve information from the apps
 	private AppManager manager;
 	
-	private HashMap<String, AppInfo> appinfos; // maps app names to their info
-	private HashMap<String, ResourceInfo> resinfos; // maps resource paths to their info
+	private ConcurrentHashMap<String, AppInfo> appinfos; // maps app names to their info
+	private ConcurrentHashMap<String, ResourceInfo> resinfos; // maps interned resource paths to their info
+	private ConcurrentHashMap<String, AppStatsResource> appresources; // maps app names to their stats resource
+
+	private static final long HISTORY_STEP = 1000; // ms between two samples of the history
+	private static final long HISTORY_RANGE = 600000; // ms of history if no since is specified
+	private static final int HISTORY_STEPS = 600; // default number of steps of the history
 
+	// the subresources next to the stats of the apps, which apps cannot be named
+	public static final String OUTBOUND = "outbound";
+	public static final String HISTORY = "history";
+	public static final String EVENTS = "events";
+	public static final String SLOW = "slow";
+	
 	private AppInfo allinfo;
+	private AppInfo otherinfo; // for all requests to non-app resources
+	
+	private volatile StatsSnapshot snapshot;
+	private SnapshotResource outbound;
+	private volatile int interval; // ms
+	private final Object intervalChanged = new Object();
+	
+	private StatsHistory history;
+	
+	private Refresher refresher;
+	private Sampler sampler;
 	
 	/**
 	 * Constructs a new StatsResource with the specified app server config and
@@ -47,69 +126,121 @@ public class StatsResource extends LocalResource {
 		this.config = config;
 		this.manager = manager;
 		this.manager.setStatsResource(this);
+		isObservable(true);
 		
 		this.allinfo = new AppInfo();
-		this.appinfos = new HashMap<String, StatsResource.AppInfo>();
-		this.resinfos = new HashMap<String, StatsResource.ResourceInfo>();
-		
-		/*
-		 * Use the key null for all requests that do not go to an app but to
-		 * another resource. Since apps might have any possible name null is the
-		 * only unused name. Otherwise we could also not count the requests to
-		 * non-apps resources or use a prefix for every app inside the HashMap.
-		 */
-		appinfos.put(null, new AppInfo());
+		this.otherinfo = new AppInfo();
+		this.appinfos = new ConcurrentHashMap<String, StatsResource.AppInfo>();
+		this.resinfos = new ConcurrentHashMap<String, StatsResource.ResourceInfo>();
+		this.appresources = new ConcurrentHashMap<String, StatsResource.AppStatsResource>();
+		this.outbound = new SnapshotResource(OUTBOUND);
+		add(outbound);
 		
 		// create AppInfos for all installed apps
 		AbstractApp[] apps = manager.getAllApps();
 		for (AbstractApp app:apps) {
 			oninstallApp(app.getName());
 		}
+		
+		this.interval = config.getInt(Config.STATS_INTERVAL);
+		config.getObservable().addObserver(new Observer() {
+			public void update(Observable o, Object arg) {
+				if (!(arg instanceof ConfigChangeSet))
+					return;
+				ConfigChangeSet set = (ConfigChangeSet) arg;
+				if (set.contains(Config.STATS_INTERVAL)) {
+					synchronized (intervalChanged) {
+						interval = StatsResource.this.config.getInt(Config.STATS_INTERVAL);
+						intervalChanged.notifyAll();
+					}
+				}
+				if (set.contains(Config.EVENT_RECORDING) || set.contains(Config.EVENT_CAPACITY)) {
+					updateEventRecording();
+				}
+			}
+		});
+		
+		refresh();
+		this.refresher = new Refresher();
+		refresher.start();
+		
+		this.history = new StatsHistory(
+				new File(config.getProperty(Config.STATS_HISTORY_PATH)),
+				config.getInt(Config.STATS_HISTORY_SAMPLES));
+		add(new HistoryResource());
+		add(new EventsResource());
+		add(new SlowHandlersResource());
+		updateEventRecording();
+		this.sampler = new Sampler();
+		sampler.start();
+	}
+
+	/**
+	 * Stops the threads, that refresh the snapshot and sample the history,
+	 * and waits until they have finished. The stats are not refreshed and
+	 * sampled anymore afterwards.
+	 */
+	public void stop() {
+		refresher.interrupt();
+		sampler.interrupt();
+		try {
+			refresher.join();
+			sampler.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
 	}
 
 	/**
 	 * Records the specified request to the specified resource to count the GET,
-	 * POST, PUT and DELETE requests the resource receives.
+	 * POST, PUT and DELETE requests the resource receives. Recording never
+	 * blocks.
 	 * 
 	 * @param request the request.
 	 * @param resource the resource to which the request is sent.
 	 */
 	public void record(Request request, Resource resource) {
-		String appname = getAppName(resource);
+		record(request, getResourceInfo(resource));
+	}
 
-		// if appname==null use the appinfo for all non-app resources
-		AppInfo appinfo = appinfos.get(appname);
-		
+	/**
+	 * Returns the information about the specified resource, which its route
+	 * holds to record requests without looking it up.
+	 * 
+	 * @param resource the resource
+	 * @return the information about the resource
+	 */
+	ResourceInfo getResourceInfo(Resource resource) {
 		String path = resource.getPath();
 		ResourceInfo resinfo = resinfos.get(path);
 		if (resinfo==null) { 
 			// if no information about this resource available, create a new one
-			resinfo = new ResourceInfo(appname);
-			resinfos.put(path, resinfo);
-		}
-		
-		int payloadSize = request.getPayload().length;
-		allinfo.payloadsum += payloadSize;
-		appinfo.payloadsum += payloadSize;
-		resinfo.payloadsum += payloadSize;
-		
-		if (request instanceof GETRequest) {
-			allinfo.getreqcount++;
-			appinfo.getreqcount++;
-			resinfo.getreqcount++;
-		} else if (request instanceof POSTRequest) {
-			allinfo.postreqcount++;
-			appinfo.postreqcount++;
-			resinfo.postreqcount++;
-		} else if (request instanceof PUTRequest) {
-			allinfo.putreqcount++;
-			appinfo.putreqcount++;
-			resinfo.putreqcount++;
-		} else if (request instanceof DELETERequest) {
-			allinfo.deletereqcount++;
-			appinfo.deletereqcount++;
-			resinfo.deletereqcount++;
+			ResourceInfo created = new ResourceInfo(getAppName(resource));
+			resinfo = resinfos.putIfAbsent(path.intern(), created);
+			if (resinfo==null)
+				resinfo = created;
 		}
+		return resinfo;
+	}
+
+	/**
+	 * Records the specified request to the resource with the specified
+	 * information as record(request, resource) does.
+	 * 
+	 * @param request the request
+	 * @param resinfo the information about the target resource
+	 */
+	void record(Request request, ResourceInfo resinfo) {
+		// if the resource belongs to no app use the appinfo for all non-app resources
+		AppInfo appinfo = resinfo.appname==null ? otherinfo : appinfos.get(resinfo.appname);
+		
+		byte[] payload = request.getPayload();
+		int payloadSize = payload==null ? 0 : payload.length;
+		
+		allinfo.record(request, payloadSize);
+		if (appinfo!=null) // null if the app has been deleted meanwhile
+			appinfo.record(request, payloadSize);
+		resinfo.record(request, payloadSize);
 	}
 
 	/**
@@ -121,10 +252,21 @@ public class StatsResource extends LocalResource {
 	public void ondeleteApp(String name) {
 		if (name==null) return;
 		appinfos.remove(name);
-		for (String key:resinfos.keySet()) {
-			if (name.equals(resinfos.get(key).appname))
-				appinfos.remove(key);
+		// the routes to the app's resources hold their removed infos
+		RouteTable.invalidate("/"+config.getProperty(Config.APPS_RESOURCE_ID)
+				+"/"+config.getProperty(Config.RUNNING_RESOURCE_ID)+"/"+name);
+		AppStatsResource appres = appresources.remove(name);
+		if (appres!=null) {
+			RouteTable.invalidate(appres.getPath());
+			removeSubResource(appres);
+		}
+		for (Map.Entry<String, ResourceInfo> entry:resinfos.entrySet()) {
+			if (name.equals(entry.getValue().appname))
+				resinfos.remove(entry.getKey(), entry.getValue());
 		}
+		if (!isReservedName(name))
+			history.delete(name); // not the history of the whole server
+		OutboundStats.getInstance().removeApp(name);
 	}
 
 	/**
@@ -134,109 +276,323 @@ public class StatsResource extends LocalResource {
 	 * @param name the name of the app instance.
 	 */
 	public void oninstallApp(String name) {
-		AppInfo appinfo = new AppInfo();
-		appinfos.put(name, appinfo);
+		if (isReservedName(name)) {
+			// installed before the name was reserved
+			LOG.warning("The app "+name+" has a name reserved for the stats. Its stats are not available.");
+			return;
+		}
+		if (appinfos.putIfAbsent(name, new AppInfo())==null) {
+			AppStatsResource appres = new AppStatsResource(name);
+			appresources.put(name, appres);
+			add(appres);
+		}
+	}
+
+	/**
+	 * Returns true, if the specified name is reserved for a subresource of
+	 * the stats or for the history of the whole server. An app instance with
+	 * this name would collide with it.
+	 * 
+	 * @param name the name of an app instance
+	 * @return true, if the name is reserved
+	 */
+	public static boolean isReservedName(String name) {
+		return OUTBOUND.equals(name) || HISTORY.equals(name) || EVENTS.equals(name)
+				|| SLOW.equals(name) || StatsHistory.ALL.equals(name);
 	}
 
 	/**
-	 * Responses with all stored information about all app instances and all
-	 * their subresources.
+	 * Responds with the latest snapshot of the stats of all app instances and
+	 * all their subresources.
 	 */
 	@Override
 	public void performGET(GETRequest request) {
-		StringBuffer buffer = new StringBuffer();
+		if (interval<=0)
+			refresh();
+		snapshot.respond(request);
+	}
 
+	/**
+	 * Takes a new snapshot of the stats of all apps. The counters are read
+	 * without blocking the threads that record requests.
+	 */
+	private synchronized void refresh() {
+		Long time = System.currentTimeMillis();
 		AbstractApp[] apps = manager.getAllApps();
 		
-		buffer.append("All apps: ("+apps.length+")");
-		buffer.append("\n\tGET requests: "+allinfo.getreqcount);
-		buffer.append("\n\tPOST requests: "+allinfo.postreqcount);
-		buffer.append("\n\tPUT requests: "+allinfo.putreqcount);
-		buffer.append("\n\tDELETE requests: "+allinfo.deletereqcount);
-		buffer.append("\n\tPayload: "+allinfo.payloadsum+" bytes");
+		// group the resources by app, instead of walking the resource tree
+		Map<String, Map<String, Object>> resources = new HashMap<String, Map<String, Object>>();
+		for (Map.Entry<String, ResourceInfo> entry:resinfos.entrySet()) {
+			String appname = entry.getValue().appname;
+			if (appname==null)
+				continue;
+			Map<String, Object> appresources = resources.get(appname);
+			if (appresources==null) {
+				appresources = new TreeMap<String, Object>();
+				resources.put(appname, appresources);
+			}
+			appresources.put(entry.getKey(), counters(entry.getValue(), new LinkedHashMap<String, Object>()));
+		}
+		for (AbstractApp app:apps) {
+			Map<String, Object> appresources = resources.get(app.getName());
+			if (appresources==null)
+				continue;
+			for (Latencies latencies:app.getLatencyStats().getResourceLatencies().values()) {
+				@SuppressWarnings("unchecked")
+				Map<String, Object> resstats = (Map<String, Object>) appresources.get(latencies.getPath());
+				if (resstats!=null)
+					resstats.put("responses", responses(latencies));
+			}
+		}
 		
+		Map<String, Object> all = new LinkedHashMap<String, Object>();
+		all.put("apps", apps.length);
+		counters(allinfo, all);
+		
+		Map<String, Object> appstats = new LinkedHashMap<String, Object>();
 		for (AbstractApp app:apps) {
 			String appname = app.getName();
-			buffer.append("\n"+appname+":");
+			Map<String, Object> stats = new LinkedHashMap<String, Object>();
+			stats.put("time", time);
+			addAppInfos(app, stats);
+			Map<String, Object> appresources = resources.get(appname);
+			stats.put("resources", appresources!=null ? appresources : new TreeMap<String, Object>());
+			appstats.put(appname, stats);
 			
-			addThreadInfos(app, buffer);
+			AppStatsResource appres = this.appresources.get(appname);
+			Map<String, Object> queue = appres!=null ? appres.queue(app, time) : new LinkedHashMap<String, Object>();
+			stats.put("queue", queue);
+			if (appres!=null) {
+				appres.snapshot = new StatsSnapshot(stats);
+				appres.latency.snapshot = new StatsSnapshot(latencies(app, time));
+				appres.queue.snapshot = new StatsSnapshot(queue);
+			}
+		}
+		
+		Map<String, Object> stats = new LinkedHashMap<String, Object>();
+		stats.put("time", time);
+		stats.put("all", all);
+		stats.put("apps", appstats);
+		snapshot = new StatsSnapshot(stats);
+		outbound.snapshot = new StatsSnapshot(outbound(time));
+	}
+
+	/**
+	 * Returns the stats of the outgoing requests by app and endpoint and by
+	 * endpoint over all apps.
+	 */
+	private static Map<String, Object> outbound(Long time) {
+		Map<String, Object> apps = new LinkedHashMap<String, Object>();
+		Map<String, List<OutboundStats.Endpoint>> byendpoint = new TreeMap<String, List<OutboundStats.Endpoint>>();
+		for (Map.Entry<String, Map<String, OutboundStats.Endpoint>> app:OutboundStats.getInstance().getEndpoints().entrySet()) {
+			Map<String, Object> endpoints = new LinkedHashMap<String, Object>();
+			for (OutboundStats.Endpoint endpoint:app.getValue().values()) {
+				endpoints.put(endpoint.getAddress(), outbound(endpoint.getRtt(), Collections.singletonList(endpoint)));
+				List<OutboundStats.Endpoint> all = byendpoint.get(endpoint.getAddress());
+				if (all==null) {
+					all = new ArrayList<OutboundStats.Endpoint>();
+					byendpoint.put(endpoint.getAddress(), all);
+				}
+				all.add(endpoint);
+			}
+			apps.put(app.getKey(), endpoints);
+		}
+		
+		Map<String, Object> endpoints = new LinkedHashMap<String, Object>();
+		for (Map.Entry<String, List<OutboundStats.Endpoint>> entry:byendpoint.entrySet()) {
+			LatencyHistogram rtt = new LatencyHistogram(OutboundStats.HIGHEST_RTT);
+			for (OutboundStats.Endpoint endpoint:entry.getValue())
+				rtt.add(endpoint.getRtt());
+			endpoints.put(entry.getKey(), outbound(rtt, entry.getValue()));
+		}
+		
+		Map<String, Object> stats = new LinkedHashMap<String, Object>();
+		stats.put("time", time);
+		stats.put("apps", apps);
+		stats.put("endpoints", endpoints);
+		return stats;
+	}
+
+	private static Map<String, Object> outbound(LatencyHistogram rtt, List<OutboundStats.Endpoint> endpoints) {
+		long sent = 0, timeouts = 0, aborts = 0, errors = 0, inflight = 0;
+		for (OutboundStats.Endpoint endpoint:endpoints) {
+			sent += endpoint.getSent();
+			timeouts += endpoint.getTimeouts();
+			aborts += endpoint.getAborts();
+			errors += endpoint.getErrors();
+			inflight += endpoint.getInFlight();
+		}
+		Map<String, Object> stats = new LinkedHashMap<String, Object>();
+		stats.put("sent", sent);
+		stats.put("in_flight", inflight);
+		stats.put("timeouts", timeouts);
+		stats.put("aborts", aborts);
+		stats.put("errors", errors);
+		stats.put("rtt", percentiles(rtt)); // us
+		return stats;
+	}
+
+	/*
+	 * Starts or stops the EventRecorder according to the config.
+	 */
+	private void updateEventRecording() {
+		if (config.getBool(Config.EVENT_RECORDING)) {
+			EventRecorder.start(config.getInt(Config.EVENT_CAPACITY));
+		} else {
+			EventRecorder.stop();
+		}
+	}
+
+	/*
+	 * Appends a sample of the stats of every app and of the whole server to
+	 * the history. Runs on the StatsSampler thread.
+	 */
+	private void sample() {
+		long time = System.currentTimeMillis();
+		long[] all = new long[StatsHistory.FIELDS];
+		for (AbstractApp app:manager.getAllApps()) {
+			AppInfo appinfo = appinfos.get(app.getName());
+			if (appinfo==null)
+				continue; // deleted meanwhile
+			Latencies latencies = app.getLatencyStats().getAppLatencies();
+			WorkQueue workQueue = app.getWorkQueue();
 			
-			AppInfo appinfo = appinfos.get(appname);
-			buffer.append("\n\tGET requests: "+appinfo.getreqcount);
-			buffer.append("\n\tPOST requests: "+appinfo.postreqcount);
-			buffer.append("\n\tPUT requests: "+appinfo.putreqcount);
-			buffer.append("\n\tDELETE requests: "+appinfo.deletereqcount);
-			buffer.append("\n\tPayload: "+appinfo.payloadsum+" bytes");
+			long[] sample = new long[StatsHistory.FIELDS];
+			sample[StatsHistory.TIME] = time;
+			sample[StatsHistory.REQUESTS] = appinfo.requests.getCount();
+			sample[StatsHistory.SUCCESS] = latencies.getSuccess().getCount();
+			sample[StatsHistory.CLIENT_ERRORS] = latencies.getClientErrors().getCount();
+			sample[StatsHistory.SERVER_ERRORS] = latencies.getServerErrors().getCount();
+			sample[StatsHistory.CPU_TIME] = Math.max(0, app.getCpuTime());
+			sample[StatsHistory.ALLOCATED] = Math.max(0, app.getHeapAccount().getAllocatedBytes());
+			sample[StatsHistory.LATENCY_COUNT] = latencies.getTotal().getTotalCount();
+			sample[StatsHistory.LATENCY_SUM] = latencies.getTotal().getSum();
+			sample[StatsHistory.QUEUE_DEPTH] = workQueue.size();
+			sample[StatsHistory.QUEUE_AGE] = workQueue.getOldestAge();
+			history.append(app.getName(), sample);
 			
-			addRequestCounter(app, buffer);
+			for (int i=StatsHistory.SUCCESS;i<StatsHistory.QUEUE_AGE;i++)
+				all[i] += sample[i];
+			all[StatsHistory.QUEUE_AGE] = Math.max(all[StatsHistory.QUEUE_AGE], sample[StatsHistory.QUEUE_AGE]);
+		}
+		all[StatsHistory.TIME] = time;
+		all[StatsHistory.REQUESTS] = allinfo.requests.getCount();
+		history.append(StatsHistory.ALL, all);
+	}
+
+	/*
+	 * Notifies the observers of all stats resources.
+	 */
+	private void notifyObservers() {
+		changed();
+		outbound.changed();
+		for (AppStatsResource appres:appresources.values()) {
+			appres.changed();
+			appres.latency.changed();
+			appres.queue.changed();
 		}
-		request.respond(CodeRegistry.RESP_CONTENT, buffer.toString());
 	}
 
 	/**
-	 * Add information about the Threads executing the apps. This might be
-	 * removed if not useful.
+	 * Adds information about the app instance and the threads executing it.
+	 * The CPU time is accounted per app, since apps on event loops share
+	 * their threads.
 	 */
-	private void addThreadInfos(AbstractApp app, StringBuffer buffer) {
+	private void addAppInfos(AbstractApp app, Map<String, Object> stats) {
 		long startts = app.getStartTimestamp();
 		long stopts = app.getStopTimestamp();
-		if (startts==0) {
-			buffer.append("\n\tStart time: not yet");
-		} else {
-			buffer.append("\n\tStart time: "+new SimpleDateFormat("kk:mm:ss - dd.MM.yyyy").format(new Date(startts)));
-		}
-		if (stopts==0) {
-			buffer.append("\n\tStop time: not yet");
-		} else {
-			buffer.append("\n\tStop time: "+new SimpleDateFormat("kk:mm:ss - dd.MM.yyyy").format(new Date(stopts)));
-		}
+		stats.put("start", startts!=0 ? startts : null);
+		stats.put("stop", stopts!=0 ? stopts : null);
 		
 		long id = app.getRunningThreadId();
-		if (id==-1) {
-			buffer.append("\n\tExecuting thread: not available");
-		} else {
-			buffer.append("\n\tExecuting thread id: "+id);
-			ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
-			if (threadBean.isThreadCpuTimeSupported() && threadBean.isThreadCpuTimeEnabled()) {
-				long cputime = threadBean.getThreadCpuTime(id);
-				if (cputime==-1) {
-					buffer.append("\n\tExecuting thread cpu time: already finished");
-				} else {
-					buffer.append("\n\tExecuting thread cpu time: "+cputime/1000000000d+" s");
-				}
-			} else {
-				buffer.append("\n\tExecuting thread cpu time: not available");
-			}
+		stats.put("thread", id!=-1 ? id : null);
+		if (app.getEventLoopGroup()!=null) {
+			stats.put("event_loops", app.getEventLoopGroup().getThreadCount());
 		}
+		
+		long cputime = app.getCpuTime();
+		stats.put("cpu_time", cputime!=-1 ? cputime/1000000000d : null); // s
+		stats.put("aborted", app.getCpuBudget().getAborted());
+		
+		long allocated = app.getHeapAccount().getAllocatedBytes();
+		long scopesize = app.getHeapAccount().getScopeSize();
+		stats.put("allocated", allocated!=-1 ? allocated : null); // bytes
+		stats.put("scope_size", scopesize!=-1 ? scopesize : null); // bytes, estimated
+		
+		AppInfo appinfo = appinfos.get(app.getName());
+		if (appinfo==null)
+			appinfo = new AppInfo();
+		counters(appinfo, stats);
+		stats.put("responses", responses(app.getLatencyStats().getAppLatencies()));
+		stats.put("coalesced", app.getCoalescedRequests());
+		stats.put("cache_hits", app.getResponseCache().getHits());
+		stats.put("cache_misses", app.getResponseCache().getMisses());
+	}
+
+	private static Map<String, Object> counters(AppInfo info, Map<String, Object> stats) {
+		stats.put("get", info.getreqcount.sum());
+		stats.put("post", info.postreqcount.sum());
+		stats.put("put", info.putreqcount.sum());
+		stats.put("delete", info.deletereqcount.sum());
+		stats.put("payload", info.payloadsum.sum()); // bytes
+		stats.put("rate", rates(info.requests));
+		return stats;
+	}
+
+	/*
+	 * Returns the count and rates of the responses per code class.
+	 */
+	private static Map<String, Object> responses(Latencies latencies) {
+		Map<String, Object> stats = new LinkedHashMap<String, Object>();
+		stats.put("2.xx", rates(latencies.getSuccess()));
+		stats.put("4.xx", rates(latencies.getClientErrors()));
+		stats.put("5.xx", rates(latencies.getServerErrors()));
+		return stats;
+	}
+
+	private static Map<String, Object> rates(RateMeter meter) {
+		Map<String, Object> stats = new LinkedHashMap<String, Object>();
+		stats.put("count", meter.getCount());
+		stats.put("1s", meter.getOneSecondRate()); // per s
+		stats.put("1m", meter.getOneMinuteRate());
+		stats.put("5m", meter.getFiveMinuteRate());
+		stats.put("15m", meter.getFifteenMinuteRate());
+		return stats;
 	}
 
 	/**
-	 * Recursively adds the reqeust counters for every subresource of the given
-	 * resource
-	 * 
-	 * @param res - the resource
-	 * @param buffer - the buffer to which the text is added to
+	 * Returns the queue wait, execution time and total latency of the
+	 * requests to the specified app instance and to each of its subresources.
 	 */
-	private void addRequestCounter(Resource res, StringBuffer buffer) {
-		String respath = res.getPath();
-		buffer.append("\n\t"+respath+":");
-		ResourceInfo resinfo = resinfos.get(respath);
-		if (resinfo==null) {
-			buffer.append("\n\t\tGET requests: 0" +
-					"\n\t\tPOST requests: 0" +
-					"\n\t\tPUT requests: 0" +
-					"\n\t\tDELETE requests: 0" +
-					"\n\t\tPayload: 0 bytes");
-		} else {
-			buffer.append("\n\t\tGET request: "+resinfo.getreqcount);
-			buffer.append("\n\t\tPOST request: "+resinfo.postreqcount);
-			buffer.append("\n\t\tPUT request: "+resinfo.putreqcount);
-			buffer.append("\n\t\tDELETE request: "+resinfo.deletereqcount);
-			buffer.append("\n\t\tPayload: "+resinfo.payloadsum+" bytes");
-		}
-		for (Resource r:res.getSubResources()) {
-			addRequestCounter(r,buffer);
+	private static Map<String, Object> latencies(AbstractApp app, Long time) {
+		LatencyStats latencyStats = app.getLatencyStats();
+		Map<String, Object> stats = new LinkedHashMap<String, Object>();
+		stats.put("time", time);
+		stats.put("app", latencies(latencyStats.getAppLatencies()));
+		Map<String, Object> resources = new TreeMap<String, Object>();
+		for (Latencies latencies:latencyStats.getResourceLatencies().values()) {
+			resources.put(latencies.getPath(), latencies(latencies));
 		}
+		stats.put("resources", resources);
+		return stats;
+	}
+
+	private static Map<String, Object> latencies(Latencies latencies) {
+		Map<String, Object> stats = new LinkedHashMap<String, Object>();
+		stats.put("queue_wait", percentiles(latencies.getQueueWait()));
+		stats.put("execution", percentiles(latencies.getExecution()));
+		stats.put("total", percentiles(latencies.getTotal()));
+		return stats;
+	}
+
+	private static Map<String, Object> percentiles(LatencyHistogram histogram) {
+		Map<String, Object> stats = new LinkedHashMap<String, Object>();
+		stats.put("count", histogram.getTotalCount());
+		stats.put("p50", histogram.getValueAtPercentile(50));
+		stats.put("p90", histogram.getValueAtPercentile(90));
+		stats.put("p99", histogram.getValueAtPercentile(99));
+		stats.put("max", histogram.getMax());
+		return stats;
 	}
 
 	/**
@@ -261,17 +617,324 @@ public class StatsResource extends LocalResource {
 		}
 	}
 
+	/**
+	 * Responds with the latest snapshot of some stats.
+	 */
+	private class SnapshotResource extends LocalResource {
+		
+		protected volatile StatsSnapshot snapshot; // null until refreshed
+		
+		private SnapshotResource(String identifier) {
+			super(identifier);
+			isObservable(true);
+		}
+		
+		@Override
+		public void performGET(GETRequest request) {
+			if (interval<=0)
+				refresh();
+			StatsSnapshot current = snapshot;
+			if (current==null) {
+				request.respond(CodeRegistry.RESP_NOT_FOUND);
+			} else {
+				current.respond(request);
+			}
+		}
+	}
+	
+	/**
+	 * Responds with the history of an app or of the whole server. The query
+	 * may specify the app, the time since when in ms and the length of a step
+	 * in seconds.
+	 */
+	private class HistoryResource extends LocalResource {
+		
+		private HistoryResource() {
+			super(HISTORY);
+		}
+		
+		@Override
+		public void performGET(GETRequest request) {
+			String app = StatsHistory.ALL;
+			long now = System.currentTimeMillis();
+			long since = now - HISTORY_RANGE;
+			long step = -1; // ms
+			String query = request.getQuery();
+			try {
+				if (query!=null) {
+					for (String param:query.split("&")) {
+						int eq = param.indexOf('=');
+						String key = eq>=0 ? param.substring(0, eq) : param;
+						String value = eq>=0 ? param.substring(eq+1) : "";
+						if (key.equals("app")) app = value;
+						else if (key.equals("since")) since = Long.parseLong(value);
+						else if (key.equals("step")) step = Long.parseLong(value) * 1000;
+					}
+				}
+			} catch (NumberFormatException e) {
+				request.respond(CodeRegistry.RESP_BAD_REQUEST, "Invalid since or step: "+query);
+				return;
+			}
+			if (step<=0)
+				step = Math.max(HISTORY_STEP, (now - since) / HISTORY_STEPS);
+			
+			Map<String, Object> series = null;
+			if (app.equals(StatsHistory.ALL) || appinfos.containsKey(app))
+				series = history.query(app, since, step);
+			if (series==null) {
+				request.respond(CodeRegistry.RESP_NOT_FOUND, "No history of "+app);
+			} else {
+				new StatsSnapshot(series).respond(request);
+			}
+		}
+	}
+	
+	/**
+	 * Responds with the recorded events, oldest first. The query may specify
+	 * the app, whose events to respond with.
+	 */
+	private class EventsResource extends LocalResource {
+		
+		private EventsResource() {
+			super(EVENTS);
+		}
+		
+		@Override
+		public void performGET(GETRequest request) {
+			if (!EventRecorder.isRecording()) {
+				request.respond(CodeRegistry.RESP_NOT_FOUND, "Event recording is off");
+				return;
+			}
+			String app = null;
+			String query = request.getQuery();
+			if (query!=null && query.startsWith("app="))
+				app = query.substring("app=".length());
+			
+			List<Object> events = new ArrayList<Object>();
+			for (Event event:EventRecorder.getEvents()) {
+				if (app!=null && !app.equals(event.getApp()))
+					continue;
+				Map<String, Object> stats = new LinkedHashMap<String, Object>();
+				stats.put("type", event.getType());
+				stats.put("time", event.getTime()); // ms
+				stats.put("duration", event.getDuration()); // us
+				stats.put("thread", event.getThread());
+				stats.put("app", event.getApp());
+				stats.put("path", event.getPath());
+				stats.put("method", event.getMethod());
+				stats.put("payload", event.getPayload()); // bytes
+				events.add(stats);
+			}
+			Map<String, Object> stats = new LinkedHashMap<String, Object>();
+			stats.put("time", System.currentTimeMillis());
+			stats.put("events", events);
+			new StatsSnapshot(stats).respond(request);
+		}
+	}
+	
+	/**
+	 * Responds with the slow handlers of all apps, oldest first. The query
+	 * may specify the app, whose slow handlers to respond with.
+	 */
+	private class SlowHandlersResource extends LocalResource {
+		
+		private SlowHandlersResource() {
+			super(SLOW);
+		}
+		
+		@Override
+		public void performGET(GETRequest request) {
+			String app = null;
+			String query = request.getQuery();
+			if (query!=null && query.startsWith("app="))
+				app = query.substring("app=".length());
+			
+			List<SlowHandlerLog.Entry> entries = new ArrayList<SlowHandlerLog.Entry>();
+			for (AbstractApp a:manager.getAllApps()) {
+				if (app==null || app.equals(a.getName()))
+					entries.addAll(a.getSlowHandlerLog().getEntries());
+			}
+			Collections.sort(entries, new Comparator<SlowHandlerLog.Entry>() {
+				public int compare(SlowHandlerLog.Entry e1, SlowHandlerLog.Entry e2) {
+					return e1.getTime()<e2.getTime() ? -1 : (e1.getTime()==e2.getTime() ? 0 : 1);
+				}
+			});
+			
+			List<Object> slow = new ArrayList<Object>();
+			for (SlowHandlerLog.Entry entry:entries) {
+				Map<String, Object> stats = new LinkedHashMap<String, Object>();
+				stats.put("time", entry.getTime()); // ms
+				stats.put("app", entry.getApp());
+				stats.put("path", entry.getPath());
+				stats.put("method", entry.getMethod());
+				stats.put("duration", entry.getDuration()); // ms
+				stats.put("line", entry.getLine());
+				stats.put("stack", entry.getStack());
+				slow.add(stats);
+			}
+			Map<String, Object> stats = new LinkedHashMap<String, Object>();
+			stats.put("time", System.currentTimeMillis());
+			stats.put("slow", slow);
+			new StatsSnapshot(stats).respond(request);
+		}
+	}
+	
+	/**
+	 * Responds with the stats of a single app instance. Its subresources
+	 * respond with the latency percentiles and the queue gauges of the app.
+	 */
+	private class AppStatsResource extends SnapshotResource {
+		
+		private final SnapshotResource latency;
+		private final SnapshotResource queue;
+		
+		// the queue's counters at the last refresh to compute the rates
+		private long lastTime; // ms
+		private long lastEnqueued;
+		private long lastDequeued;
+		
+		private AppStatsResource(String appname) {
+			super(appname);
+			this.latency = new SnapshotResource("latency");
+			this.queue = new SnapshotResource("queue");
+			add(latency);
+			add(queue);
+		}
+		
+		/*
+		 * Returns the gauges of the app's queue. The rates are per second
+		 * since the last refresh. Must hold the lock of the StatsResource.
+		 */
+		private Map<String, Object> queue(AbstractApp app, Long time) {
+			WorkQueue workQueue = app.getWorkQueue();
+			long enqueued = workQueue.getEnqueued();
+			long dequeued = workQueue.getDequeued();
+			double elapsed = (time - lastTime) / 1000d; // s
+			
+			Map<String, Object> stats = new LinkedHashMap<String, Object>();
+			stats.put("time", time);
+			stats.put("depth", workQueue.size());
+			Map<String, Object> lanes = new LinkedHashMap<String, Object>();
+			for (int i=0;i<WorkQueue.LANES;i++)
+				lanes.put(WorkQueue.LANE_NAMES[i], workQueue.size(i));
+			stats.put("lanes", lanes);
+			stats.put("capacity", workQueue.getCapacity());
+			stats.put("high_water", workQueue.getHighWaterMark());
+			stats.put("oldest_age", workQueue.getOldestAge()); // ms
+			stats.put("enqueued", enqueued);
+			stats.put("dequeued", dequeued);
+			stats.put("enqueue_rate", lastTime>0 && elapsed>0 ? (enqueued - lastEnqueued) / elapsed : null); // per s
+			stats.put("dequeue_rate", lastTime>0 && elapsed>0 ? (dequeued - lastDequeued) / elapsed : null); // per s
+			stats.put("overloaded", app.isOverloaded());
+			
+			AdmissionControl admission = app.getAdmissionControl();
+			Map<String, Object> shed = new LinkedHashMap<String, Object>();
+			shed.put("age", admission.getShedAge());
+			shed.put("rate", admission.getShedRate());
+			shed.put("non", admission.getShedNON());
+			shed.put("full", workQueue.getOverflowed());
+			stats.put("shed", shed);
+			
+			lastTime = time;
+			lastEnqueued = enqueued;
+			lastDequeued = dequeued;
+			return stats;
+		}
+	}
+	
+	/**
+	 * Refreshes the snapshot and notifies the observers every interval.
+	 */
+	private class Refresher extends Thread {
+		
+		private Refresher() {
+			super("StatsRefresher");
+			setDaemon(true);
+		}
+		
+		public void run() {
+			while (true) {
+				try {
+					synchronized (intervalChanged) {
+						intervalChanged.wait(interval>0 ? interval : 0);
+					}
+				} catch (InterruptedException e) {
+					break;
+				}
+				if (interval>0) {
+					try {
+						refresh();
+						notifyObservers();
+					} catch (RuntimeException e) {
+						// the refresher must not stop
+						e.printStackTrace();
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Appends a sample to the history every HISTORY_STEP ms.
+	 */
+	private class Sampler extends Thread {
+		
+		private Sampler() {
+			super("StatsSampler");
+			setDaemon(true);
+		}
+		
+		public void run() {
+			long next = System.currentTimeMillis() + HISTORY_STEP;
+			while (!isInterrupted()) { // see stop()
+				try {
+					long delay = next - System.currentTimeMillis();
+					if (delay>0)
+						Thread.sleep(delay);
+				} catch (InterruptedException e) {
+					break;
+				}
+				try {
+					sample();
+				} catch (RuntimeException e) {
+					// the sampler must not stop
+					e.printStackTrace();
+				}
+				// at a fixed rate, but skip the steps that have been missed
+				next += HISTORY_STEP;
+				long now = System.currentTimeMillis();
+				if (next<=now)
+					next = now + HISTORY_STEP;
+			}
+		}
+	}
+
 	/**
 	 * Holds the information about an app instance, i.e. the counters for
 	 * received GET, POST, PUT and DELETE requests to the app instance's root
-	 * resource directly or its subresources.
+	 * resource directly or its subresources and their current rate.
 	 */
-	private class AppInfo {
-		private int getreqcount;
-		private int postreqcount;
-		private int putreqcount;
-		private int deletereqcount;
-		private int payloadsum;
+	static class AppInfo {
+		final StripedCounter getreqcount = new StripedCounter();
+		final StripedCounter postreqcount = new StripedCounter();
+		final StripedCounter putreqcount = new StripedCounter();
+		final StripedCounter deletereqcount = new StripedCounter();
+		final StripedCounter payloadsum = new StripedCounter();
+		final RateMeter requests = new RateMeter();
+		
+		void record(Request request, int payloadSize) {
+			requests.mark();
+			payloadsum.add(payloadSize);
+			if (request instanceof GETRequest) {
+				getreqcount.increment();
+			} else if (request instanceof POSTRequest) {
+				postreqcount.increment();
+			} else if (request instanceof PUTRequest) {
+				putreqcount.increment();
+			} else if (request instanceof DELETERequest) {
+				deletereqcount.increment();
+			}
+		}
 	}
 
 	/**
@@ -279,13 +942,8 @@ public class StatsResource extends LocalResource {
 	 * GET, POST, PUT and DELETE requests and the name of the app the resource
 	 * belongs to.
 	 */
-	private class ResourceInfo {
-		private String appname; // null if this info doesn't correspond to any app
-		private int getreqcount;
-		private int postreqcount;
-		private int putreqcount;
-		private int deletereqcount;
-		private int payloadsum;
+	static class ResourceInfo extends AppInfo {
+		private final String appname; // null if this info doesn't correspond to any app
 		
 		private ResourceInfo(String appname) {
 			this.appname = appname;
@@ -0,0 +1,269 @@
+package ch.ethz.inf.vs.actinium;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.List;
+import java.util.Map;
+
+import ch.ethz.inf.vs.californium.coap.CodeRegistry;
+import ch.ethz.inf.vs.californium.coap.GETRequest;
+import ch.ethz.inf.vs.californium.coap.MediaTypeRegistry;
+import ch.ethz.inf.vs.californium.coap.Option;
+import ch.ethz.inf.vs.californium.coap.OptionNumberRegistry;
+import ch.ethz.inf.vs.californium.coap.Response;
+
+/**
+ * StatsSnapshot holds the stats at a point in time as a tree of maps. The
+ * values are Numbers, Strings, Booleans, nested maps, lists or null. A snapshot can
+ * be represented as plain text, JSON or CBOR (RFC 7049). Each representation
+ * is encoded once, when it is first requested, and then reused for every
+ * further request and notification.
+ *
+ * @author Martin Lanter
+ */
+public class StatsSnapshot {
+
+	// not yet in Californium's MediaTypeRegistry
+	public static final int APPLICATION_CBOR = 60;
+
+	private final Map<String, Object> stats;
+
+	private volatile String text;
+	private volatile String json;
+	private volatile byte[] cbor;
+
+	/**
+	 * Constructs a new StatsSnapshot of the specified stats, which must not
+	 * change anymore.
+	 *
+	 * @param stats the stats
+	 */
+	public StatsSnapshot(Map<String, Object> stats) {
+		this.stats = stats;
+	}
+
+	/**
+	 * Returns the stats of this snapshot.
+	 *
+	 * @return the stats
+	 */
+	public Map<String, Object> getStats() {
+		return stats;
+	}
+
+	/**
+	 * Responds to the specified request with the first representation of the
+	 * request's Accept options, that is supported: text/plain (also if there
+	 * is no Accept option), application/json or application/cbor. If none is
+	 * supported, the request is responded with 4.06 Not Acceptable.
+	 *
+	 * @param request the request
+	 */
+	public void respond(GETRequest request) {
+		List<Option> accepts = request.getOptions(OptionNumberRegistry.ACCEPT);
+		if (accepts==null || accepts.isEmpty()) {
+			request.respond(CodeRegistry.RESP_CONTENT, getText(), MediaTypeRegistry.TEXT_PLAIN);
+			return;
+		}
+		for (Option accept:accepts) {
+			switch (accept.getIntValue()) {
+			case MediaTypeRegistry.TEXT_PLAIN:
+				request.respond(CodeRegistry.RESP_CONTENT, getText(), MediaTypeRegistry.TEXT_PLAIN);
+				return;
+			case MediaTypeRegistry.APPLICATION_JSON:
+				request.respond(CodeRegistry.RESP_CONTENT, getJSON(), MediaTypeRegistry.APPLICATION_JSON);
+				return;
+			case APPLICATION_CBOR:
+				Response response = new Response(CodeRegistry.RESP_CONTENT);
+				response.setPayload(getCBOR());
+				response.setContentType(APPLICATION_CBOR);
+				request.respond(response);
+				return;
+			}
+		}
+		request.respond(CodeRegistry.RESP_NOT_ACCEPTABLE);
+	}
+
+	/**
+	 * Returns the stats as indented lines of the form "key: value".
+	 *
+	 * @return the stats as text
+	 */
+	public String getText() {
+		String t = text;
+		if (t==null) {
+			StringBuilder buffer = new StringBuilder();
+			appendText(stats, "", buffer);
+			text = t = buffer.toString();
+		}
+		return t;
+	}
+
+	/**
+	 * Returns the stats as JSON object.
+	 *
+	 * @return the stats as JSON
+	 */
+	public String getJSON() {
+		String j = json;
+		if (j==null) {
+			StringBuilder buffer = new StringBuilder();
+			appendJSON(stats, buffer);
+			json = j = buffer.toString();
+		}
+		return j;
+	}
+
+	/**
+	 * Returns the stats as CBOR map.
+	 *
+	 * @return the stats as CBOR
+	 */
+	public byte[] getCBOR() {
+		byte[] c = cbor;
+		if (c==null) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			writeCBOR(stats, out);
+			cbor = c = out.toByteArray();
+		}
+		return c;
+	}
+
+	private static void appendText(Map<String, Object> map, String indent, StringBuilder buffer) {
+		for (Map.Entry<String, Object> entry:map.entrySet()) {
+			if (buffer.length()>0)
+				buffer.append('\n');
+			buffer.append(indent).append(entry.getKey()).append(':');
+			appendText(entry.getValue(), indent, buffer);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static void appendText(Object value, String indent, StringBuilder buffer) {
+		if (value instanceof Map) {
+			appendText((Map<String, Object>) value, indent+"\t", buffer);
+		} else if (value instanceof List) {
+			for (Object element:(List<Object>) value) {
+				buffer.append('\n').append(indent).append("\t-");
+				appendText(element, indent+"\t", buffer);
+			}
+		} else {
+			buffer.append(' ').append(value!=null ? value : "-");
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static void appendJSON(Object value, StringBuilder buffer) {
+		if (value instanceof Map) {
+			buffer.append('{');
+			boolean first = true;
+			for (Map.Entry<String, Object> entry:((Map<String, Object>) value).entrySet()) {
+				if (!first)
+					buffer.append(',');
+				first = false;
+				appendJSONString(entry.getKey(), buffer);
+				buffer.append(':');
+				appendJSON(entry.getValue(), buffer);
+			}
+			buffer.append('}');
+		} else if (value instanceof List) {
+			buffer.append('[');
+			boolean first = true;
+			for (Object element:(List<Object>) value) {
+				if (!first)
+					buffer.append(',');
+				first = false;
+				appendJSON(element, buffer);
+			}
+			buffer.append(']');
+		} else if (value instanceof String) {
+			appendJSONString((String) value, buffer);
+		} else if (value instanceof Double || value instanceof Float) {
+			double d = ((Number) value).doubleValue();
+			buffer.append(Double.isNaN(d) || Double.isInfinite(d) ? "null" : Double.toString(d));
+		} else {
+			buffer.append(value); // numbers, booleans and null
+		}
+	}
+
+	private static void appendJSONString(String string, StringBuilder buffer) {
+		buffer.append('"');
+		for (int i=0;i<string.length();i++) {
+			char c = string.charAt(i);
+			if (c=='"' || c=='\\') {
+				buffer.append('\\').append(c);
+			} else if (c<0x20) {
+				buffer.append(String.format("\\u%04x", (int) c));
+			} else {
+				buffer.append(c);
+			}
+		}
+		buffer.append('"');
+	}
+
+	@SuppressWarnings("unchecked")
+	private static void writeCBOR(Object value, ByteArrayOutputStream out) {
+		if (value instanceof Map) {
+			Map<String, Object> map = (Map<String, Object>) value;
+			writeCBORHead(5, map.size(), out);
+			for (Map.Entry<String, Object> entry:map.entrySet()) {
+				writeCBOR(entry.getKey(), out);
+				writeCBOR(entry.getValue(), out);
+			}
+		} else if (value instanceof List) {
+			List<Object> list = (List<Object>) value;
+			writeCBORHead(4, list.size(), out);
+			for (Object element:list)
+				writeCBOR(element, out);
+		} else if (value instanceof String) {
+			byte[] utf8;
+			try {
+				utf8 = ((String) value).getBytes("UTF-8");
+			} catch (UnsupportedEncodingException e) {
+				throw new RuntimeException(e); // UTF-8 is always supported
+			}
+			writeCBORHead(3, utf8.length, out);
+			out.write(utf8, 0, utf8.length);
+		} else if (value instanceof Double || value instanceof Float) {
+			long bits = Double.doubleToLongBits(((Number) value).doubleValue());
+			out.write(0xfb);
+			for (int shift=56;shift>=0;shift-=8)
+				out.write((int) (bits >>> shift));
+		} else if (value instanceof Number) {
+			long l = ((Number) value).longValue();
+			if (l>=0)
+				writeCBORHead(0, l, out);
+			else
+				writeCBORHead(1, -1 - l, out);
+		} else if (value instanceof Boolean) {
+			out.write((Boolean) value ? 0xf5 : 0xf4);
+		} else {
+			out.write(0xf6); // null
+		}
+	}
+
+	/*
+	 * Writes the major type and the argument with the shortest encoding.
+	 */
+	private static void writeCBORHead(int major, long argument, ByteArrayOutputStream out) {
+		int type = major << 5;
+		if (argument<24) {
+			out.write(type | (int) argument);
+		} else if (argument<=0xff) {
+			out.write(type | 24);
+			out.write((int) argument);
+		} else if (argument<=0xffff) {
+			out.write(type | 25);
+			out.write((int) (argument >>> 8));
+			out.write((int) argument);
+		} else if (argument<=0xffffffffL) {
+			out.write(type | 26);
+			for (int shift=24;shift>=0;shift-=8)
+				out.write((int) (argument >>> shift));
+		} else {
+			out.write(type | 27);
+			for (int shift=56;shift>=0;shift-=8)
+				out.write((int) (argument >>> shift));
+		}
+	}
+}
@@ -0,0 +1,146 @@
+package ch.ethz.inf.vs.actinium;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * StripedCounter is a 64-bit counter for many concurrently counting threads,
+ * similar to java.util.concurrent.atomic.LongAdder of Java 8. As long as
+ * threads do not contend, they add to a single base value. When they do, the
+ * counter is split into cells, each on a cache line of its own, and every
+ * thread adds to the cell of its hash. On further contention, a thread moves
+ * to another cell and the number of cells grows up to the number of
+ * processors.
+ * <p>
+ * Any number of threads may add to and read the counter concurrently without
+ * locking. Reading sums up all cells without blocking the counting threads.
+ * While threads count, the sum is a snapshot, that is not necessarily exact.
+ *
+ * @author Martin Lanter
+ */
+public class StripedCounter {
+
+	private static final int MAX_CELLS;
+	static {
+		int n = 1;
+		while (n<Runtime.getRuntime().availableProcessors())
+			n <<= 1;
+		MAX_CELLS = n;
+	}
+
+	// the hash of the current thread to choose a cell
+	private static final ThreadLocal<int[]> PROBE = new ThreadLocal<int[]>() {
+		private int seed = 0x9E3779B9;
+		@Override
+		protected synchronized int[] initialValue() {
+			seed += 0x61C88647;
+			return new int[] { seed | 1 };
+		}
+	};
+
+	private final Cell base;
+	private volatile Cell[] cells; // null until threads contend
+
+	/**
+	 * Constructs a new StripedCounter with the value 0.
+	 */
+	public StripedCounter() {
+		this.base = new Cell();
+	}
+
+	/**
+	 * Increments the counter by one.
+	 */
+	public void increment() {
+		add(1);
+	}
+
+	/**
+	 * Adds the specified value to the counter.
+	 *
+	 * @param x the value to add
+	 */
+	public void add(long x) {
+		Cell[] cs = cells;
+		if (cs==null) {
+			long b = base.get();
+			if (base.compareAndSet(b, b + x))
+				return;
+			cs = grow(null);
+		}
+		int[] probe = PROBE.get();
+		Cell cell = cs[probe[0] & (cs.length - 1)];
+		long v = cell.get();
+		if (cell.compareAndSet(v, v + x))
+			return;
+
+		// contended: move to another cell and spread out, if possible
+		probe[0] = rehash(probe[0]);
+		cs = grow(cs);
+		cs[probe[0] & (cs.length - 1)].addAndGet(x);
+	}
+
+	/**
+	 * Returns the sum of the counter.
+	 *
+	 * @return the sum
+	 */
+	public long sum() {
+		long sum = base.get();
+		Cell[] cs = cells;
+		if (cs!=null) {
+			for (Cell cell:cs)
+				sum += cell.get();
+		}
+		return sum;
+	}
+
+	/**
+	 * Sets the counter to 0. Additions concurrent to the reset may be lost.
+	 */
+	public void reset() {
+		base.set(0);
+		Cell[] cs = cells;
+		if (cs!=null) {
+			for (Cell cell:cs)
+				cell.set(0);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return Long.toString(sum());
+	}
+
+	/*
+	 * Creates the cells or doubles their number, if the specified cells are
+	 * still the current ones and there are less than MAX_CELLS.
+	 */
+	private synchronized Cell[] grow(Cell[] expected) {
+		Cell[] cs = cells;
+		if (cs!=expected || (cs!=null && cs.length>=MAX_CELLS))
+			return cs;
+		int n = cs==null ? 2 : cs.length << 1;
+		Cell[] grown = new Cell[n];
+		for (int i=0;i<n;i++)
+			grown[i] = cs!=null && i<cs.length ? cs[i] : new Cell();
+		cells = grown;
+		return grown;
+	}
+
+	private static int rehash(int h) {
+		// xorshift
+		h ^= h << 13;
+		h ^= h >>> 17;
+		h ^= h << 5;
+		return h;
+	}
+
+	/*
+	 * An AtomicLong padded to a cache line of its own.
+	 */
+	@SuppressWarnings("unused")
+	private static class Cell extends AtomicLong {
+		private static final long serialVersionUID = -4291347215087218932L;
+		private volatile long p1, p2, p3, p4, p5, p6, p7;
+	}
+}
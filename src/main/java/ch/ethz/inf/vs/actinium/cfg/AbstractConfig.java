@@ -11,6 +11,7 @@ import java.util.HashSet;
 import java.util.Observable;
 import java.util.Properties;
 
+import ch.ethz.inf.vs.actinium.RouteTable;
 import ch.ethz.inf.vs.californium.coap.CodeRegistry;
 import ch.ethz.inf.vs.californium.coap.DELETERequest;
 import ch.ethz.inf.vs.californium.coap.GETRequest;
@@ -165,6 +166,7 @@ public abstract class AbstractConfig extends Properties {
 		if (!success)
 			throw new IOException("The config file "+configPath+" couldn't be deleted. Make sure, no other process is accessing it");
 		
+		RouteTable.invalidate(cfgres.getPath());
 		cfgres.remove();
 	
 	}
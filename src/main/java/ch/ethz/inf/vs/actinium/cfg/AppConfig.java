@@ -52,6 +52,36 @@ public class AppConfig extends AbstractConfig {
 	
 	public static final String ENABLE_REQUEST_DELIVERY = "enable_request_delivery";
 	
+	public static final String QUEUE_CAPACITY = "queue_capacity"; // the maximal amount of waiting requests and tasks (0 for unbounded)
+	public static final String QUEUE_BATCH_SIZE = "queue_batch_size"; // the amount of tasks the app's thread executes in one go
+	public static final String QUEUE_OVERFLOW = "queue_overflow"; // what happens if the queue is full. Allowed are {reject, drop_oldest_non, block}
+	public static final String OVERFLOW_REJECT = "reject"; // respond with 5.03 and Max-Age
+	public static final String OVERFLOW_DROP_OLDEST_NON = "drop_oldest_non"; // drop the oldest non-confirmable request
+	public static final String OVERFLOW_BLOCK = "block"; // block the thread delivering a request until there is room
+	public static final String OVERLOAD_MAX_AGE = "overload_max_age"; // Max-Age in seconds for responses 5.03 of an overloaded app
+	public static final String QUEUE_MAX_AGE = "queue_max_age"; // ms the oldest waiting request may wait before new requests are rejected (0 for unlimited)
+	public static final String QUEUE_SCHEDULING = "queue_scheduling"; // how the app's thread takes tasks from the lanes of its queue. Allowed are {fair, priority}
+	public static final String SCHEDULING_FAIR = "fair"; // round robin with up to queue_weights tasks of a lane in a row
+	public static final String SCHEDULING_PRIORITY = "priority"; // internal tasks before responses before requests before timers
+	public static final String QUEUE_WEIGHTS = "queue_weights"; // the weights of the lanes internal, response, request and timer, e.g. 1,1,4,1
+	public static final String ADMISSION_RATE = "admission_rate"; // requests per second admitted to the app (0 for unlimited)
+	public static final String ADMISSION_BURST = "admission_burst"; // requests admitted at once above admission_rate
+	public static final String SHED_NON_FIRST = "shed_non_first"; // true, if non-confirmable requests are rejected at half the admission limits already
+	
+	public static final String RESPONSE_CACHE_SIZE = "response_cache_size"; // the maximal amount of cached GET responses (0 to disable the cache)
+	
+	public static final String COALESCE_GET = "coalesce_get"; // true, if identical concurrent GET requests shall be handled only once
+	
+	public static final String CPU_BUDGET_INVOCATION = "cpu_budget_invocation"; // CPU time in ms for a single handler, timeout or the app's code (0 for unlimited)
+	public static final String CPU_BUDGET_APP = "cpu_budget_app"; // CPU time in ms for all tasks of the app within a period (0 for unlimited)
+	public static final String CPU_BUDGET_PERIOD = "cpu_budget_period"; // the period of cpu_budget_app in ms
+	
+	public static final String MEMORY_CHECK_PERIOD = "memory_check_period"; // ms between estimating the scope size and checking the memory limits (0 to disable)
+	public static final String ALLOCATION_LIMIT = "allocation_limit"; // KB the app may allocate per memory_check_period (0 for unlimited)
+	public static final String SCOPE_SIZE_LIMIT = "scope_size_limit"; // estimated KB the app's scope may retain (0 for unlimited)
+	
+	public static final String SLOW_THRESHOLD = "slow_threshold"; // ms a handler or timeout may take before it is logged as slow with its script stack (0 to disable)
+	
 	public static final String RUNNING = "running"; // what state is desired. Allowed are {start, stop, restart}
 	public static final String START = "start";
 	public static final String STOP = "stop";
@@ -170,6 +200,25 @@ public class AppConfig extends AbstractConfig {
 		setProperty(ALLOW_OUTPUT, true);
 		setProperty(ALLOW_ERROR_OUTPUT, true);
 		setProperty(ENABLE_REQUEST_DELIVERY, true);
+		setProperty(QUEUE_CAPACITY, 1000);
+		setProperty(QUEUE_BATCH_SIZE, 16);
+		setProperty(QUEUE_OVERFLOW, OVERFLOW_REJECT);
+		setProperty(OVERLOAD_MAX_AGE, 2);
+		setProperty(QUEUE_MAX_AGE, 0);
+		setProperty(QUEUE_SCHEDULING, SCHEDULING_FAIR);
+		setProperty(QUEUE_WEIGHTS, "1,1,1,1");
+		setProperty(ADMISSION_RATE, 0);
+		setProperty(ADMISSION_BURST, 100);
+		setProperty(SHED_NON_FIRST, false);
+		setProperty(RESPONSE_CACHE_SIZE, 0);
+		setProperty(COALESCE_GET, false);
+		setProperty(CPU_BUDGET_INVOCATION, 0);
+		setProperty(CPU_BUDGET_APP, 0);
+		setProperty(CPU_BUDGET_PERIOD, 1000);
+		setProperty(MEMORY_CHECK_PERIOD, 10000);
+		setProperty(ALLOCATION_LIMIT, 0);
+		setProperty(SCOPE_SIZE_LIMIT, 0);
+		setProperty(SLOW_THRESHOLD, 100);
 		setProperty(RUNNING, STOP);
 		setProperty(DIR_PATH, "appserver/installed/");
 		setProperty(AVAILABILITY, AVAILABLE);
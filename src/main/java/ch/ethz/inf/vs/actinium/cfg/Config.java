@@ -23,12 +23,25 @@ public class Config extends AbstractConfig {
 	public static final String APP_PATH = "app_path"; // path to the apps
 	public static final String APP_CONFIG_PATH = "app_config_path"; // path to the configs of apps (which containt the filename)
 	public static final String APP_CONFIG_RESOURSES = "app_config_resources";
+	
+	public static final String SCRIPT_CACHE_PERSIST = "script_cache_persist"; // true, if compiled scripts shall be stored to disk
+	public static final String SCRIPT_CACHE_PATH = "script_cache_path"; // path to the compiled scripts
+	
+	public static final String EXECUTION_MODE = "execution_mode"; // how apps are executed. Allowed are {thread, event_loop}
+	public static final String EXECUTION_THREAD = "thread"; // every app has a thread of its own
+	public static final String EXECUTION_EVENT_LOOP = "event_loop"; // all apps share a fixed number of event loops
+	public static final String EVENT_LOOP_THREADS = "event_loop_threads"; // the number of event loops (0 for one per processor)
 
 	public static final String APPS_RESOURCE_ID = "apps_resource_id"; // identifier of AppResource
 	public static final String CONFIG_RESOURCE_ID = "config_resource_id"; // identifier of this config's resource
 	public static final String INSTALL_RESOURCE_ID = "install_resource_id"; // identifier of InstallResource
 	public static final String RUNNING_RESOURCE_ID = "running_resource_id"; // identifier of RunningResource
 	public static final String STATS_RESOURCE_ID = "stats_resource_id"; // identifier of StatsResource
+	public static final String STATS_INTERVAL = "stats_interval"; // ms between refreshing the stats and notifying their observers (0 to refresh on every request)
+	public static final String STATS_HISTORY_PATH = "stats_history_path"; // path to the per second history of the stats
+	public static final String STATS_HISTORY_SAMPLES = "stats_history_samples"; // number of seconds the history keeps per app
+	public static final String EVENT_RECORDING = "event_recording"; // true, if dispatch, handler, timer and outbound events shall be recorded
+	public static final String EVENT_CAPACITY = "event_capacity"; // number of the latest events the recording keeps
 	
 	/**
 	 * Constructs a new Config from the default path
@@ -56,6 +69,10 @@ public class Config extends AbstractConfig {
 		setProperty(APP_PATH, "appserver/installed/");
 		setProperty(APP_CONFIG_PATH, "appserver/apps/");
 		setProperty(JAVASCRIPT_SUFFIX, ".js");
+		setProperty(SCRIPT_CACHE_PERSIST, false);
+		setProperty(SCRIPT_CACHE_PATH, "appserver/compiled/");
+		setProperty(EXECUTION_MODE, EXECUTION_THREAD);
+		setProperty(EVENT_LOOP_THREADS, 0);
 		
 		setProperty(APPS_RESOURCE_ID, "apps");
 		setProperty(CONFIG_RESOURCE_ID, "config");
@@ -64,5 +81,10 @@ public class Config extends AbstractConfig {
 		setProperty(INSTALL_RESOURCE_ID, "install");
 		setProperty(RUNNING_RESOURCE_ID, "running");
 		setProperty(STATS_RESOURCE_ID, "stats");
+		setProperty(STATS_INTERVAL, 5000);
+		setProperty(STATS_HISTORY_PATH, "appserver/history/");
+		setProperty(STATS_HISTORY_SAMPLES, 21600); // 6 h
+		setProperty(EVENT_RECORDING, false);
+		setProperty(EVENT_CAPACITY, 10000);
 	}
 }
@@ -9,6 +9,7 @@ import java.util.Properties;
 import java.util.Scanner;
 
 import ch.ethz.inf.vs.actinium.AppManager;
+import ch.ethz.inf.vs.actinium.RouteTable;
 import ch.ethz.inf.vs.actinium.cfg.AppConfig;
 import ch.ethz.inf.vs.actinium.cfg.Config;
 import ch.ethz.inf.vs.californium.coap.CodeRegistry;
@@ -175,6 +176,7 @@ public class InstalledAppResource extends LocalResource {
 		try {
 			manager.deleteApps(name); // throws IOException if not successful (e.g. no write-access to config file)
 			deleteApp(); // throws IOException if not successful (e.g. no write-access to javascript file)
+			RouteTable.invalidate(getPath());
 			remove();
 			request.respond(CodeRegistry.RESP_DELETED);
 		} catch (IOException e) {
@@ -1,19 +1,37 @@
 package ch.ethz.inf.vs.actinium.jscoap;
 
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import org.mozilla.javascript.Context;
 import org.mozilla.javascript.Function;
 import org.mozilla.javascript.Scriptable;
 
+import ch.ethz.inf.vs.actinium.EventRecorder;
+import ch.ethz.inf.vs.actinium.plugnplay.CpuBudget.BudgetExceededError;
 import ch.ethz.inf.vs.californium.coap.Request;
 import ch.ethz.inf.vs.californium.coap.Response;
 
 /**
  * AbstractSender provides methods for calling JavaScript functions (listeners).
+ * It also records the outcome of the request in the OutboundStats of its
+ * destination and the events of the request: the sending, the response and
+ * the timeout (see EventRecorder).
  * 
  * @author Martin Lanter
  */
 public abstract class AbstractSender implements Sender {
 
+	// the app that sends the request, created by the app's thread
+	private final String appname = EventRecorder.currentApp();
+	
+	private volatile Request sent; // the request or null, written last by beginSend()
+	private String uri;
+	private String method;
+	private OutboundStats.Endpoint endpoint; // the stats of the destination
+	private long sendTime; // ns
+	private long sendStart; // ns, 0 if not recording events
+	private final AtomicBoolean completed = new AtomicBoolean(); // true after the first outcome
+
 	@Override
 	public abstract void send(Request request);
 	
@@ -34,6 +52,8 @@ public abstract class AbstractSender implements Sender {
 				Context cx = Context.enter();
 				Scriptable scope = function.getParentScope();
 				function.call(cx, scope, Context.toObject(thisobj, scope), args);
+			} catch (BudgetExceededError e) {
+				throw e; // abort the app's task
 			} catch (Throwable t) {
 				t.printStackTrace();
 			} finally {
@@ -42,6 +62,83 @@ public abstract class AbstractSender implements Sender {
 		}
 	}
 	
+	/**
+	 * Begins sending the specified request of the specified JavaScript
+	 * request. Must be called once before the request is executed.
+	 * 
+	 * @param request the request
+	 * @param coapRequest the JavaScript request
+	 */
+	protected void beginSend(Request request, CoAPRequest coapRequest) {
+		this.uri = coapRequest.uri;
+		this.method = coapRequest.method;
+		this.endpoint = OutboundStats.getInstance().getEndpoint(appname, uri);
+		this.sendTime = System.nanoTime();
+		this.sendStart = EventRecorder.begin();
+		this.sent = request;
+		endpoint.sent();
+	}
+	
+	/**
+	 * Records the event of sending the request, after it has been executed.
+	 */
+	protected void endSend() {
+		recordEvent(EventRecorder.SEND);
+	}
+	
+	/**
+	 * Records the response to the request.
+	 */
+	protected void responded() {
+		if (complete()) {
+			endpoint.responded((System.nanoTime() - sendTime) / 1000);
+			recordEvent(EventRecorder.RESPONSE);
+		}
+	}
+	
+	/**
+	 * Records the timeout of the request.
+	 */
+	protected void timedOut() {
+		if (complete()) {
+			endpoint.timedOut();
+			recordEvent(EventRecorder.TIMEOUT);
+		}
+	}
+	
+	/**
+	 * Records the abort of the request.
+	 */
+	protected void aborted() {
+		if (complete())
+			endpoint.aborted();
+	}
+	
+	/**
+	 * Records a network error of the request.
+	 */
+	protected void failed() {
+		if (complete())
+			endpoint.failed();
+	}
+	
+	/*
+	 * Returns true for the first outcome of a sent request only, so that the
+	 * request is in flight until then.
+	 */
+	private boolean complete() {
+		return sent!=null && !completed.getAndSet(true);
+	}
+	
+	private void recordEvent(String type) {
+		Request request = sent;
+		long start = sendStart;
+		if (start!=0 && request!=null) {
+			byte[] payload = request.getPayload();
+			EventRecorder.commit(type, start, appname, uri, method, payload!=null ? payload.length : 0);
+		}
+	}
+	
 	/**
 	 * Returns true, if the specified response only is an empty acknowledgement
 	 * @param response the response
@@ -1,12 +1,13 @@
 package ch.ethz.inf.vs.actinium.jscoap;
 
 import java.io.IOException;
-import java.util.Timer;
-import java.util.TimerTask;
 
 import org.mozilla.javascript.Function;
 
 import ch.ethz.inf.vs.actinium.jscoap.jserror.NetworkErrorException;
+import ch.ethz.inf.vs.actinium.plugnplay.HashedWheelTimer;
+import ch.ethz.inf.vs.actinium.plugnplay.HashedWheelTimer.Timeout;
+import ch.ethz.inf.vs.actinium.plugnplay.WorkQueue;
 import ch.ethz.inf.vs.californium.coap.Request;
 import ch.ethz.inf.vs.californium.coap.Response;
 import ch.ethz.inf.vs.californium.coap.ResponseHandler;
@@ -18,13 +19,22 @@ import ch.ethz.inf.vs.californium.coap.ResponseHandler;
  * <p>
  * Only one of the functions onload, ontimeout, onerror gets called (according
  * to the outcome of the request).
+ * <p>
+ * The functions of a response or timeout are delivered to the response lane
+ * of the queue of the app, that has sent the request. Thus, they are executed
+ * by the app's thread and not concurrently with other code of the app, and
+ * the receiver thread and timer thread do not execute JavaScript. A request
+ * sent outside of an app calls them directly.
  * 
  * @author Martin Lanter
  */
 
 public class AsynchronousSender extends AbstractSender {
 
-	private Timer timer = new Timer();
+	private volatile Timeout timeoutTask; // the scheduled timeout or null
+	
+	// the queue of the app, that sends the request, or null
+	private final WorkQueue queue = WorkQueue.current();
 	
 	private CoAPRequest coapRequest;
 	
@@ -56,17 +66,21 @@ public class AsynchronousSender extends AbstractSender {
 			}
 		});
 		
+		beginSend(request, coapRequest);
 		try {
 			request.execute();
 		} catch (IOException e) {
+			failed();
 			handleError(onerror);
 			throw new NetworkErrorException(e.toString());
+		} finally {
+			endSend();
 		}
 		
 		// TODO use TokenLayer timeout
 		if (timeout>0) {
-			timer.schedule(new TimerTask() {
-				public void run() { // this is always called in a new thread
+			timeoutTask = HashedWheelTimer.getInstance().schedule(new Runnable() {
+				public void run() { // this is called by the timer thread
 					boolean istimeout;
 					synchronized (lock) {
 						if (!lock.receivedresponse)
@@ -74,7 +88,12 @@ public class AsynchronousSender extends AbstractSender {
 						istimeout = !lock.receivedresponse && !lock.aborted;
 					}
 					if (istimeout) {
-						handleError(ontimeout);
+						timedOut();
+						dispatch(new Runnable() {
+							public void run() {
+								handleError(ontimeout);
+							}
+						});
 					}
 				}
 			}, timeout);
@@ -82,20 +101,26 @@ public class AsynchronousSender extends AbstractSender {
 	}
 	
 	// by ReceiverThread
-	private void handleAsyncResponse(Response response) {
+	private void handleAsyncResponse(final Response response) {
 		boolean callonready;
 		synchronized (lock) {
 			callonready = !lock.aborted && !lock.timeouted;
 			if (callonready)
 				lock.receivedresponse = true;
 		}
+		cancelTimeout();
 		if (callonready) {
-			synchronized (coapRequest) {
-				coapRequest.setResponse(response);
-				coapRequest.setReadyState(CoAPRequest.DONE);
-			}
-			callJavaScriptFunction(onready, coapRequest, response);
-			callJavaScriptFunction(onload, coapRequest, response);
+			responded();
+			dispatch(new Runnable() {
+				public void run() {
+					synchronized (coapRequest) {
+						coapRequest.setResponse(response);
+						coapRequest.setReadyState(CoAPRequest.DONE);
+					}
+					callJavaScriptFunction(onready, coapRequest, response);
+					callJavaScriptFunction(onload, coapRequest, response);
+				}
+			});
 		}
 	}
 
@@ -108,7 +133,9 @@ public class AsynchronousSender extends AbstractSender {
 			if (isabort)
 				lock.aborted = true;
 		}
+		cancelTimeout();
 		if (isabort) {
+			aborted();
 			synchronized (coapRequest) {
 				coapRequest.setError(true);
 				coapRequest.setReadyState(CoAPRequest.DONE);
@@ -120,6 +147,27 @@ public class AsynchronousSender extends AbstractSender {
 		}
 	}
 	
+	/*
+	 * Delivers the specified callback to the app's queue or executes it right
+	 * away, if the request has not been sent by an app.
+	 */
+	private void dispatch(Runnable callback) {
+		WorkQueue q = queue;
+		if (q!=null)
+			q.deliver(callback, WorkQueue.LANE_RESPONSE);
+		else
+			callback.run();
+	}
+	
+	/*
+	 * Removes the timeout from the timer, since it is not needed anymore.
+	 */
+	private void cancelTimeout() {
+		Timeout task = timeoutTask;
+		if (task!=null)
+			task.cancel();
+	}
+	
 	private void handleError(Function function) {
 		synchronized (coapRequest) {
 			coapRequest.setError(true);
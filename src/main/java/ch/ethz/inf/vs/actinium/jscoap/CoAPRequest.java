@@ -476,11 +476,12 @@ public class CoAPRequest implements CoAPConstants {
 	}
 	
 	/**
-	 * Creates a new request with the specified data as payload.
+	 * Creates a new request with the specified data as payload. Package
+	 * private for the benchmarks.
 	 * @param data the payload.
 	 * @return the request.
 	 */
-	private Request createNewRequest(String data) {
+	Request createNewRequest(String data) {
 		Request request;
 		
 		if (CoAPMethod.GET.equals(method)) {
@@ -6,6 +6,7 @@ import org.mozilla.javascript.Context;
 import org.mozilla.javascript.ScriptableObject;
 import org.mozilla.javascript.Undefined;
 
+import ch.ethz.inf.vs.actinium.plugnplay.RequestTiming;
 import ch.ethz.inf.vs.californium.coap.Message.messageType;
 import ch.ethz.inf.vs.californium.coap.Option;
 import ch.ethz.inf.vs.californium.coap.OptionNumberRegistry;
@@ -18,6 +19,9 @@ public class JavaScriptCoAPRequest extends ScriptableObject implements CoAPConst
 
 	private Request request;
 	
+	// the timing of the request while its handler executes or null
+	private RequestTiming timing;
+	
 	private Response response = new Response();;
 	
 	/*
@@ -29,6 +33,7 @@ public class JavaScriptCoAPRequest extends ScriptableObject implements CoAPConst
 	
 	public JavaScriptCoAPRequest(Request request) {
 		this.request = request;
+		this.timing = RequestTiming.current();
 	}
 	
 	@Override
@@ -295,6 +300,8 @@ public class JavaScriptCoAPRequest extends ScriptableObject implements CoAPConst
 		if (contentType != null)
 			response.setContentType(contentType);
 		request.respond(response);
+		if (timing!=null)
+			timing.responded(response.getCode());
 	}
 	
 }
@@ -5,11 +5,16 @@ import org.mozilla.javascript.Function;
 import org.mozilla.javascript.Scriptable;
 import org.mozilla.javascript.ScriptableObject;
 
+import ch.ethz.inf.vs.actinium.EventRecorder;
+import ch.ethz.inf.vs.actinium.RouteTable;
+import ch.ethz.inf.vs.actinium.plugnplay.AbstractApp;
 import ch.ethz.inf.vs.californium.coap.DELETERequest;
 import ch.ethz.inf.vs.californium.coap.GETRequest;
 import ch.ethz.inf.vs.californium.coap.POSTRequest;
 import ch.ethz.inf.vs.californium.coap.PUTRequest;
+import ch.ethz.inf.vs.californium.coap.Request;
 import ch.ethz.inf.vs.californium.endpoint.LocalResource;
+import ch.ethz.inf.vs.californium.endpoint.Resource;
 
 /**
  * It is not possible to add further methods or fields to this class within
@@ -40,9 +45,30 @@ public class JavaScriptResource extends LocalResource implements CoAPConstants {
 	
 	@Override
 	public void changed() {
+		// invalidate the responses the app has cached for this resource
+		for (Resource parent=getParent(); parent!=null; parent=parent.getParent()) {
+			if (parent instanceof AbstractApp) {
+				((AbstractApp) parent).invalidateResponses(getPath());
+				break;
+			}
+		}
 		super.changed();
 	}
 	
+	@Override
+	public void add(Resource resource) {
+		super.add(resource);
+		// the resource might have replaced one with the same path
+		RouteTable.invalidate(resource.getPath());
+	}
+	
+	@Override
+	public void removeSubResource(Resource resource) {
+		if (resource!=null)
+			RouteTable.invalidate(resource.getPath());
+		super.removeSubResource(resource);
+	}
+	
 	public Function getOnget() {
 		return onget;
 	}
@@ -67,7 +93,7 @@ public class JavaScriptResource extends LocalResource implements CoAPConstants {
 	public void performGET(GETRequest request) {
 		Function onget = getOnget();
 		if (onget!=null) {
-			performFunction(onget, new JavaScriptCoAPRequest(request));
+			performFunction(onget, request);
 		} else {
 			super.performGET(request);
 		}
@@ -77,7 +103,7 @@ public class JavaScriptResource extends LocalResource implements CoAPConstants {
 	public void performPOST(POSTRequest request) {
 		Function onpost = getOnpost();
 		if (onpost!=null) {
-			performFunction(onpost, new JavaScriptCoAPRequest(request));
+			performFunction(onpost, request);
 		} else {
 			super.performPOST(request);
 		}
@@ -87,7 +113,7 @@ public class JavaScriptResource extends LocalResource implements CoAPConstants {
 	public void performPUT(PUTRequest request) {
 		Function onput = getOnput();
 		if (onput!=null) {
-			performFunction(onput, new JavaScriptCoAPRequest(request));
+			performFunction(onput, request);
 		} else {
 			super.performPUT(request);
 		}
@@ -97,14 +123,19 @@ public class JavaScriptResource extends LocalResource implements CoAPConstants {
 	public void performDELETE(DELETERequest request) {
 		Function ondelete = getOndelete();
 		if (ondelete!=null) {
-			performFunction(ondelete, new JavaScriptCoAPRequest(request));
+			performFunction(ondelete, request);
 		} else {
 			super.performDELETE(request);
 		}
 	}
 	
-	private void performFunction(Function fun, JavaScriptCoAPRequest request) {
+	/*
+	 * Calls the specified handler with the request and records it as an event.
+	 */
+	private void performFunction(Function fun, Request coapRequest) {
 //		NativeFunction fun = (NativeFunction) object;
+		long start = EventRecorder.begin();
+		JavaScriptCoAPRequest request = new JavaScriptCoAPRequest(coapRequest);
 		try {
 			Context cx = Context.enter();
 			Scriptable prototype = ScriptableObject.getClassPrototype(fun, request.getClassName());
@@ -114,6 +145,8 @@ public class JavaScriptResource extends LocalResource implements CoAPConstants {
 			fun.call(cx, fun, Context.toObject(thisObj, scope), new Object[] {request});
 		} finally {
 			Context.exit();
+			if (start!=0)
+				EventRecorder.commit(EventRecorder.HANDLER, start, EventRecorder.currentApp(), coapRequest.getUriPath(), coapRequest);
 		}
 	}
 }
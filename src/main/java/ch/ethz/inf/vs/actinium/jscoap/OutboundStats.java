@@ -0,0 +1,200 @@
+package ch.ethz.inf.vs.actinium.jscoap;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ch.ethz.inf.vs.actinium.LatencyHistogram;
+import ch.ethz.inf.vs.actinium.StripedCounter;
+
+/**
+ * OutboundStats holds the stats of the requests apps send with CoAPRequest,
+ * per app and per remote endpoint (host and port): the round trip times, the
+ * number of requests in flight and the number of timeouts, aborts and network
+ * errors. The senders record their requests. The stats of an endpoint are
+ * created with its first request and count in StripedCounters.
+ *
+ * @author Martin Lanter
+ */
+public class OutboundStats {
+
+	public static final long HIGHEST_RTT = 600L * 1000000L; // us
+	public static final String OTHER = "_other"; // for requests sent outside of an app
+
+	private static final int DEFAULT_PORT = 5683;
+
+	private static final OutboundStats INSTANCE = new OutboundStats();
+
+	// maps the names of apps to their endpoints by host and port
+	private final ConcurrentHashMap<String, ConcurrentHashMap<String, Endpoint>> apps;
+
+	private OutboundStats() {
+		this.apps = new ConcurrentHashMap<String, ConcurrentHashMap<String, Endpoint>>();
+	}
+
+	public static OutboundStats getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Returns the stats of the requests of the specified app to the endpoint
+	 * of the specified URI.
+	 *
+	 * @param app the name of the app or null
+	 * @param uri the URI of the request
+	 * @return the stats of the endpoint
+	 */
+	public Endpoint getEndpoint(String app, String uri) {
+		if (app==null)
+			app = OTHER;
+		ConcurrentHashMap<String, Endpoint> endpoints = apps.get(app);
+		if (endpoints==null) {
+			ConcurrentHashMap<String, Endpoint> created = new ConcurrentHashMap<String, Endpoint>();
+			endpoints = apps.putIfAbsent(app, created);
+			if (endpoints==null)
+				endpoints = created;
+		}
+		String address = getAddress(uri);
+		Endpoint endpoint = endpoints.get(address);
+		if (endpoint==null) {
+			Endpoint created = new Endpoint(address);
+			endpoint = endpoints.putIfAbsent(address, created);
+			if (endpoint==null)
+				endpoint = created;
+		}
+		return endpoint;
+	}
+
+	/**
+	 * Returns the stats of all apps by app and by endpoint, both sorted.
+	 *
+	 * @return the endpoints by app
+	 */
+	public Map<String, Map<String, Endpoint>> getEndpoints() {
+		Map<String, Map<String, Endpoint>> endpoints = new TreeMap<String, Map<String, Endpoint>>();
+		for (Map.Entry<String, ConcurrentHashMap<String, Endpoint>> entry:apps.entrySet()) {
+			endpoints.put(entry.getKey(), new TreeMap<String, Endpoint>(entry.getValue()));
+		}
+		return endpoints;
+	}
+
+	/**
+	 * Removes the stats of the app with the specified name, e.g. when the app
+	 * has been deleted.
+	 *
+	 * @param app the name of the app
+	 */
+	public void removeApp(String app) {
+		apps.remove(app);
+	}
+
+	/*
+	 * Returns host:port of the URI or the URI itself, if it cannot be parsed.
+	 */
+	private static String getAddress(String uri) {
+		try {
+			URI parsed = new URI(uri);
+			String host = parsed.getHost();
+			if (host==null)
+				return uri;
+			int port = parsed.getPort();
+			return host+":"+(port!=-1 ? port : DEFAULT_PORT);
+		} catch (URISyntaxException e) {
+			return uri;
+		}
+	}
+
+	/**
+	 * The stats of the requests of an app to a remote endpoint.
+	 */
+	public static class Endpoint {
+
+		private final String address;
+		private final LatencyHistogram rtt;
+		private final StripedCounter sent;
+		private final StripedCounter timeouts;
+		private final StripedCounter aborts;
+		private final StripedCounter errors; // network errors
+		private final AtomicInteger inFlight;
+
+		private Endpoint(String address) {
+			this.address = address;
+			this.rtt = new LatencyHistogram(HIGHEST_RTT);
+			this.sent = new StripedCounter();
+			this.timeouts = new StripedCounter();
+			this.aborts = new StripedCounter();
+			this.errors = new StripedCounter();
+			this.inFlight = new AtomicInteger();
+		}
+
+		/**
+		 * Records a request, that is sent to the endpoint.
+		 */
+		public void sent() {
+			sent.increment();
+			inFlight.incrementAndGet();
+		}
+
+		/**
+		 * Records the response of a request after the specified round trip
+		 * time.
+		 *
+		 * @param rtt the round trip time in us
+		 */
+		public void responded(long rtt) {
+			this.rtt.recordValue(rtt);
+			inFlight.decrementAndGet();
+		}
+
+		public void timedOut() {
+			timeouts.increment();
+			inFlight.decrementAndGet();
+		}
+
+		public void aborted() {
+			aborts.increment();
+			inFlight.decrementAndGet();
+		}
+
+		public void failed() {
+			errors.increment();
+			inFlight.decrementAndGet();
+		}
+
+		public String getAddress() {
+			return address;
+		}
+
+		/**
+		 * Returns the round trip times of the responses in us.
+		 *
+		 * @return the histogram of the round trip times
+		 */
+		public LatencyHistogram getRtt() {
+			return rtt;
+		}
+
+		public long getSent() {
+			return sent.sum();
+		}
+
+		public long getTimeouts() {
+			return timeouts.sum();
+		}
+
+		public long getAborts() {
+			return aborts.sum();
+		}
+
+		public long getErrors() {
+			return errors.sum();
+		}
+
+		public int getInFlight() {
+			return inFlight.get();
+		}
+	}
+}
@@ -43,6 +43,7 @@ public class SynchronousSender extends AbstractSender {
 	}
 	
 	// by app's execution thread (must not be app's receiver thread)
+	// onreadystatechange and onload are called by this thread, after the response has arrived
 	@Override
 	public void send(Request request) {
 		request.registerResponseHandler(new ResponseHandler() {
@@ -54,8 +55,10 @@ public class SynchronousSender extends AbstractSender {
 		});
 		
 		try {
+			Response response = null;
 			synchronized (lock) {
 				if (!lock.aborted) { // if not already aborted
+					beginSend(request, coapRequest);
 					timestamp = System.currentTimeMillis();
 					
 					request.execute();
@@ -65,13 +68,25 @@ public class SynchronousSender extends AbstractSender {
 					} else {
 						waitForResponse(timeout);
 					}
+					response = lock.response;
 				}
 			}
+			if (response!=null) {
+				coapRequest.setResponse(response);
+				coapRequest.setReadyState(CoAPRequest.DONE);
+				callJavaScriptFunction(onready, coapRequest, response);
+				callJavaScriptFunction(onload, coapRequest, response);
+			}
 		} catch (InterruptedException e) {
+			aborted();
 			throw new RequestErrorException(e.getMessage());
 		} catch (IOException e) {
+			failed();
 			handleError(onerror);
 			throw new NetworkErrorException(e.getMessage());
+		} finally {
+			// until the response, timeout or abort, since send() blocks
+			endSend();
 		}
 	}
 				
@@ -101,15 +116,13 @@ public class SynchronousSender extends AbstractSender {
 			lock.receivedresponse = true;
 			
 			if (!lock.aborted && !lock.timeouted) {
-				coapRequest.setResponse(response);
-				coapRequest.setReadyState(CoAPRequest.DONE);
+				responded();
 				
 				/*
-				 * While the app's receiver thread executes this function, the
-				 * caller of send() is still blocked!
+				 * Only record the response. The caller of send() wakes up and
+				 * calls the JavaScript functions on the app's thread.
 				 */
-				callJavaScriptFunction(onready, coapRequest, response);
-				callJavaScriptFunction(onload, coapRequest, response);
+				lock.response = response;
 			}
 
 			lock.notifyAll();
@@ -137,6 +150,7 @@ public class SynchronousSender extends AbstractSender {
 	private void checkTimeout() {
 		if (isTimeout(timestamp, timeout)) {
 			lock.timeouted = true;
+			timedOut();
 
 			// by app's execution thread (who has called send())
 			handleError(ontimeout);
@@ -161,6 +175,7 @@ public class SynchronousSender extends AbstractSender {
 	 */
 	private void checkAborted() {
 		if (lock.aborted && !lock.receivedresponse && !lock.timeouted) {
+			aborted();
 			synchronized (coapRequest) {
 				coapRequest.setError(true);
 				coapRequest.setReadyState(CoAPRequest.DONE);
@@ -185,5 +200,6 @@ public class SynchronousSender extends AbstractSender {
 		private boolean receivedresponse = false;
 		private boolean aborted = false;
 		private boolean timeouted = false;
+		private Response response; // null unless received in time
 	}
 }
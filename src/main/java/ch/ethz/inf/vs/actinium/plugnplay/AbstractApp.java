@@ -4,10 +4,13 @@ import java.util.Observable;
 import java.util.Observer;
 import java.util.logging.Logger;
 
+import ch.ethz.inf.vs.actinium.RouteTable;
 import ch.ethz.inf.vs.actinium.cfg.AppConfig;
 import ch.ethz.inf.vs.actinium.cfg.AbstractConfig.ConfigChangeSet;
+import ch.ethz.inf.vs.actinium.plugnplay.HashedWheelTimer.Timeout;
 
 import ch.ethz.inf.vs.californium.coap.Request;
+import ch.ethz.inf.vs.californium.coap.Response;
 import ch.ethz.inf.vs.californium.endpoint.LocalResource;
 import ch.ethz.inf.vs.californium.endpoint.Resource;
 
@@ -47,6 +50,32 @@ public abstract class AbstractApp extends LocalResource implements PlugAndPlayab
 	// Recevier for all requests, which then get executed one after another by the app's thread
 	private WorkQueue requestReceiver;
 	
+	// The event loops that execute the app or null, if the app has a thread of its own
+	private EventLoopGroup eventLoops;
+	
+	// Limits the CPU time of the app's tasks
+	private CpuBudget cpuBudget;
+	
+	// Responds GET requests with the last response of the resource
+	private ResponseCache responseCache;
+	
+	// Accounts the allocations and the scope size of the app
+	private HeapAccount heapAccount;
+	private Timeout memoryCheck; // null if not scheduled
+	
+	// Records the queue wait and execution time of the requests
+	private LatencyStats latencyStats;
+	
+	// Logs the slow handlers and timeouts with their script stack
+	private SlowHandlerLog slowLog;
+	
+	// Merges identical concurrent GET requests
+	private RequestCoalescer coalescer;
+	private boolean coalesceGET; // true, if GET requests are coalesced
+	
+	// Sheds requests before they are queued, when the app is overloaded
+	private AdmissionControl admission;
+	
 	/**
 	 * Constructs a new AbstractApp with the specified properties. If the
 	 * AppConfig defines a special reousece title or type, they will be used.
@@ -67,7 +96,39 @@ public abstract class AbstractApp extends LocalResource implements PlugAndPlayab
 		if (resourceType!=null)
 			setResourceType(resourceType);
 
-		this.requestReceiver = new WorkQueue(appcfg.getName()+"-ReceiverThread");
+		this.requestReceiver = new WorkQueue(appcfg.getName()+"-ReceiverThread",
+				appcfg.getInt(AppConfig.QUEUE_CAPACITY),
+				appcfg.getInt(AppConfig.QUEUE_BATCH_SIZE),
+				appcfg.getProperty(AppConfig.QUEUE_OVERFLOW),
+				appcfg.getInt(AppConfig.OVERLOAD_MAX_AGE));
+		this.requestReceiver.setScheduling(appcfg.getProperty(AppConfig.QUEUE_SCHEDULING));
+		this.requestReceiver.setWeights(appcfg.getProperty(AppConfig.QUEUE_WEIGHTS));
+		
+		this.cpuBudget = new CpuBudget(appcfg.getName(),
+				appcfg.getInt(AppConfig.CPU_BUDGET_INVOCATION),
+				appcfg.getInt(AppConfig.CPU_BUDGET_APP),
+				appcfg.getInt(AppConfig.CPU_BUDGET_PERIOD));
+		this.requestReceiver.setCpuBudget(cpuBudget);
+		
+		this.heapAccount = new HeapAccount(appcfg.getName(),
+				appcfg.getInt(AppConfig.ALLOCATION_LIMIT) * 1024L,
+				appcfg.getInt(AppConfig.SCOPE_SIZE_LIMIT) * 1024L);
+		this.requestReceiver.setHeapAccount(heapAccount);
+		
+		this.latencyStats = new LatencyStats();
+		this.requestReceiver.setLatencyStats(latencyStats);
+		
+		this.slowLog = new SlowHandlerLog(appcfg.getName(), appcfg.getInt(AppConfig.SLOW_THRESHOLD));
+		this.requestReceiver.setSlowHandlerLog(slowLog);
+		
+		this.admission = new AdmissionControl(appcfg.getName(),
+				appcfg.getInt(AppConfig.QUEUE_MAX_AGE),
+				appcfg.getInt(AppConfig.ADMISSION_RATE),
+				appcfg.getInt(AppConfig.ADMISSION_BURST),
+				appcfg.getBool(AppConfig.SHED_NON_FIRST));
+		this.responseCache = new ResponseCache(appcfg.getInt(AppConfig.RESPONSE_CACHE_SIZE));
+		this.coalescer = new RequestCoalescer(responseCache, admission);
+		this.coalesceGET = appcfg.getBool(AppConfig.COALESCE_GET);
 	}
 	
 	/**
@@ -85,6 +146,103 @@ public abstract class AbstractApp extends LocalResource implements PlugAndPlayab
 	public long getStopTimestamp() {
 		return stopTimestamp;
 	}
+	
+	/**
+	 * Sets the event loops, that execute the app from the next start on. If
+	 * null, the app creates a thread of its own.
+	 * 
+	 * @param eventLoops the event loops or null
+	 */
+	public void setEventLoopGroup(EventLoopGroup eventLoops) {
+		this.eventLoops = eventLoops;
+	}
+	
+	/**
+	 * Returns the event loops, that execute the app or null, if the app has a
+	 * thread of its own.
+	 * 
+	 * @return the event loops or null
+	 */
+	public EventLoopGroup getEventLoopGroup() {
+		return eventLoops;
+	}
+	
+	/**
+	 * Returns the CPU time in nanoseconds, that the app has spent executing
+	 * its code and requests, or -1 if not supported by the JVM.
+	 * 
+	 * @return the CPU time in nanoseconds or -1
+	 */
+	public long getCpuTime() {
+		return requestReceiver.getCpuTime();
+	}
+	
+	/**
+	 * Returns the CPU budget of the app.
+	 * 
+	 * @return the CPU budget of the app
+	 */
+	public CpuBudget getCpuBudget() {
+		return cpuBudget;
+	}
+	
+	/**
+	 * Returns the queue of the app's requests and tasks, e.g. to read its
+	 * gauges.
+	 * 
+	 * @return the work queue of the app
+	 */
+	public WorkQueue getWorkQueue() {
+		return requestReceiver;
+	}
+	
+	/**
+	 * Returns true, if the oldest request in the app's queue has been waiting
+	 * for longer than the app's queue_max_age. New requests should not be
+	 * admitted, since they would wait even longer.
+	 * 
+	 * @return true, if the app is overloaded
+	 */
+	public boolean isOverloaded() {
+		return admission.isOverloaded(requestReceiver);
+	}
+	
+	/**
+	 * Returns the admission control of the app, e.g. to read the amount of
+	 * shed requests.
+	 * 
+	 * @return the admission control of the app
+	 */
+	public AdmissionControl getAdmissionControl() {
+		return admission;
+	}
+	
+	/**
+	 * Returns the account of the app's allocations and scope size.
+	 * 
+	 * @return the heap account of the app
+	 */
+	public HeapAccount getHeapAccount() {
+		return heapAccount;
+	}
+	
+	/**
+	 * Returns the latency histograms of the app and its subresources.
+	 * 
+	 * @return the latency stats of the app
+	 */
+	public LatencyStats getLatencyStats() {
+		return latencyStats;
+	}
+	
+	/**
+	 * Returns the log of the app's slow handlers and timeouts.
+	 * 
+	 * @return the slow handler log of the app
+	 */
+	public SlowHandlerLog getSlowHandlerLog() {
+		return slowLog;
+	}
 
 	@Override
 	public String getName() {
@@ -94,8 +252,19 @@ public abstract class AbstractApp extends LocalResource implements PlugAndPlayab
 	// Make changed public (e.g. for JS)
 	@Override
 	public void changed() {
+		responseCache.clear();
 		super.changed();
 	}
+	
+	/**
+	 * Invalidates the cached responses of the subresource with the specified
+	 * path. JavaScriptResources call this method when they have changed.
+	 * 
+	 * @param path the path of the subresource
+	 */
+	public void invalidateResponses(String path) {
+		responseCache.invalidate(path);
+	}
 
 	/**
 	 * Checks for the property "running" and starts, stops or restarts the app
@@ -128,6 +297,63 @@ public abstract class AbstractApp extends LocalResource implements PlugAndPlayab
 		if (set.contains(AppConfig.ALLOW_ERROR_OUTPUT)) {
 			allowErrorOutput = appcfg.getBool(AppConfig.ALLOW_ERROR_OUTPUT);
 		}
+		if (set.contains(AppConfig.QUEUE_CAPACITY)) {
+			requestReceiver.setCapacity(appcfg.getInt(AppConfig.QUEUE_CAPACITY));
+		}
+		if (set.contains(AppConfig.QUEUE_BATCH_SIZE)) {
+			requestReceiver.setBatchSize(appcfg.getInt(AppConfig.QUEUE_BATCH_SIZE));
+		}
+		if (set.contains(AppConfig.QUEUE_OVERFLOW)) {
+			requestReceiver.setOverflowPolicy(appcfg.getProperty(AppConfig.QUEUE_OVERFLOW));
+		}
+		if (set.contains(AppConfig.QUEUE_SCHEDULING)) {
+			requestReceiver.setScheduling(appcfg.getProperty(AppConfig.QUEUE_SCHEDULING));
+		}
+		if (set.contains(AppConfig.QUEUE_WEIGHTS)) {
+			requestReceiver.setWeights(appcfg.getProperty(AppConfig.QUEUE_WEIGHTS));
+		}
+		if (set.contains(AppConfig.OVERLOAD_MAX_AGE)) {
+			requestReceiver.setOverloadMaxAge(appcfg.getInt(AppConfig.OVERLOAD_MAX_AGE));
+		}
+		if (set.contains(AppConfig.QUEUE_MAX_AGE)) {
+			admission.setMaxAge(appcfg.getInt(AppConfig.QUEUE_MAX_AGE));
+		}
+		if (set.contains(AppConfig.ADMISSION_RATE)) {
+			admission.setRate(appcfg.getInt(AppConfig.ADMISSION_RATE));
+		}
+		if (set.contains(AppConfig.ADMISSION_BURST)) {
+			admission.setBurst(appcfg.getInt(AppConfig.ADMISSION_BURST));
+		}
+		if (set.contains(AppConfig.SHED_NON_FIRST)) {
+			admission.setShedNONFirst(appcfg.getBool(AppConfig.SHED_NON_FIRST));
+		}
+		if (set.contains(AppConfig.RESPONSE_CACHE_SIZE)) {
+			responseCache.setCapacity(appcfg.getInt(AppConfig.RESPONSE_CACHE_SIZE));
+		}
+		if (set.contains(AppConfig.COALESCE_GET)) {
+			coalesceGET = appcfg.getBool(AppConfig.COALESCE_GET);
+		}
+		if (set.contains(AppConfig.CPU_BUDGET_INVOCATION)) {
+			cpuBudget.setInvocationBudget(appcfg.getInt(AppConfig.CPU_BUDGET_INVOCATION));
+		}
+		if (set.contains(AppConfig.CPU_BUDGET_APP)) {
+			cpuBudget.setAppBudget(appcfg.getInt(AppConfig.CPU_BUDGET_APP));
+		}
+		if (set.contains(AppConfig.CPU_BUDGET_PERIOD)) {
+			cpuBudget.setPeriod(appcfg.getInt(AppConfig.CPU_BUDGET_PERIOD));
+		}
+		if (set.contains(AppConfig.ALLOCATION_LIMIT)) {
+			heapAccount.setAllocationLimit(appcfg.getInt(AppConfig.ALLOCATION_LIMIT) * 1024L);
+		}
+		if (set.contains(AppConfig.SCOPE_SIZE_LIMIT)) {
+			heapAccount.setScopeLimit(appcfg.getInt(AppConfig.SCOPE_SIZE_LIMIT) * 1024L);
+		}
+		if (set.contains(AppConfig.SLOW_THRESHOLD)) {
+			slowLog.setThreshold(appcfg.getInt(AppConfig.SLOW_THRESHOLD));
+		}
+		if (set.contains(AppConfig.MEMORY_CHECK_PERIOD) && started) {
+			scheduleMemoryCheck();
+		}
 	}
 
 	/**
@@ -147,6 +373,7 @@ public abstract class AbstractApp extends LocalResource implements PlugAndPlayab
 					AppConfig.RUNNING, AppConfig.START);
 			
 			startImpl();
+			scheduleMemoryCheck();
 		}
 	}
 
@@ -163,7 +390,10 @@ public abstract class AbstractApp extends LocalResource implements PlugAndPlayab
 			System.out.println("App "+getName()+" shutdown");
 
 			removeSubresources();
+			responseCache.clear();
 			shutdownImpl();
+			requestReceiver.stop();
+			cancelMemoryCheck();
 			started = false;
 			
 			stopTimestamp = System.currentTimeMillis();
@@ -182,11 +412,27 @@ public abstract class AbstractApp extends LocalResource implements PlugAndPlayab
 		System.out.println("App "+getName()+" restart");
 
 		removeSubresources();
+		responseCache.clear();
+		latencyStats.removeResources();
 		startTimestamp = System.currentTimeMillis();
 		restartImpl();
 		stopTimestamp = 0;
 	}
 	
+	@Override
+	public void add(Resource resource) {
+		super.add(resource);
+		// the resource might have replaced one with the same path
+		RouteTable.invalidate(resource.getPath());
+	}
+	
+	@Override
+	public void removeSubResource(Resource resource) {
+		if (resource!=null)
+			RouteTable.invalidate(resource.getPath());
+		super.removeSubResource(resource);
+	}
+	
 	/**
 	 * Removes all subresources
 	 */
@@ -196,20 +442,148 @@ public abstract class AbstractApp extends LocalResource implements PlugAndPlayab
 	}
 	
 	/**
-	 * Delivers the specified request to the specified resource
+	 * Delivers the specified request to the specified resource. If the app's
+	 * worker queue is full, the request is handled according to the app's
+	 * overflow policy. If the response cache holds a response for a GET
+	 * request, the request is responded right away. If GET requests are
+	 * coalesced, a GET request is attached to an identical pending one
+	 * instead, if there is any. Only a request that is queued must be
+	 * admitted by the app's AdmissionControl, otherwise it is responded with
+	 * 5.03 Service Unavailable.
+	 * 
 	 * @param request the request
 	 * @param resource the target resource
+	 * @return true, if the request has been responded or queued
+	 */
+	public boolean deliverRequestToSubResource(Request request, LocalResource resource) {
+		return deliverRequestToSubResource(request, resource, System.nanoTime());
+	}
+	
+	/**
+	 * Delivers the specified request to the specified resource, as
+	 * deliverRequestToSubResource(request, resource) does. The latencies of the
+	 * request are measured from the specified time, when the server has
+	 * received it.
+	 * 
+	 * @param request the request
+	 * @param resource the target resource
+	 * @param received the time in ns (System.nanoTime())
+	 * @return true, if the request has been responded or queued
+	 */
+	public boolean deliverRequestToSubResource(Request request, LocalResource resource, long received) {
+		if (RequestCoalescer.isCoalescable(request)) {
+			if (responseCache.isEnabled()) {
+				Response cached = responseCache.get(RequestCoalescer.key(request, resource));
+				if (cached!=null) {
+					latencyStats.recordResponse(resource, cached.getCode());
+					request.respond(cached);
+					return true;
+				}
+				return coalescer.deliver(request, resource, requestReceiver, coalesceGET, received);
+			}
+			if (coalesceGET)
+				return coalescer.deliver(request, resource, requestReceiver, true, received);
+		}
+		if (!admission.admit(request, resource, requestReceiver))
+			return false;
+		return requestReceiver.deliver(request, resource, received);
+	}
+	
+	/**
+	 * Returns the number of GET requests, that have been attached to an
+	 * identical pending request.
+	 * 
+	 * @return the number of coalesced GET requests
 	 */
-	public void deliverRequestToSubResource(Request request, LocalResource resource) {
-		requestReceiver.deliver(request, resource);
+	public int getCoalescedRequests() {
+		return coalescer.getCoalesced();
 	}
 	
 	/**
-	 * Delivers the specified Runnable to the app's worker queue
+	 * Returns the response cache of this app.
+	 * 
+	 * @return the response cache
+	 */
+	public ResponseCache getResponseCache() {
+		return responseCache;
+	}
+	
+	/*
+	 * Schedules the periodic memory check with the current period, unless it
+	 * is 0. Replaces an already scheduled check.
+	 */
+	private synchronized void scheduleMemoryCheck() {
+		cancelMemoryCheck();
+		int period = appcfg.getInt(AppConfig.MEMORY_CHECK_PERIOD);
+		if (period>0) {
+			memoryCheck = HashedWheelTimer.getInstance().scheduleAtFixedRate(new Runnable() {
+				public void run() {
+					// the scope must only be walked by the app's thread
+					deliveRunnable(new MemoryCheck());
+				}
+			}, period, period);
+		}
+	}
+	
+	private synchronized void cancelMemoryCheck() {
+		if (memoryCheck!=null) {
+			memoryCheck.cancel();
+			memoryCheck = null;
+		}
+	}
+	
+	/**
+	 * Returns the estimated bytes the app's scope retains or -1, if the app
+	 * has no scope. Called by the thread that executes the app.
+	 * 
+	 * @return the estimated scope size or -1
+	 */
+	protected long estimateScopeSize() {
+		return -1;
+	}
+	
+	/**
+	 * Estimates the scope size and restarts the app, if it has exceeded a
+	 * memory limit on two consecutive checks.
+	 */
+	private class MemoryCheck implements Runnable {
+		public void run() {
+			heapAccount.setScopeSize(estimateScopeSize());
+			if (heapAccount.check()) {
+				/*
+				 * Not on the app's thread, which the restart interrupts before
+				 * it calls onunload, nor on the timer all apps share. A
+				 * thread of its own restarts the app, as a request to
+				 * InstalledAppResource does.
+				 */
+				new Thread(new Runnable() {
+					public void run() {
+						restart();
+					}
+				}, "Restart "+getName()).start();
+			}
+		}
+	}
+	
+	/**
+	 * Delivers the specified Runnable to the internal lane of the app's worker
+	 * queue
 	 * @param runnable the runnable
+	 * @return true, if the runnable has been queued
 	 */
-	public void deliveRunnable(Runnable runnable) {
-		requestReceiver.deliver(runnable);
+	public boolean deliveRunnable(Runnable runnable) {
+		return requestReceiver.deliver(runnable);
+	}
+	
+	/**
+	 * Delivers the specified Runnable to the specified lane of the app's
+	 * worker queue, e.g. WorkQueue.LANE_TIMER
+	 * @param runnable the runnable
+	 * @param lane the lane
+	 * @return true, if the runnable has been queued
+	 */
+	public boolean deliveRunnable(Runnable runnable, int lane) {
+		return requestReceiver.deliver(runnable, lane);
 	}
 	
 	/**
@@ -257,14 +631,36 @@ public abstract class AbstractApp extends LocalResource implements PlugAndPlayab
 	/**
 	 * Start receiving messages. The thread that executes the app calls this
 	 * method and then handles all requests, that arrive for the app or its
-	 * subresources.
+	 * subresources. The specified task is executed first.
+	 * 
+	 * @param first the task to execute first (e.g. the app's code) or null
+	 */
+	protected void receiveMessages(Runnable first) {
+		requestReceiver.execute(first);
+	}
+	
+	/**
+	 * Start receiving messages on the event loops of this app instead of a
+	 * thread of its own. The specified task is executed first.
+	 * 
+	 * @param first the task to execute first (e.g. the app's code) or null
+	 */
+	protected void scheduleMessages(Runnable first) {
+		requestReceiver.schedule(eventLoops, first);
+	}
+	
+	/**
+	 * Returns the thread, that currently executes the app or null.
+	 * 
+	 * @return the executing thread or null
 	 */
-	protected void receiveMessages() {
-		requestReceiver.execute();
+	protected Thread getExecutingThread() {
+		return requestReceiver.getExecutingThread();
 	}
 	
 	/**
-	 * Starts this app. Should create a new Thread for that.
+	 * Starts this app. Should create a new Thread for that or schedule the app
+	 * on its event loops, if it has any.
 	 */
 	protected abstract void startImpl();
 	
@@ -279,7 +675,8 @@ public abstract class AbstractApp extends LocalResource implements PlugAndPlayab
 	protected abstract void restartImpl();
 
 	/**
-	 * Returns the id of the thread, that is executing the app or -1.
+	 * Returns the id of the thread, that is executing the app or -1. On event
+	 * loops, this is the loop currently executing the app, if any.
 	 * 
 	 * @return the executing thread or -1
 	 */
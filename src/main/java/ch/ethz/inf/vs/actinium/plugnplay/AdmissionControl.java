@@ -0,0 +1,182 @@
+package ch.ethz.inf.vs.actinium.plugnplay;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import ch.ethz.inf.vs.actinium.StripedCounter;
+import ch.ethz.inf.vs.californium.coap.Request;
+import ch.ethz.inf.vs.californium.endpoint.LocalResource;
+
+/**
+ * AdmissionControl decides whether a request is admitted to the WorkQueue of
+ * an app, before it is queued. A request is shed, i.e. responded with 5.03
+ * Service Unavailable and a Max-Age option, if
+ * <ul>
+ * <li>the oldest request in the queue has been waiting longer than the max
+ * age (queue_max_age), since the new request would wait even longer, or</li>
+ * <li>the app has received more requests than its rate (admission_rate) plus
+ * its burst (admission_burst) allow. The rate is enforced by a token bucket
+ * (as the generic cell rate algorithm, one timestamp updated with CAS).</li>
+ * </ul>
+ * A full queue is handled by the queue's overflow policy. If NON requests are
+ * shed first (shed_non_first), non-confirmable requests are already shed at
+ * half the limits: when the requests fill half the queue, the oldest request
+ * has been waiting for half the max age or less than half of the burst is
+ * left. Thus, confirmable requests still get through, when an app is
+ * overloaded by non-confirmable ones.
+ * <p>
+ * Only the request lane of the queue counts (see WorkQueue.LANE_REQUEST).
+ * Timers, that wait behind requests with priority scheduling, or responses to
+ * the app's own requests do not shed the requests of clients.
+ * <p>
+ * The control counts the shed requests by their reason.
+ *
+ * @author Martin Lanter
+ */
+public class AdmissionControl {
+
+	private final String name;
+
+	private volatile int maxAge; // ms, 0 for unlimited
+	private volatile long interval; // ns between two requests at the rate, 0 for unlimited
+	private volatile int burst; // requests
+	private volatile boolean shedNONFirst;
+
+	// the time when the token bucket would be full again, as if requests arrived at the rate
+	private final AtomicLong bucketTime;
+
+	private final StripedCounter shedAge;
+	private final StripedCounter shedRate;
+	private final StripedCounter shedNON; // only at the half limits
+
+	/**
+	 * Constructs a new AdmissionControl.
+	 *
+	 * @param name the name of the app
+	 * @param maxAge the age in ms of the oldest task, from which requests are shed or 0
+	 * @param rate the requests per second or 0
+	 * @param burst the requests admitted at once above the rate
+	 * @param shedNONFirst true, if NON requests are shed at half the limits
+	 */
+	public AdmissionControl(String name, int maxAge, int rate, int burst, boolean shedNONFirst) {
+		this.name = name;
+		this.bucketTime = new AtomicLong(System.nanoTime());
+		this.shedAge = new StripedCounter();
+		this.shedRate = new StripedCounter();
+		this.shedNON = new StripedCounter();
+		setMaxAge(maxAge);
+		setRate(rate);
+		setBurst(burst);
+		setShedNONFirst(shedNONFirst);
+	}
+
+	/**
+	 * Admits the specified request to the specified queue or responds it with
+	 * 5.03 Service Unavailable and a Max-Age option.
+	 *
+	 * @param request the request
+	 * @param resource the target resource
+	 * @param queue the queue of the app
+	 * @return true, if the request is admitted and must be queued
+	 */
+	public boolean admit(Request request, LocalResource resource, WorkQueue queue) {
+		boolean non = shedNONFirst && request.isNonConfirmable();
+
+		int age = maxAge;
+		if (age>0) {
+			long oldest = queue.getOldestAge(WorkQueue.LANE_REQUEST);
+			if (oldest>age) {
+				shedAge.increment();
+				queue.reject(request, resource, "App "+name+" is overloaded");
+				return false;
+			} else if (non && oldest>age/2) {
+				shedNON.increment();
+				queue.reject(request, resource, "App "+name+" is overloaded");
+				return false;
+			}
+		}
+
+		int capacity = queue.getCapacity();
+		if (non && capacity>0 && queue.size(WorkQueue.LANE_REQUEST)>=capacity/2) {
+			shedNON.increment();
+			queue.reject(request, resource, "App "+name+" is overloaded");
+			return false;
+		}
+
+		long i = interval;
+		if (i>0) {
+			// the bucket is empty, when it is burst intervals ahead of now
+			long tolerance = non ? Math.max(i, burst*i/2) : burst*i;
+			long now = System.nanoTime();
+			while (true) {
+				long time = bucketTime.get();
+				long next = Math.max(time, now) + i;
+				if (next - now > tolerance) {
+					if (non) shedNON.increment();
+					else shedRate.increment();
+					int retry = (int) ((next - now - tolerance + 999999999L) / 1000000000L); // s
+					queue.reject(request, resource, "App "+name+" exceeds its rate of requests", Math.max(1, retry));
+					return false;
+				}
+				if (bucketTime.compareAndSet(time, next))
+					return true;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns true, if the oldest request in the specified queue has been
+	 * waiting for longer than the max age. New requests are not admitted,
+	 * since they would wait even longer.
+	 *
+	 * @param queue the queue of the app
+	 * @return true, if the app is overloaded
+	 */
+	public boolean isOverloaded(WorkQueue queue) {
+		int age = maxAge;
+		return age>0 && queue.getOldestAge(WorkQueue.LANE_REQUEST)>age;
+	}
+
+	public void setMaxAge(int maxAge) {
+		this.maxAge = Math.max(0, maxAge);
+	}
+
+	public void setRate(int rate) {
+		this.interval = rate>0 ? 1000000000L / rate : 0;
+	}
+
+	public void setBurst(int burst) {
+		this.burst = Math.max(1, burst);
+	}
+
+	public void setShedNONFirst(boolean shedNONFirst) {
+		this.shedNONFirst = shedNONFirst;
+	}
+
+	/**
+	 * Returns the amount of requests shed, because the queue was too old.
+	 *
+	 * @return the amount of requests shed for their age
+	 */
+	public long getShedAge() {
+		return shedAge.sum();
+	}
+
+	/**
+	 * Returns the amount of requests shed, because they exceeded the rate.
+	 *
+	 * @return the amount of requests shed for the rate
+	 */
+	public long getShedRate() {
+		return shedRate.sum();
+	}
+
+	/**
+	 * Returns the amount of non-confirmable requests shed at half the limits.
+	 *
+	 * @return the amount of NON requests shed first
+	 */
+	public long getShedNON() {
+		return shedNON.sum();
+	}
+}
@@ -0,0 +1,55 @@
+package ch.ethz.inf.vs.actinium.plugnplay;
+
+import java.util.logging.Logger;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.ContextFactory;
+
+/**
+ * BudgetContextFactory creates the Rhino contexts for all apps. Every
+ * INSTRUCTION_THRESHOLD instructions, Rhino calls observeInstructionCount,
+ * where the CpuBudget of the app the current thread is executing is checked.
+ * If the budget has been exceeded, the JavaScript code is aborted. The
+ * SlowHandlerLog of the app captures the script stack there, if the current
+ * task has become slow.
+ *
+ * @author Martin Lanter
+ */
+public class BudgetContextFactory extends ContextFactory {
+
+	private static final Logger LOG = Logger.getLogger(BudgetContextFactory.class.getName());
+
+	public static final int INSTRUCTION_THRESHOLD = 100000;
+
+	/**
+	 * Installs a BudgetContextFactory as Rhino's global ContextFactory, if no
+	 * other has been installed yet. Must be called before any context is
+	 * entered.
+	 */
+	public static synchronized void install() {
+		if (!ContextFactory.hasExplicitGlobal()) {
+			if (CpuBudget.isSupported()) {
+				ContextFactory.initGlobal(new BudgetContextFactory());
+			} else {
+				LOG.warning("The JVM cannot measure the CPU time of threads. CPU budgets of apps are not enforced.");
+			}
+		}
+	}
+
+	@Override
+	protected Context makeContext() {
+		Context cx = super.makeContext();
+		cx.setInstructionObserverThreshold(INSTRUCTION_THRESHOLD);
+		return cx;
+	}
+
+	@Override
+	protected void observeInstructionCount(Context cx, int instructionCount) {
+		CpuBudget budget = CpuBudget.current();
+		if (budget!=null)
+			budget.check();
+		SlowHandlerLog slowLog = SlowHandlerLog.current();
+		if (slowLog!=null)
+			slowLog.observe();
+	}
+}
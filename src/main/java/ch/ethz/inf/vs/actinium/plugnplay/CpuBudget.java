@@ -0,0 +1,199 @@
+package ch.ethz.inf.vs.actinium.plugnplay;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * CpuBudget limits the CPU time an app may spend. There are two limits:
+ * <ul>
+ * <li>the invocation budget limits a single task of the app, i.e. the
+ * execution of a request handler, a timeout or the app's code,</li>
+ * <li>the app budget limits the CPU time of all tasks of the app within a
+ * period (e.g. 500 ms per 1000 ms).</li>
+ * </ul>
+ * A limit of 0 means unlimited. The WorkQueue of the app begins and ends the
+ * budget around every task. While JavaScript code executes, the
+ * BudgetContextFactory checks the budget of the current thread regularly and
+ * aborts the code with a {@link BudgetExceededError} if it has been exceeded.
+ * <p>
+ * A budget is only used by the thread that currently executes the app, and
+ * so are the HeapAccount and the SlowHandlerLog the WorkQueue begins and ends
+ * along with it. Therefore, they need no synchronization.
+ *
+ * @author Martin Lanter
+ */
+public class CpuBudget {
+
+	private static final ThreadMXBean THREAD_BEAN = ManagementFactory.getThreadMXBean();
+
+	// the budget of the app the current thread is executing
+	private static final ThreadLocal<CpuBudget> CURRENT = new ThreadLocal<CpuBudget>();
+
+	private final String name;
+
+	private volatile long invocationBudget; // ns, 0 for unlimited
+	private volatile long appBudget; // ns per period, 0 for unlimited
+	private volatile long period; // ns
+
+	private long periodStart; // ns (wall clock), start of the current period
+	private long periodUsed; // ns (cpu), used within the current period
+	private long invocationStart; // ns (cpu), start of the current task
+
+	private final AtomicInteger aborted = new AtomicInteger();
+
+	/**
+	 * Constructs a new CpuBudget.
+	 *
+	 * @param name the name of the app
+	 * @param invocationBudget the CPU time for a single task in ms or 0
+	 * @param appBudget the CPU time for all tasks within a period in ms or 0
+	 * @param period the period in ms
+	 */
+	public CpuBudget(String name, long invocationBudget, long appBudget, long period) {
+		this.name = name;
+		setInvocationBudget(invocationBudget);
+		setAppBudget(appBudget);
+		setPeriod(period);
+		this.periodStart = System.nanoTime();
+	}
+
+	/**
+	 * Returns the budget of the app the current thread is executing or null.
+	 *
+	 * @return the current budget or null
+	 */
+	public static CpuBudget current() {
+		return CURRENT.get();
+	}
+
+	/**
+	 * Returns true, if the JVM can measure the CPU time of threads.
+	 *
+	 * @return true, if budgets can be enforced
+	 */
+	public static boolean isSupported() {
+		return THREAD_BEAN.isCurrentThreadCpuTimeSupported();
+	}
+
+	/**
+	 * Begins a task of the app on the current thread.
+	 *
+	 * @throws BudgetExceededError if the app has used up its budget for the
+	 *             current period
+	 */
+	public void begin() {
+		CURRENT.set(this);
+		invocationStart = cpuTime();
+		long now = System.nanoTime();
+		long p = period;
+		if (now - periodStart >= p) {
+			periodStart = now - (now - periodStart) % p;
+			periodUsed = 0;
+		}
+		long budget = appBudget;
+		if (budget>0 && periodUsed>=budget) {
+			throw new BudgetExceededError(name+" has used up its CPU budget for this period", getRetryAfter());
+		}
+	}
+
+	/**
+	 * Ends the task of the app on the current thread.
+	 */
+	public void end() {
+		periodUsed += cpuTime() - invocationStart;
+		CURRENT.remove();
+	}
+
+	/**
+	 * Checks whether the current task has exceeded a budget.
+	 *
+	 * @throws BudgetExceededError if the current task has exceeded a budget
+	 */
+	public void check() {
+		long used = cpuTime() - invocationStart;
+		long budget = invocationBudget;
+		if (budget>0 && used>budget) {
+			throw new BudgetExceededError(name+" exceeded its CPU budget of "+budget/1000000+" ms per invocation", 0);
+		}
+		budget = appBudget;
+		if (budget>0 && periodUsed+used>budget) {
+			throw new BudgetExceededError(name+" exceeded its CPU budget of "+budget/1000000+" ms per "+period/1000000+" ms", getRetryAfter());
+		}
+	}
+
+	/**
+	 * Counts an aborted task.
+	 */
+	public void onAborted() {
+		aborted.incrementAndGet();
+	}
+
+	/**
+	 * Returns the name of the app.
+	 *
+	 * @return the name of the app
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Returns the number of tasks, that have been aborted.
+	 *
+	 * @return the number of aborted tasks
+	 */
+	public int getAborted() {
+		return aborted.get();
+	}
+
+	/*
+	 * Returns the seconds until the current period ends (at least 1).
+	 */
+	private int getRetryAfter() {
+		long remaining = periodStart + period - System.nanoTime();
+		return (int) Math.max(1, (remaining + 999999999L) / 1000000000L);
+	}
+
+	public void setInvocationBudget(long millis) {
+		this.invocationBudget = Math.max(0, millis) * 1000000L;
+	}
+
+	public void setAppBudget(long millis) {
+		this.appBudget = Math.max(0, millis) * 1000000L;
+	}
+
+	public void setPeriod(long millis) {
+		this.period = Math.max(1, millis) * 1000000L;
+	}
+
+	private static long cpuTime() {
+		return isSupported() ? THREAD_BEAN.getCurrentThreadCpuTime() : 0;
+	}
+
+	/**
+	 * BudgetExceededError aborts JavaScript code that has exceeded its budget.
+	 * It is an Error, so that scripts cannot catch it.
+	 */
+	public static class BudgetExceededError extends Error {
+
+		private static final long serialVersionUID = -4127583610920532917L;
+
+		private final int retryAfter; // seconds
+
+		public BudgetExceededError(String message, int retryAfter) {
+			super(message);
+			this.retryAfter = retryAfter;
+		}
+
+		/**
+		 * Returns the seconds after which the app has budget again or 0, if
+		 * only the budget for the invocation has been exceeded.
+		 *
+		 * @return the seconds after which the app has budget again or 0
+		 */
+		public int getRetryAfter() {
+			return retryAfter;
+		}
+	}
+}
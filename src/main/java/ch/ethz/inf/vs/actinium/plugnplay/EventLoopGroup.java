@@ -0,0 +1,168 @@
+package ch.ethz.inf.vs.actinium.plugnplay;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+/**
+ * EventLoopGroup executes the apps on a fixed number of threads instead of one
+ * thread per app. Each app is an actor: its WorkQueue is scheduled on an event
+ * loop whenever it has tasks to execute. The loop executes one batch of tasks
+ * and then schedules the queue again at the end of its run queue, if there are
+ * tasks left. A WorkQueue is scheduled on at most one loop at a time, so that
+ * the tasks of an app are executed one after another, in order.
+ * <p>
+ * A queue is scheduled on the loop of the delivering thread, if that is an
+ * event loop of this group (e.g. an app that sets a timeout or sends a request
+ * to another app), otherwise on the next loop in round-robin order. An idle
+ * loop steals queues from the run queues of the other loops.
+ * <p>
+ * JavaScript code executed on an event loop must not block (e.g. with
+ * app.sleep() or synchronous requests), since this delays all apps scheduled on
+ * the same loop.
+ *
+ * @author Martin Lanter
+ */
+public class EventLoopGroup {
+
+	private static final Logger LOG = Logger.getLogger(EventLoopGroup.class.getName());
+
+	private final EventLoop[] loops;
+	private final AtomicInteger next;
+
+	private volatile boolean running;
+
+	/**
+	 * Constructs and starts a new EventLoopGroup with the specified number of
+	 * threads. If the number is not positive, one thread per available
+	 * processor is started.
+	 *
+	 * @param name the prefix for the names of the threads
+	 * @param threads the number of threads
+	 */
+	public EventLoopGroup(String name, int threads) {
+		if (threads<=0)
+			threads = Runtime.getRuntime().availableProcessors();
+		this.loops = new EventLoop[threads];
+		this.next = new AtomicInteger();
+		this.running = true;
+		for (int i=0;i<threads;i++) {
+			loops[i] = new EventLoop(name+"-"+i, i);
+		}
+		for (EventLoop loop:loops) {
+			loop.start();
+		}
+		LOG.info("Started "+threads+" event loops");
+	}
+
+	/**
+	 * Returns the number of event loops.
+	 * @return the number of event loops.
+	 */
+	public int getThreadCount() {
+		return loops.length;
+	}
+
+	/**
+	 * Stops all event loops after the batch they are currently executing.
+	 */
+	public void shutdown() {
+		running = false;
+		for (EventLoop loop:loops) {
+			LockSupport.unpark(loop);
+		}
+	}
+
+	/**
+	 * Schedules the specified queue for execution. Only the queue itself calls
+	 * this method, when it is not already scheduled.
+	 *
+	 * @param queue the queue
+	 */
+	void submit(WorkQueue queue) {
+		EventLoop loop;
+		Thread current = Thread.currentThread();
+		if (current instanceof EventLoop && ((EventLoop) current).group()==this) {
+			loop = (EventLoop) current;
+		} else {
+			loop = loops[(next.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+		}
+		loop.runQueue.offer(queue);
+
+		if (loop.idle) {
+			LockSupport.unpark(loop);
+		} else {
+			// let an idle loop steal the queue
+			for (EventLoop other:loops) {
+				if (other.idle) {
+					LockSupport.unpark(other);
+					break;
+				}
+			}
+		}
+	}
+
+	/*
+	 * Takes a queue from the run queue of another loop than the specified one.
+	 */
+	private WorkQueue steal(EventLoop thief) {
+		for (int i=1;i<loops.length;i++) {
+			EventLoop victim = loops[(thief.index + i) % loops.length];
+			WorkQueue queue = victim.runQueue.poll();
+			if (queue!=null)
+				return queue;
+		}
+		return null;
+	}
+
+	/**
+	 * An event loop executes the scheduled queues one batch at a time.
+	 */
+	private class EventLoop extends Thread {
+
+		private final int index;
+		private final ConcurrentLinkedQueue<WorkQueue> runQueue;
+		private volatile boolean idle;
+
+		private EventLoop(String name, int index) {
+			super(name);
+			this.index = index;
+			this.runQueue = new ConcurrentLinkedQueue<WorkQueue>();
+			setDaemon(true);
+		}
+
+		private EventLoopGroup group() {
+			return EventLoopGroup.this;
+		}
+
+		@Override
+		public void run() {
+			while (running) {
+				WorkQueue queue = runQueue.poll();
+				if (queue==null)
+					queue = steal(this);
+				if (queue==null) {
+					// announce idleness before the last check to not miss a submit
+					idle = true;
+					queue = runQueue.poll();
+					if (queue==null)
+						queue = steal(this);
+					if (queue==null && running)
+						LockSupport.park(this);
+					idle = false;
+					if (queue==null)
+						continue;
+				}
+
+				try {
+					queue.executeScheduled(EventLoopGroup.this);
+				} catch (Throwable t) {
+					// the event loop must not stop
+					LOG.severe("Event loop "+getName()+" caught: "+t);
+					t.printStackTrace();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,294 @@
+package ch.ethz.inf.vs.actinium.plugnplay;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * HashedWheelTimer is the single timer of the app server. All apps schedule
+ * their timeouts and intervals (app.setTimeout, app.setInterval) and all
+ * asynchronous CoAPRequests their timeouts with it, instead of creating a
+ * java.util.Timer and therefore a thread of their own.
+ * <p>
+ * Time is divided into ticks. The timeouts are stored in a wheel of buckets,
+ * each being a doubly linked list. A timeout that expires in the n-th tick is
+ * stored in bucket n modulo the size of the wheel. The timer thread wakes up
+ * once every tick and runs the expired timeouts of the current bucket.
+ * Scheduling and cancelling a timeout takes constant time. A cancelled
+ * timeout is unlinked from its bucket right away and releases its task, so
+ * that the task can be garbage collected.
+ * <p>
+ * The tasks are executed by the timer thread and therefore must be short.
+ * Tasks that execute JavaScript should only deliver a Runnable to the app's
+ * worker queue.
+ *
+ * @author Martin Lanter
+ */
+public class HashedWheelTimer {
+
+	private static final Logger LOG = Logger.getLogger(HashedWheelTimer.class.getName());
+
+	public static final long DEFAULT_TICK_DURATION = 10; // ms
+	public static final int DEFAULT_WHEEL_SIZE = 512;
+
+	private static HashedWheelTimer instance;
+
+	private final long tickDuration; // ns
+	private final Timeout[] wheel; // the head of each bucket
+	private final int mask;
+
+	private long tick; // the last tick, that has been processed
+	private long startTime; // ns
+	private int pending; // the number of scheduled timeouts
+
+	private Thread thread;
+
+	/**
+	 * Returns the timer that is shared by all apps. The timer starts on the
+	 * first call.
+	 *
+	 * @return the shared timer
+	 */
+	public static synchronized HashedWheelTimer getInstance() {
+		if (instance==null) {
+			instance = new HashedWheelTimer(DEFAULT_TICK_DURATION, DEFAULT_WHEEL_SIZE);
+			instance.start("Actinium-Timer");
+		}
+		return instance;
+	}
+
+	/**
+	 * Constructs a new HashedWheelTimer with the specified tick duration and
+	 * number of buckets. The wheel size is rounded up to a power of two.
+	 *
+	 * @param tickDuration the duration of a tick in milliseconds
+	 * @param wheelSize the number of buckets
+	 */
+	public HashedWheelTimer(long tickDuration, int wheelSize) {
+		if (tickDuration<=0) throw new IllegalArgumentException("Tick duration must be positive: "+tickDuration);
+		if (wheelSize<=0) throw new IllegalArgumentException("Wheel size must be positive: "+wheelSize);
+		int size = 1;
+		while (size<wheelSize)
+			size <<= 1;
+		this.tickDuration = tickDuration * 1000000L;
+		this.wheel = new Timeout[size];
+		this.mask = size - 1;
+	}
+
+	/**
+	 * Starts the timer thread with the specified name. The thread is a daemon.
+	 *
+	 * @param name the name of the thread
+	 */
+	public synchronized void start(String name) {
+		if (thread!=null)
+			throw new IllegalStateException("Timer has already been started");
+		startTime = System.nanoTime();
+		thread = new Thread(new Worker(), name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops the timer thread. Scheduled timeouts are not executed anymore.
+	 */
+	public synchronized void stop() {
+		if (thread!=null) {
+			thread.interrupt();
+			thread = null;
+		}
+	}
+
+	/**
+	 * Schedules the specified task for execution after the specified delay.
+	 *
+	 * @param task the task
+	 * @param delay the delay in milliseconds
+	 * @return the timeout to cancel the task
+	 */
+	public Timeout schedule(Runnable task, long delay) {
+		return schedule(task, delay, 0);
+	}
+
+	/**
+	 * Schedules the specified task for repeated execution, first after the
+	 * specified delay and then with the specified period.
+	 *
+	 * @param task the task
+	 * @param delay the delay in milliseconds
+	 * @param period the period in milliseconds
+	 * @return the timeout to cancel the task
+	 */
+	public Timeout scheduleAtFixedRate(Runnable task, long delay, long period) {
+		if (period<=0) throw new IllegalArgumentException("Period must be positive: "+period);
+		return schedule(task, delay, period);
+	}
+
+	private synchronized Timeout schedule(Runnable task, long delay, long period) {
+		if (task==null) throw new NullPointerException("Task must not be null");
+		if (delay<0) throw new IllegalArgumentException("Delay must not be negative: "+delay);
+		Timeout timeout = new Timeout(task, period * 1000000L);
+		timeout.deadline = System.nanoTime() + delay * 1000000L;
+		link(timeout);
+		return timeout;
+	}
+
+	/**
+	 * Returns the number of scheduled timeouts.
+	 *
+	 * @return the number of scheduled timeouts
+	 */
+	public synchronized int getPending() {
+		return pending;
+	}
+
+	/*
+	 * Adds the timeout to the bucket of the tick in which its deadline lies,
+	 * but at the earliest to the next tick.
+	 */
+	private void link(Timeout timeout) {
+		long ticks = (timeout.deadline - startTime + tickDuration - 1) / tickDuration;
+		timeout.tick = Math.max(ticks, tick + 1);
+		int index = (int) (timeout.tick & mask);
+		Timeout head = wheel[index];
+		timeout.next = head;
+		if (head!=null) head.prev = timeout;
+		wheel[index] = timeout;
+		timeout.bucket = index;
+		pending++;
+	}
+
+	private void unlink(Timeout timeout) {
+		if (timeout.prev!=null) timeout.prev.next = timeout.next;
+		else wheel[timeout.bucket] = timeout.next;
+		if (timeout.next!=null) timeout.next.prev = timeout.prev;
+		timeout.prev = null;
+		timeout.next = null;
+		timeout.bucket = -1;
+		pending--;
+	}
+
+	/*
+	 * Removes the timeouts, that expire in the specified tick, from their
+	 * bucket.
+	 */
+	private synchronized List<Timeout> expire(long current) {
+		tick = current;
+		List<Timeout> expired = null;
+		Timeout timeout = wheel[(int) (current & mask)];
+		while (timeout!=null) {
+			Timeout next = timeout.next;
+			if (timeout.tick<=current) {
+				unlink(timeout);
+				if (expired==null)
+					expired = new ArrayList<Timeout>();
+				expired.add(timeout);
+			}
+			timeout = next;
+		}
+		return expired;
+	}
+
+	/*
+	 * Schedules the next execution of a periodic timeout, unless it has been
+	 * cancelled meanwhile.
+	 */
+	private synchronized void reschedule(Timeout timeout) {
+		if (!timeout.cancelled) {
+			timeout.deadline += timeout.period;
+			link(timeout);
+		}
+	}
+
+	private synchronized void cancel(Timeout timeout) {
+		if (!timeout.cancelled) {
+			timeout.cancelled = true;
+			timeout.task = null;
+			if (timeout.bucket>=0)
+				unlink(timeout);
+		}
+	}
+
+	/**
+	 * Timeout is the handle of a scheduled task.
+	 */
+	public class Timeout {
+
+		private Runnable task; // null when cancelled
+		private final long period; // ns, 0 if not periodic
+		private long deadline; // ns
+		private long tick;
+
+		// the position within the wheel
+		private int bucket = -1;
+		private Timeout prev;
+		private Timeout next;
+
+		private volatile boolean cancelled;
+
+		private Timeout(Runnable task, long period) {
+			this.task = task;
+			this.period = period;
+		}
+
+		/**
+		 * Cancels the task. It is removed from the timer immediately.
+		 */
+		public void cancel() {
+			HashedWheelTimer.this.cancel(this);
+		}
+
+		/**
+		 * Returns true, if the task has been cancelled.
+		 *
+		 * @return true, if the task has been cancelled
+		 */
+		public boolean isCancelled() {
+			return cancelled;
+		}
+	}
+
+	/**
+	 * The timer thread. It processes one bucket per tick.
+	 */
+	private class Worker implements Runnable {
+		public void run() {
+			long current = 0;
+			while (!Thread.currentThread().isInterrupted()) {
+				current++;
+				long sleep = startTime + current * tickDuration - System.nanoTime();
+				if (sleep>0) {
+					try {
+						Thread.sleep(sleep / 1000000L, (int) (sleep % 1000000L));
+					} catch (InterruptedException e) {
+						break;
+					}
+				}
+
+				List<Timeout> expired = expire(current);
+				if (expired==null)
+					continue;
+				for (Timeout timeout:expired) {
+					Runnable task;
+					synchronized (HashedWheelTimer.this) {
+						task = timeout.task;
+						if (timeout.period<=0) {
+							timeout.task = null; // release the task
+						}
+					}
+					if (task==null)
+						continue; // cancelled meanwhile
+					try {
+						task.run();
+					} catch (RuntimeException e) {
+						LOG.severe("Timer task failed: "+e);
+						e.printStackTrace();
+					}
+					if (timeout.period>0)
+						reschedule(timeout);
+				}
+			}
+			LOG.info("Timer thread stopped");
+		}
+	}
+}
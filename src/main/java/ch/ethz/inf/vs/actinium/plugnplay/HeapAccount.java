@@ -0,0 +1,197 @@
+package ch.ethz.inf.vs.actinium.plugnplay;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.logging.Logger;
+
+/**
+ * HeapAccount accounts the memory an app uses: the bytes its tasks allocate
+ * and an estimate of the size of its JavaScript scope. The WorkQueue of the
+ * app begins and ends the account around every task, so that allocations are
+ * attributed to the app, even if it shares its thread with other apps on an
+ * event loop. Measuring allocations requires the ThreadMXBean of HotSpot
+ * (com.sun.management.ThreadMXBean).
+ * <p>
+ * Reading the allocated bytes of a thread is not free (it allocates and
+ * takes a lock in the JVM). Therefore, only every SAMPLE_INTERVAL-th task is
+ * measured and counts for SAMPLE_INTERVAL tasks, which estimates the bytes
+ * well enough for the stats. Only if the app has an allocation limit, every
+ * task is measured, so that the limit is checked against exact numbers.
+ * <p>
+ * Both measures have an optional soft limit: the bytes the app may allocate
+ * between two checks and the size of its scope. An app that exceeds a limit
+ * is logged. If it still exceeds a limit on the next check, check() tells
+ * the app to restart.
+ * <p>
+ * Other threads, e.g. the stats, only call getAllocatedBytes() and
+ * getScopeSize().
+ *
+ * @author Martin Lanter
+ */
+public class HeapAccount {
+
+	private static final Logger LOG = Logger.getLogger(HeapAccount.class.getName());
+
+	// null if the JVM cannot measure the allocations of threads
+	private static final com.sun.management.ThreadMXBean ALLOCATION_BEAN = createAllocationBean();
+
+	public static final int SAMPLE_INTERVAL = 16; // tasks per measured task without a limit
+
+	private final String name;
+
+	private volatile long allocated; // bytes, only written by the consumer
+	private long taskStart; // bytes allocated by the current thread, when the task began
+	private int taskScale; // tasks the current task counts for, 0 if not measured
+	private int tasks; // since the last measured task
+	private volatile long scopeSize = -1; // bytes, -1 if unknown
+
+	private volatile long allocationLimit; // bytes per check, 0 for unlimited
+	private volatile long scopeLimit; // bytes, 0 for unlimited
+
+	private long checked; // allocated bytes at the last check
+	private int strikes; // consecutive checks with an exceeded limit
+
+	/**
+	 * Constructs a new HeapAccount.
+	 *
+	 * @param name the name of the app
+	 * @param allocationLimit the bytes the app may allocate between two checks or 0
+	 * @param scopeLimit the bytes the app's scope may retain or 0
+	 */
+	public HeapAccount(String name, long allocationLimit, long scopeLimit) {
+		this.name = name;
+		setAllocationLimit(allocationLimit);
+		setScopeLimit(scopeLimit);
+	}
+
+	/**
+	 * Returns true, if the JVM can measure the bytes threads allocate.
+	 *
+	 * @return true, if allocations are accounted
+	 */
+	public static boolean isSupported() {
+		return ALLOCATION_BEAN!=null;
+	}
+
+	/**
+	 * Begins a task of the app on the current thread.
+	 */
+	public void begin() {
+		if (ALLOCATION_BEAN==null)
+			return;
+		if (allocationLimit>0) {
+			taskScale = 1;
+		} else if (++tasks>=SAMPLE_INTERVAL) {
+			tasks = 0;
+			taskScale = SAMPLE_INTERVAL;
+		} else {
+			taskScale = 0;
+			return;
+		}
+		taskStart = allocatedBytes();
+	}
+
+	/**
+	 * Ends the task of the app on the current thread and accounts its
+	 * allocations to the app.
+	 */
+	public void end() {
+		if (taskScale>0) {
+			allocated += (allocatedBytes() - taskStart) * taskScale;
+			taskScale = 0;
+		}
+	}
+
+	/**
+	 * Returns the bytes the tasks of the app have allocated, or -1 if not
+	 * supported by the JVM. Without an allocation limit, the bytes are
+	 * extrapolated from every SAMPLE_INTERVAL-th task.
+	 *
+	 * @return the allocated bytes or -1
+	 */
+	public long getAllocatedBytes() {
+		return ALLOCATION_BEAN!=null ? allocated : -1;
+	}
+
+	/**
+	 * Returns the estimated size of the app's scope in bytes or -1, if not
+	 * estimated yet.
+	 *
+	 * @return the scope size or -1
+	 */
+	public long getScopeSize() {
+		return scopeSize;
+	}
+
+	public void setScopeSize(long bytes) {
+		this.scopeSize = bytes;
+	}
+
+	public void setAllocationLimit(long bytes) {
+		this.allocationLimit = Math.max(0, bytes);
+	}
+
+	public void setScopeLimit(long bytes) {
+		this.scopeLimit = Math.max(0, bytes);
+	}
+
+	/**
+	 * Checks the limits. Logs the app, if it has exceeded a limit since the
+	 * last check.
+	 *
+	 * @return true, if the app has exceeded a limit on two consecutive checks
+	 *         and should be restarted
+	 */
+	public boolean check() {
+		long total = allocated;
+		long since = total - checked;
+		checked = total;
+
+		String exceeded = null;
+		long limit = allocationLimit;
+		if (limit>0 && ALLOCATION_BEAN!=null && since>limit) {
+			exceeded = name+" allocated "+since+" bytes since the last check (limit "+limit+" bytes)";
+		}
+		limit = scopeLimit;
+		long size = scopeSize;
+		if (limit>0 && size>limit) {
+			exceeded = name+" retains about "+size+" bytes in its scope (limit "+limit+" bytes)";
+		}
+
+		if (exceeded==null) {
+			strikes = 0;
+			return false;
+		} else if (++strikes<2) {
+			LOG.warning(exceeded);
+			return false;
+		} else {
+			LOG.warning(exceeded+" again. Restarting "+name);
+			strikes = 0;
+			return true;
+		}
+	}
+
+	private static long allocatedBytes() {
+		return ALLOCATION_BEAN!=null ? ALLOCATION_BEAN.getThreadAllocatedBytes(Thread.currentThread().getId()) : 0;
+	}
+
+	private static com.sun.management.ThreadMXBean createAllocationBean() {
+		try {
+			ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+			if (bean instanceof com.sun.management.ThreadMXBean) {
+				com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean) bean;
+				if (hotspot.isThreadAllocatedMemorySupported()) {
+					if (!hotspot.isThreadAllocatedMemoryEnabled())
+						hotspot.setThreadAllocatedMemoryEnabled(true);
+					return hotspot;
+				}
+			}
+		} catch (LinkageError e) {
+			// not a HotSpot JVM
+		} catch (UnsupportedOperationException e) {
+			// not supported after all
+		}
+		LOG.info("Allocated bytes per app are not supported by this JVM");
+		return null;
+	}
+}
@@ -1,26 +1,22 @@
 package ch.ethz.inf.vs.actinium.plugnplay;
 
 import java.io.File;
-import java.lang.reflect.InvocationTargetException;
 import java.util.HashMap;
 import java.util.Scanner;
-import java.util.Timer;
-import java.util.TimerTask;
 
 import org.mozilla.javascript.Context;
 import org.mozilla.javascript.Function;
-import org.mozilla.javascript.ImporterTopLevel;
+import org.mozilla.javascript.Script;
 import org.mozilla.javascript.Scriptable;
 import org.mozilla.javascript.ScriptableObject;
 import org.mozilla.javascript.WrappedException;
 
-import xmlhttp.XMLHttpRequest;
-
+import ch.ethz.inf.vs.actinium.EventRecorder;
 import ch.ethz.inf.vs.actinium.cfg.AppConfig;
 import ch.ethz.inf.vs.actinium.cfg.AppType;
 import ch.ethz.inf.vs.actinium.jscoap.CoAPConstants;
-import ch.ethz.inf.vs.actinium.jscoap.JavaScriptCoAPRequest;
 import ch.ethz.inf.vs.actinium.jscoap.JavaScriptResource;
+import ch.ethz.inf.vs.actinium.plugnplay.HashedWheelTimer.Timeout;
 
 import ch.ethz.inf.vs.californium.coap.CodeRegistry;
 import ch.ethz.inf.vs.californium.coap.DELETERequest;
@@ -56,44 +52,51 @@ public class JavaScriptApp extends AbstractApp implements CoAPConstants {
 	// The handler, that makes JavaScript execute requests on "app.root"
 	private JSRequestHandler requestHandler;
 	
-	// Java Packages, that are imported automatically for Rhino
-	private static String[] defaultpackages = {
-		"java.lang",
-		"java.util",
-		"java.io",
-		"java.net",
-		"java.text",
-		"ch.ethz.inf.vs.californium.coap", // Response, CodeRegistry
-		"ch.ethz.inf.vs.actinium.jscoap", // CoAPRequest
-		"ch.ethz.inf.vs.actinium.jscoap.jserror" // CoAPRequest RequestErrorException
-	};
-
+	// The compiled scripts shared with the other instances
+	private ScriptCache scriptCache;
+	
 	/**
 	 * Constructs a new JavaScriptApp with the given appcofnig
 	 * @param appconfig the configuration for this app
 	 */
 	public JavaScriptApp(AppConfig appconfig) {
+		this(appconfig, new ScriptCache());
+	}
+	
+	/**
+	 * Constructs a new JavaScriptApp with the given appcofnig that takes the
+	 * compiled code from the specified cache.
+	 * 
+	 * @param appconfig the configuration for this app
+	 * @param scriptCache the cache for compiled scripts
+	 */
+	public JavaScriptApp(AppConfig appconfig, ScriptCache scriptCache) {
 		super(appconfig);
 		this.appcfg = appconfig;
+		this.scriptCache = scriptCache;
 		this.requestHandler = new JSRequestHandler();
 		appconfig.getObservable().addObserver(this);
 	}
 	
 	@Override
 	protected synchronized void startImpl() {
-		thread = new Thread(this,"JavsScript "+getName());
-		thread.start();
+		if (getEventLoopGroup()!=null) {
+			thread = null;
+			scheduleMessages(new AppInitializer());
+		} else {
+			thread = new Thread(this,"JavsScript "+getName());
+			thread.start();
+		}
 	}
 	
 	@Override
 	protected synchronized void restartImpl() {
 		if (started) {
-			thread.interrupt();
+			if (thread!=null)
+				thread.interrupt();
 			cleanup();
 
-			for (JavaScriptTimeoutTask task : jsaccess.tasks.values()) {
-				task.cancel();
-			}
+			jsaccess.cancelTasks();
 		}
 		started = false;
 		start();
@@ -101,12 +104,11 @@ public class JavaScriptApp extends AbstractApp implements CoAPConstants {
 	
 	@Override
 	protected synchronized void shutdownImpl() {
-		thread.interrupt();
+		if (thread!=null)
+			thread.interrupt();
 		cleanup(); // call app.onunload in JavaScript
 		
-		for (JavaScriptTimeoutTask task : jsaccess.tasks.values()) {
-			task.cancel();
-		}
+		jsaccess.cancelTasks();
 	}
 
 	/**
@@ -115,27 +117,35 @@ public class JavaScriptApp extends AbstractApp implements CoAPConstants {
 	 */
 	@Override
 	public void run() {
-		try {
-			// Load JavaScript code
-			String path = appcfg.getProperty(AppConfig.DIR_PATH) + appcfg.getProperty(AppConfig.APP) + "." + AppType.getAppSuffix(appcfg.getProperty(AppConfig.TYPE));
-		
-			File file = new File(path);
-			Scanner scanner = new Scanner(file).useDelimiter("\\Z");
-			String code = "";
-			if (scanner.hasNext())
-		    	code = scanner.next();
-		    scanner.close();
-
-		    // execute code
-		    execute(code);
-
-		    // Start receiving requests for this app
-		    super.receiveMessages();
-		    
-        } catch (Exception e) {
-        	System.err.println("Exception while executing "+getName());
-        	e.printStackTrace();
-        }
+		// Start receiving requests for this app after executing its code
+		super.receiveMessages(new AppInitializer());
+	}
+	
+	/**
+	 * Loads the app's JavaScript code and executes it. This is the first task
+	 * the app's thread or event loop executes.
+	 */
+	private class AppInitializer implements Runnable {
+		public void run() {
+			try {
+				// Load JavaScript code
+				String path = appcfg.getProperty(AppConfig.DIR_PATH) + appcfg.getProperty(AppConfig.APP) + "." + AppType.getAppSuffix(appcfg.getProperty(AppConfig.TYPE));
+			
+				File file = new File(path);
+				Scanner scanner = new Scanner(file).useDelimiter("\\Z");
+				String code = "";
+				if (scanner.hasNext())
+			    	code = scanner.next();
+			    scanner.close();
+	
+			    // execute code
+			    execute(code);
+			    
+	        } catch (Exception e) {
+	        	System.err.println("Exception while executing "+getName());
+	        	e.printStackTrace();
+	        }
+		}
 	}
 
 	/**
@@ -144,40 +154,23 @@ public class JavaScriptApp extends AbstractApp implements CoAPConstants {
 	 */
 	public void execute(String code) {
 		String name = getName();
-		code = prependDefaultImporterCode(code);
 		
 		Context cx = Context.enter();
 		cx.addActivationName(name);
         try {
         	// initialize JavaScrip environmetn for the app: scope (variables)
-        	scope = cx.initStandardObjects();
-    		Scriptable s = new ImporterTopLevel(cx); // makes it possible to import packages inside JS
-    		scope.setPrototype(s);
-            
-    		// add two global functions dump and addSubResource
-            String[] names = { "dump", "addSubResource"};
-            scope.defineFunctionProperties(names, JavaScriptStaticAccess.class,
-                                           ScriptableObject.DONTENUM);
-
-            try {
-            	// Add AJAX' XMLHttpRequest to JavaScript
-            	ScriptableObject.defineClass(scope,	XMLHttpRequest.class);
-            	ScriptableObject.defineClass(scope,	JavaScriptCoAPRequest.class);
-			} catch (IllegalAccessException e) {
-				e.printStackTrace();
-			} catch (InstantiationException e) {
-				e.printStackTrace();
-			} catch (InvocationTargetException e) {
-				e.printStackTrace();
-			}
+        	// built-ins, default packages and classes come from the shared scope
+        	scope = SharedScope.createAppScope(cx);
             
 			// Add object "app" to JavaScript
             jsaccess = new JavaScriptAccess();
 			Object wrappedOut = Context.javaToJS(jsaccess, scope);
 			ScriptableObject.putProperty(scope, "app", wrappedOut);
             
-			// Execute code
-			cx.evaluateString(scope, code, name, 1, null);
+			// Execute code, compiled only once for all instances of the app
+			String source = appcfg.getProperty(AppConfig.APP, name);
+			Script script = scriptCache.getScript(cx, code, source);
+			script.exec(cx, scope);
 
         } catch (WrappedException e) {
         	Throwable cause = e.getCause();
@@ -195,10 +188,17 @@ public class JavaScriptApp extends AbstractApp implements CoAPConstants {
         }
 	}
 	
+	@Override
+	protected long estimateScopeSize() {
+		ScriptableObject current = scope;
+		return current!=null ? ScopeSizeEstimator.estimate(current) : -1;
+	}
+	
 	@Override
 	public long getRunningThreadId() {
-		if (thread!=null)
-			return thread.getId();
+		Thread executing = getExecutingThread();
+		if (executing!=null)
+			return executing.getId();
 		else return -1;
 	}
 	
@@ -267,17 +267,6 @@ public class JavaScriptApp extends AbstractApp implements CoAPConstants {
 		}
 	}
 	
-	/**
-	 * Creates commands for importing the default Java packages.
-	 */
-	private String prependDefaultImporterCode(String code) {
-		StringBuffer buffer = new StringBuffer();
-		for (String pckg:defaultpackages) {
-			buffer.append("importPackage(Packages."+pckg+");");
-		}
-		return buffer.toString() + code;
-	}
-
 	/**
 	 * JavaScriptAccess is the class for the object "app", that is accessible
 	 * from within JavaScript. It contains "app.root", the resource root and
@@ -290,9 +279,9 @@ public class JavaScriptApp extends AbstractApp implements CoAPConstants {
 		
 		public Function onunload = null; // "app.onunload = ..."
 		
-		private HashMap<Integer, JavaScriptTimeoutTask> tasks = 
-			new HashMap<Integer, JavaScriptTimeoutTask>(); // tasks and their id
-		private Timer timer = new Timer(getName()+"-timer", true); // timer to schedule tasks
+		private HashMap<Integer, Timeout> tasks = 
+			new HashMap<Integer, Timeout>(); // tasks and their id
+		private HashedWheelTimer timer = HashedWheelTimer.getInstance(); // timer to schedule tasks
 		private int timernr = 1; // increasing task counter
 		
 		/**
@@ -411,9 +400,8 @@ public class JavaScriptApp extends AbstractApp implements CoAPConstants {
 		public synchronized int setTimeout(Function function, long millis, Object... args) {
 			if (function==null) throw new NullPointerException("app.setTimeout expects function not null");
 			int nr = timernr++;
-			JavaScriptTimeoutTask task = new JavaScriptTimeoutTask(function, args);
-			tasks.put(nr, task);
-			timer.schedule(task, millis);
+			JavaScriptTimeoutTask task = new JavaScriptTimeoutTask(this, nr, function, args, false);
+			tasks.put(nr, timer.schedule(task, millis));
 			return nr;
 		}
 		
@@ -423,9 +411,9 @@ public class JavaScriptApp extends AbstractApp implements CoAPConstants {
 		 * @param id the task's id
 		 */
 		public synchronized void clearTimeout(int id) {
-			JavaScriptTimeoutTask task = tasks.get(id);
-			if (task!=null) {
-				task.cancel();
+			Timeout timeout = tasks.remove(id);
+			if (timeout!=null) {
+				timeout.cancel();
 			}
 		}
 
@@ -442,9 +430,8 @@ public class JavaScriptApp extends AbstractApp implements CoAPConstants {
 		public synchronized int setInterval(Function function, long millis, Object... args) {
 			if (function==null) throw new NullPointerException("app.setInterval expects function not null");
 			int nr = timernr++;
-			JavaScriptTimeoutTask task = new JavaScriptTimeoutTask(function, args);
-			tasks.put(nr, task);
-			timer.scheduleAtFixedRate(task, millis, millis);
+			JavaScriptTimeoutTask task = new JavaScriptTimeoutTask(this, nr, function, args, true);
+			tasks.put(nr, timer.scheduleAtFixedRate(task, millis, millis));
 			return nr;
 		}
 		
@@ -456,6 +443,25 @@ public class JavaScriptApp extends AbstractApp implements CoAPConstants {
 		public synchronized void clearInterval(int id) {
 			clearTimeout(id);
 		}
+		
+		/**
+		 * Cancels all tasks of this app.
+		 */
+		private synchronized void cancelTasks() {
+			for (Timeout timeout : tasks.values()) {
+				timeout.cancel();
+			}
+			tasks.clear();
+		}
+		
+		/**
+		 * Returns true, if the task with the specified id has not been
+		 * cancelled. If the task is not repeated, it is removed.
+		 */
+		private synchronized boolean consumeTask(int id, boolean repeated) {
+			Timeout timeout = repeated ? tasks.get(id) : tasks.remove(id);
+			return timeout!=null && !timeout.isCancelled();
+		}
 	}
 	
 	/**
@@ -467,14 +473,20 @@ public class JavaScriptApp extends AbstractApp implements CoAPConstants {
 	 */
 	// This class must be a inner class so that deliveRunnable() can be called.
 	// Ugly but neccessary.
-	private class JavaScriptTimeoutTask extends TimerTask {
+	private class JavaScriptTimeoutTask implements Runnable {
 		
+		private JavaScriptAccess access; // the "app" object that created the task
+		private int id; // the task's id
 		private Function function; // the function
 		private Object[] args; // the arguments
+		private boolean repeated; // true, if created by setInterval
 		
-		public JavaScriptTimeoutTask(Function function, Object[] args) {
+		public JavaScriptTimeoutTask(JavaScriptAccess access, int id, Function function, Object[] args, boolean repeated) {
+			this.access = access;
+			this.id = id;
 			this.function = function;
 			this.args = args;
+			this.repeated = repeated;
 		}
 
 		/**
@@ -486,7 +498,7 @@ public class JavaScriptApp extends AbstractApp implements CoAPConstants {
 		@Override
 		public void run() {
 			// add function to working queue
-			deliveRunnable(new FunctionExecuter());
+			deliveRunnable(new FunctionExecuter(), WorkQueue.LANE_TIMER);
 		}
 
 		/**
@@ -495,6 +507,10 @@ public class JavaScriptApp extends AbstractApp implements CoAPConstants {
 		 */
 		private class FunctionExecuter implements Runnable {
 			public void run() {
+				// the task might have been cancelled while waiting in the queue
+				if (!access.consumeTask(id, repeated))
+					return;
+				long start = EventRecorder.begin();
 				try {
 					// call function
 					Context cx = Context.enter();
@@ -508,6 +524,8 @@ public class JavaScriptApp extends AbstractApp implements CoAPConstants {
 					e.printStackTrace();
 				} finally {
 					Context.exit();
+					EventRecorder.commit(EventRecorder.TIMER, start, getName(), getPath(),
+							repeated ? "setInterval" : "setTimeout", 0);
 				}
 			}
 		}
@@ -0,0 +1,170 @@
+package ch.ethz.inf.vs.actinium.plugnplay;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import ch.ethz.inf.vs.actinium.LatencyHistogram;
+import ch.ethz.inf.vs.actinium.RateMeter;
+import ch.ethz.inf.vs.californium.endpoint.Resource;
+
+/**
+ * LatencyStats holds the latency histograms of an app and of each of its
+ * resources. For every request, three latencies in microseconds are recorded:
+ * <ul>
+ * <li>queue wait: from the arrival at the server until the app's queue hands
+ * the request to the handler,</li>
+ * <li>execution: from then until the handler responds,</li>
+ * <li>total: from the arrival at the server until the response.</li>
+ * </ul>
+ * Along with the latencies, the responses are counted by the class of their
+ * code (2.xx, 4.xx and 5.xx) with RateMeters, e.g. to see the current error
+ * rate. Recording does not allocate memory, except for the histograms of a resource
+ * the first time it receives a request. Therefore, the latencies are mapped by
+ * the resource itself and not by its path, which would have to be built.
+ *
+ * @author Martin Lanter
+ */
+public class LatencyStats {
+
+	public static final long HIGHEST_LATENCY = 60L * 1000000L; // us
+
+	private final Latencies app;
+	private final ConcurrentHashMap<Resource, Latencies> resources;
+
+	/**
+	 * Constructs a new LatencyStats without any recorded latencies.
+	 */
+	public LatencyStats() {
+		this.app = new Latencies(null);
+		this.resources = new ConcurrentHashMap<Resource, Latencies>();
+	}
+
+	/**
+	 * Returns the latencies of all requests to the app.
+	 *
+	 * @return the latencies of the app
+	 */
+	public Latencies getAppLatencies() {
+		return app;
+	}
+
+	/**
+	 * Returns the latencies of the resources, that have received requests,
+	 * mapped by their path.
+	 *
+	 * @return the latencies of the resources
+	 */
+	public Map<String, Latencies> getResourceLatencies() {
+		Map<String, Latencies> map = new TreeMap<String, Latencies>();
+		for (Latencies latencies:resources.values())
+			map.put(latencies.path, latencies);
+		return map;
+	}
+
+	/**
+	 * Returns the latencies of the specified resource. They are created, if
+	 * the resource has not received any request yet.
+	 *
+	 * @param resource the resource
+	 * @return the latencies of the resource
+	 */
+	public Latencies getResourceLatencies(Resource resource) {
+		Latencies latencies = resources.get(resource);
+		if (latencies==null) {
+			Latencies created = new Latencies(resource.getPath());
+			latencies = resources.putIfAbsent(resource, created);
+			if (latencies==null)
+				latencies = created;
+		}
+		return latencies;
+	}
+
+	/**
+	 * Marks a response with the specified code in the meters of the app and
+	 * of the specified resource without recording any latencies, e.g. for a
+	 * request, that has been rejected or answered from the cache before it
+	 * reached the app's queue.
+	 *
+	 * @param resource the target resource
+	 * @param code the response code
+	 */
+	public void recordResponse(Resource resource, int code) {
+		app.recordResponse(code);
+		getResourceLatencies(resource).recordResponse(code);
+	}
+
+	/**
+	 * Removes the latencies of all resources, e.g. when the app has replaced
+	 * its resources on a restart. The latencies of the app remain.
+	 */
+	public void removeResources() {
+		resources.clear();
+	}
+
+	/**
+	 * The histograms of queue wait, execution and total latency and the
+	 * meters of the response code classes.
+	 */
+	public static class Latencies {
+
+		private final String path; // of the resource or null for the app
+		private final LatencyHistogram queueWait;
+		private final LatencyHistogram execution;
+		private final LatencyHistogram total;
+		private final RateMeter success; // 2.xx
+		private final RateMeter clientErrors; // 4.xx
+		private final RateMeter serverErrors; // 5.xx
+
+		private Latencies(String path) {
+			this.path = path;
+			this.queueWait = new LatencyHistogram(HIGHEST_LATENCY);
+			this.execution = new LatencyHistogram(HIGHEST_LATENCY);
+			this.total = new LatencyHistogram(HIGHEST_LATENCY);
+			this.success = new RateMeter();
+			this.clientErrors = new RateMeter();
+			this.serverErrors = new RateMeter();
+		}
+
+		/**
+		 * Marks a response with the specified code in the meter of its class.
+		 *
+		 * @param code the response code
+		 */
+		public void recordResponse(int code) {
+			switch (code >>> 5) { // the class of the code
+			case 2: success.mark(); break;
+			case 4: clientErrors.mark(); break;
+			case 5: serverErrors.mark(); break;
+			}
+		}
+
+		public String getPath() {
+			return path;
+		}
+
+		public LatencyHistogram getQueueWait() {
+			return queueWait;
+		}
+
+		public LatencyHistogram getExecution() {
+			return execution;
+		}
+
+		public LatencyHistogram getTotal() {
+			return total;
+		}
+
+		public RateMeter getSuccess() {
+			return success;
+		}
+
+		public RateMeter getClientErrors() {
+			return clientErrors;
+		}
+
+		public RateMeter getServerErrors() {
+			return serverErrors;
+		}
+	}
+}
@@ -0,0 +1,274 @@
+package ch.ethz.inf.vs.actinium.plugnplay;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ch.ethz.inf.vs.californium.coap.GETRequest;
+import ch.ethz.inf.vs.californium.coap.Option;
+import ch.ethz.inf.vs.californium.coap.OptionNumberRegistry;
+import ch.ethz.inf.vs.californium.coap.Request;
+import ch.ethz.inf.vs.californium.coap.Response;
+import ch.ethz.inf.vs.californium.endpoint.LocalResource;
+
+/**
+ * RequestCoalescer merges identical GET requests to the same resource of an
+ * app. The first GET for a resource, query and Accept option is delivered to
+ * the app's queue as a CoalescedRequest. While it is pending or executing,
+ * identical GETs attach to it instead of being queued. When the app responds,
+ * every attached request receives a copy of the response. Therefore, the
+ * handler runs once per burst instead of once per client.
+ * <p>
+ * GETs with an Observe option are not coalesced, since every observer must be
+ * registered with the resource. A request that has been pending for longer
+ * than MAX_PENDING does not take any more requests. A CoalescedRequest is
+ * never dropped from the queue as the oldest NON request, even if the first
+ * request was non-confirmable, since the requests attached to it (possibly
+ * confirmable ones) would never be responded.
+ * <p>
+ * Attached requests do not pass the app's AdmissionControl, only the
+ * CoalescedRequest, when it is queued. If it is not admitted, all requests
+ * attached to it meanwhile are responded with 5.03 as well.
+ * <p>
+ * The RequestCoalescer also fills the app's ResponseCache: a GET that missed
+ * the cache is delivered as a CoalescedRequest (without taking any further
+ * requests, if coalescing is disabled) and its response is put into the cache.
+ *
+ * @author Martin Lanter
+ */
+public class RequestCoalescer {
+
+	public static final long MAX_PENDING = 10000; // ms
+
+	// maps the key of a request to the pending request it attaches to
+	private final ConcurrentHashMap<String, CoalescedRequest> pending;
+
+	private final AtomicInteger coalesced; // attached requests
+
+	private final ResponseCache cache;
+
+	private final AdmissionControl admission;
+
+	/**
+	 * Constructs a new RequestCoalescer that puts the responses into the
+	 * specified cache and admits the requests it queues with the specified
+	 * admission control.
+	 *
+	 * @param cache the response cache of the app
+	 * @param admission the admission control of the app
+	 */
+	public RequestCoalescer(ResponseCache cache, AdmissionControl admission) {
+		this.cache = cache;
+		this.admission = admission;
+		this.pending = new ConcurrentHashMap<String, CoalescedRequest>();
+		this.coalesced = new AtomicInteger();
+	}
+
+	/**
+	 * Returns true, if the specified request can be coalesced with identical
+	 * ones.
+	 *
+	 * @param request the request
+	 * @return true, if the request can be coalesced
+	 */
+	public static boolean isCoalescable(Request request) {
+		return request instanceof GETRequest
+				&& request.getFirstOption(OptionNumberRegistry.OBSERVE)==null;
+	}
+
+	/**
+	 * Returns true, if the specified request has been delivered in place of
+	 * identical requests and must not be dropped without a response.
+	 *
+	 * @param request the request
+	 * @return true, if the request is a CoalescedRequest
+	 */
+	public static boolean isCoalesced(Request request) {
+		return request instanceof CoalescedRequest;
+	}
+
+	/**
+	 * Attaches the specified request to a pending identical request for the
+	 * specified resource or delivers it to the specified queue. If coalesce is
+	 * false, the request is only delivered, so that its response is cached.
+	 *
+	 * @param request the GET request
+	 * @param resource the target resource
+	 * @param queue the app's queue
+	 * @param coalesce true, if the request may be attached to another one
+	 * @param received the time in ns, when the server has received the request
+	 * @return true, if the request has been attached or queued, false if it
+	 *         has not been admitted or the queue is full
+	 */
+	public boolean deliver(Request request, LocalResource resource, WorkQueue queue, boolean coalesce, long received) {
+		String key = key(request, resource);
+		if (!coalesce) {
+			CoalescedRequest created = new CoalescedRequest(key, resource.getPath(), request);
+			created.setResource(resource);
+			return admission.admit(created, resource, queue) && queue.deliver(created, resource, received);
+		}
+		while (true) {
+			CoalescedRequest current = pending.get(key);
+			if (current!=null) {
+				if (!current.isStale() && current.attach(request)) {
+					coalesced.incrementAndGet();
+					return true;
+				}
+				// already responded or stale, but not yet removed
+				pending.remove(key, current);
+				continue;
+			}
+
+			CoalescedRequest created = new CoalescedRequest(key, resource.getPath(), request);
+			if (pending.putIfAbsent(key, created)==null) {
+				created.setResource(resource);
+				// if rejected, the requests attached meanwhile are responded and it is no longer pending
+				return admission.admit(created, resource, queue) && queue.deliver(created, resource, received);
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of requests, that have been attached to an identical
+	 * request.
+	 *
+	 * @return the number of coalesced requests
+	 */
+	public int getCoalesced() {
+		return coalesced.get();
+	}
+
+	/*
+	 * Requests are identical if they have the same resource, query and Accept
+	 * options. The ResponseCache uses the same key.
+	 */
+	static String key(Request request, LocalResource resource) {
+		StringBuilder key = new StringBuilder(resource.getPath());
+		key.append('?');
+		String query = request.getQuery();
+		if (query!=null)
+			key.append(query);
+		List<Option> accepts = request.getOptions(OptionNumberRegistry.ACCEPT);
+		if (accepts!=null) {
+			for (Option accept:accepts) {
+				key.append(';').append(accept.getIntValue());
+			}
+		}
+		return key.toString();
+	}
+
+	/**
+	 * CoalescedRequest is the request the app handles in place of all
+	 * identical requests attached to it. Everything it is responded with is
+	 * copied to the attached requests.
+	 */
+	private class CoalescedRequest extends GETRequest {
+
+		private final String key;
+		private final String path; // of the resource
+		private final long created; // ns
+		private final long version; // of the cache
+		private List<Request> requests; // null when responded
+
+		private CoalescedRequest(String key, String path, Request first) {
+			this.key = key;
+			this.path = path;
+			this.created = System.nanoTime();
+			this.version = cache.getVersion();
+			this.requests = new ArrayList<Request>();
+			this.requests.add(first);
+
+			// the app sees the first request
+			setType(first.getType());
+			setMID(first.getMID());
+			for (Option option:first.getOptions()) {
+				addOption(option);
+			}
+			if (first.getPayload()!=null)
+				setPayload(first.getPayload());
+			this.startTime = first.startTime;
+		}
+
+		private boolean isStale() {
+			return System.nanoTime() - created > MAX_PENDING * 1000000L;
+		}
+
+		private synchronized boolean attach(Request request) {
+			if (requests==null)
+				return false;
+			requests.add(request);
+			return true;
+		}
+
+		private synchronized List<Request> detach() {
+			List<Request> detached = requests;
+			requests = null;
+			return detached;
+		}
+
+		@Override
+		public void accept() {
+			List<Request> snapshot;
+			synchronized (this) {
+				if (requests==null) return;
+				snapshot = new ArrayList<Request>(requests);
+			}
+			for (Request request:snapshot) {
+				request.accept();
+			}
+		}
+
+		@Override
+		public void respond(int code) {
+			respond(new Response(code));
+		}
+
+		@Override
+		public void respond(int code, String message) {
+			Response response = new Response(code);
+			if (message!=null)
+				response.setPayload(message);
+			respond(response);
+		}
+
+		@Override
+		public void respond(int code, String message, int contentType) {
+			Response response = new Response(code);
+			if (message!=null)
+				response.setPayload(message, contentType);
+			respond(response);
+		}
+
+		@Override
+		public void respond(Response response) {
+			List<Request> detached = detach();
+			pending.remove(key, this);
+			if (detached==null)
+				return; // only the first response is forwarded
+
+			cache.put(key, path, response, version);
+
+			// copy before the first request adds its token to the response
+			Response[] responses = new Response[detached.size()];
+			responses[0] = response;
+			for (int i=1;i<responses.length;i++) {
+				responses[i] = copy(response);
+			}
+			for (int i=0;i<responses.length;i++) {
+				detached.get(i).respond(responses[i]);
+			}
+		}
+
+	}
+
+	private static Response copy(Response response) {
+		Response copy = new Response(response.getCode());
+		for (Option option:response.getOptions()) {
+			copy.addOption(option);
+		}
+		if (response.getPayload()!=null)
+			copy.setPayload(response.getPayload());
+		return copy;
+	}
+}
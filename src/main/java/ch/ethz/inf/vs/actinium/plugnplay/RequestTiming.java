@@ -0,0 +1,114 @@
+package ch.ethz.inf.vs.actinium.plugnplay;
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+import ch.ethz.inf.vs.actinium.plugnplay.LatencyStats.Latencies;
+import ch.ethz.inf.vs.californium.endpoint.Resource;
+
+/**
+ * RequestTiming holds the timestamps of a request on its way through an app:
+ * when the server received it, when the app's queue handed it to the handler
+ * and when the handler responded. The WorkQueue of the app creates the timing
+ * with the request and records the queue wait when the request is dequeued.
+ * The handler calls responded() when it responds, which records the execution
+ * time, the total latency and the response code of the request into the app's
+ * LatencyStats.
+ * <p>
+ * While the handler of a request executes, its timing is available through
+ * current(), so that a response sent later from another task can still be
+ * assigned to the request.
+ *
+ * @author Martin Lanter
+ */
+public class RequestTiming {
+
+	private static final AtomicIntegerFieldUpdater<RequestTiming> RESPONDED =
+			AtomicIntegerFieldUpdater.newUpdater(RequestTiming.class, "responded");
+
+	// the timing of the request the current thread is handling
+	private static final ThreadLocal<RequestTiming> CURRENT = new ThreadLocal<RequestTiming>();
+
+	private final Latencies app; // null if not recorded
+	private final Latencies resource; // null if not recorded
+	private final long received; // ns
+	private long dequeued; // ns
+
+	private volatile int responded; // 1 when recorded
+
+	/**
+	 * Constructs a new RequestTiming for a request, that the server has
+	 * received at the specified time.
+	 *
+	 * @param stats the latency stats of the app or null
+	 * @param resource the target resource
+	 * @param received the time in ns (System.nanoTime())
+	 */
+	RequestTiming(LatencyStats stats, Resource resource, long received) {
+		this.app = stats!=null ? stats.getAppLatencies() : null;
+		this.resource = stats!=null ? stats.getResourceLatencies(resource) : null;
+		this.received = received;
+	}
+
+	/**
+	 * Returns the timing of the request, whose handler the current thread is
+	 * executing, or null.
+	 *
+	 * @return the timing of the current request or null
+	 */
+	public static RequestTiming current() {
+		return CURRENT.get();
+	}
+
+	/**
+	 * Records the queue wait. Called when the handler begins.
+	 */
+	void dequeued() {
+		dequeued = System.nanoTime();
+		if (app!=null) {
+			long wait = (dequeued - received) / 1000;
+			app.getQueueWait().recordValue(wait);
+			resource.getQueueWait().recordValue(wait);
+		}
+		CURRENT.set(this);
+	}
+
+	/**
+	 * Called when the handler returns.
+	 */
+	void handled() {
+		CURRENT.remove();
+	}
+
+	/**
+	 * Records the execution time, total latency and response code of the
+	 * request, unless they have been recorded already.
+	 *
+	 * @param code the code of the response
+	 */
+	public void responded(int code) {
+		if (app==null || !RESPONDED.compareAndSet(this, 0, 1))
+			return;
+		long now = System.nanoTime();
+		long execution = (now - dequeued) / 1000;
+		long total = (now - received) / 1000;
+		app.getExecution().recordValue(execution);
+		resource.getExecution().recordValue(execution);
+		app.getTotal().recordValue(total);
+		resource.getTotal().recordValue(total);
+		app.recordResponse(code);
+		resource.recordResponse(code);
+	}
+
+	/**
+	 * Records only the response code of the request, that has been rejected
+	 * before its handler began, unless it has been recorded already.
+	 *
+	 * @param code the code of the response
+	 */
+	void rejected(int code) {
+		if (app==null || !RESPONDED.compareAndSet(this, 0, 1))
+			return;
+		app.recordResponse(code);
+		resource.recordResponse(code);
+	}
+}
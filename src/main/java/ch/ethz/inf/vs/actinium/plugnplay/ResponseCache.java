@@ -0,0 +1,218 @@
+package ch.ethz.inf.vs.actinium.plugnplay;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ch.ethz.inf.vs.californium.coap.CodeRegistry;
+import ch.ethz.inf.vs.californium.coap.Option;
+import ch.ethz.inf.vs.californium.coap.OptionNumberRegistry;
+import ch.ethz.inf.vs.californium.coap.Response;
+
+/**
+ * ResponseCache stores the last successful (2.05) response of the resources of
+ * an app. A GET request that hits the cache is responded right away by the
+ * thread that delivers it, without entering the app's queue. An entry expires
+ * after the Max-Age of its response and is invalidated, when the app calls
+ * changed() on the resource or on the app itself. Responses with a Max-Age of
+ * 0 are not cached.
+ * <p>
+ * The cache holds at most capacity entries and evicts the least recently used
+ * one. A capacity of 0 disables the cache.
+ *
+ * @author Martin Lanter
+ */
+public class ResponseCache {
+
+	private final LinkedHashMap<String, CachedResponse> entries; // in access order
+
+	private int capacity; // 0 if disabled
+
+	// incremented on every invalidation to discard responses in progress
+	private long version;
+
+	private final AtomicInteger hits;
+	private final AtomicInteger misses;
+
+	/**
+	 * Constructs a new ResponseCache with the specified capacity.
+	 *
+	 * @param capacity the maximal amount of entries or 0
+	 */
+	public ResponseCache(int capacity) {
+		this.entries = new LinkedHashMap<String, CachedResponse>(16, 0.75f, true) {
+			private static final long serialVersionUID = 2581370936625937409L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CachedResponse> eldest) {
+				return size() > ResponseCache.this.capacity;
+			}
+		};
+		this.hits = new AtomicInteger();
+		this.misses = new AtomicInteger();
+		setCapacity(capacity);
+	}
+
+	/**
+	 * Returns true, if the cache is enabled.
+	 *
+	 * @return true, if the cache is enabled
+	 */
+	public synchronized boolean isEnabled() {
+		return capacity>0;
+	}
+
+	/**
+	 * Returns a copy of the cached response for the specified key or null, if
+	 * there is none or it has expired. The Max-Age of the copy is the
+	 * remaining time until the entry expires.
+	 *
+	 * @param key the key of the request
+	 * @return the cached response or null
+	 */
+	public Response get(String key) {
+		CachedResponse entry;
+		synchronized (this) {
+			entry = entries.get(key);
+			if (entry!=null && entry.expires - System.nanoTime() <= 0) {
+				entries.remove(key);
+				entry = null;
+			}
+		}
+		if (entry==null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+
+		Response response = new Response(entry.code);
+		for (Option option:entry.options) {
+			response.addOption(option);
+		}
+		long remaining = (entry.expires - System.nanoTime() + 999999999L) / 1000000000L;
+		response.setOption(new Option((int) Math.max(1, remaining), OptionNumberRegistry.MAX_AGE));
+		if (entry.payload!=null)
+			response.setPayload(entry.payload);
+		return response;
+	}
+
+	/**
+	 * Returns the current version of the cache. A response may only be put
+	 * into the cache with the version that was current when the request has
+	 * been delivered, so that invalidations in between discard it.
+	 *
+	 * @return the current version
+	 */
+	public synchronized long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Stores a copy of the specified response, if it is a 2.05 response with
+	 * a positive Max-Age and the cache has not been invalidated since the
+	 * specified version.
+	 *
+	 * @param key the key of the request
+	 * @param path the path of the resource
+	 * @param response the response
+	 * @param version the version when the request has been delivered
+	 */
+	public void put(String key, String path, Response response, long version) {
+		if (response.getCode()!=CodeRegistry.RESP_CONTENT)
+			return;
+		int maxAge = response.getMaxAge();
+		if (maxAge<=0)
+			return;
+
+		List<Option> options = new ArrayList<Option>();
+		for (Option option:response.getOptions()) {
+			int nr = option.getOptionNumber();
+			if (nr!=OptionNumberRegistry.MAX_AGE && nr!=OptionNumberRegistry.TOKEN)
+				options.add(option);
+		}
+		CachedResponse entry = new CachedResponse(path, response.getCode(), options, response.getPayload(),
+				System.nanoTime() + maxAge * 1000000000L);
+
+		synchronized (this) {
+			if (capacity>0 && this.version==version)
+				entries.put(key, entry);
+		}
+	}
+
+	/**
+	 * Invalidates all entries of the resource with the specified path.
+	 *
+	 * @param path the path of the resource
+	 */
+	public synchronized void invalidate(String path) {
+		version++;
+		Iterator<CachedResponse> it = entries.values().iterator();
+		while (it.hasNext()) {
+			if (it.next().path.equals(path))
+				it.remove();
+		}
+	}
+
+	/**
+	 * Invalidates all entries.
+	 */
+	public synchronized void clear() {
+		version++;
+		entries.clear();
+	}
+
+	/**
+	 * Sets the maximal amount of entries. A capacity of 0 disables the cache.
+	 *
+	 * @param capacity the capacity
+	 */
+	public synchronized void setCapacity(int capacity) {
+		this.capacity = Math.max(0, capacity);
+		// evict the least recently used entries, that exceed the capacity
+		Iterator<CachedResponse> it = entries.values().iterator();
+		while (entries.size()>this.capacity && it.hasNext()) {
+			it.next();
+			it.remove();
+		}
+	}
+
+	/**
+	 * Returns the number of requests, that have been responded from the cache.
+	 *
+	 * @return the number of hits
+	 */
+	public int getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * Returns the number of requests, that have not been found in the cache.
+	 *
+	 * @return the number of misses
+	 */
+	public int getMisses() {
+		return misses.get();
+	}
+
+	/*
+	 * A cached response.
+	 */
+	private static class CachedResponse {
+
+		private final String path;
+		private final int code;
+		private final List<Option> options; // without Max-Age and Token
+		private final byte[] payload;
+		private final long expires; // ns
+
+		private CachedResponse(String path, int code, List<Option> options, byte[] payload, long expires) {
+			this.path = path;
+			this.code = code;
+			this.options = options;
+			this.payload = payload;
+			this.expires = expires;
+		}
+	}
+}
@@ -0,0 +1,94 @@
+package ch.ethz.inf.vs.actinium.plugnplay;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+import org.mozilla.javascript.Wrapper;
+
+/**
+ * ScopeSizeEstimator estimates the bytes a JavaScript scope retains. It walks
+ * all objects reachable through the properties of the scope and adds up rough
+ * sizes for objects, properties, strings and numbers. The walk does not follow
+ * prototypes and parent scopes, since they lead to the built-ins of the
+ * SharedScope, and it stops at sealed objects (the shared standard objects)
+ * and wrapped Java objects. Getters are never called.
+ * <p>
+ * The estimate is meant to spot apps, whose scope grows, not to measure the
+ * exact size. It must be computed by the thread that executes the app.
+ *
+ * @author Martin Lanter
+ */
+public final class ScopeSizeEstimator {
+
+	public static final int MAX_OBJECTS = 100000; // stops the walk
+
+	private static final int OBJECT_SIZE = 64; // object with slot table
+	private static final int PROPERTY_SIZE = 40; // slot
+	private static final int STRING_SIZE = 40; // without the characters
+	private static final int BOXED_SIZE = 16; // Double, Integer, Boolean
+
+	private ScopeSizeEstimator() {}
+
+	/**
+	 * Returns the estimated bytes the specified scope retains.
+	 *
+	 * @param scope the scope
+	 * @return the estimated size in bytes
+	 */
+	public static long estimate(Scriptable scope) {
+		IdentityHashMap<Object, Object> visited = new IdentityHashMap<Object, Object>();
+		List<Scriptable> pending = new ArrayList<Scriptable>();
+		pending.add(scope);
+		visited.put(scope, scope);
+
+		long size = 0;
+		while (!pending.isEmpty() && visited.size()<=MAX_OBJECTS) {
+			Scriptable object = pending.remove(pending.size()-1);
+			size += OBJECT_SIZE;
+			if (object instanceof Wrapper)
+				continue; // a Java object
+
+			Object[] ids = object instanceof ScriptableObject
+					? ((ScriptableObject) object).getAllIds()
+					: object.getIds();
+			for (Object id:ids) {
+				size += PROPERTY_SIZE;
+				Object value = get(object, id);
+				if (value instanceof Scriptable) {
+					Scriptable child = (Scriptable) value;
+					if (!visited.containsKey(child)
+							&& !(child instanceof ScriptableObject && ((ScriptableObject) child).isSealed())) {
+						visited.put(child, child);
+						pending.add(child);
+					}
+				} else if (value instanceof CharSequence) {
+					size += STRING_SIZE + 2 * ((CharSequence) value).length();
+				} else if (value instanceof Number || value instanceof Boolean) {
+					size += BOXED_SIZE;
+				}
+			}
+		}
+		return size;
+	}
+
+	/*
+	 * Returns the value of the property or its getter, without calling it.
+	 */
+	private static Object get(Scriptable object, Object id) {
+		String name = id instanceof String ? (String) id : null;
+		int index = id instanceof Number ? ((Number) id).intValue() : 0;
+		try {
+			if (object instanceof ScriptableObject) {
+				Object getter = ((ScriptableObject) object).getGetterOrSetter(name, index, false);
+				if (getter instanceof Scriptable)
+					return getter;
+			}
+			return name!=null ? object.get(name, object) : object.get(index, object);
+		} catch (RuntimeException e) {
+			return null; // e.g. a host object that refuses the access
+		}
+	}
+}
@@ -0,0 +1,272 @@
+package ch.ethz.inf.vs.actinium.plugnplay;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+import org.mozilla.javascript.CompilerEnvirons;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.GeneratedClassLoader;
+import org.mozilla.javascript.Script;
+import org.mozilla.javascript.optimizer.ClassCompiler;
+
+/**
+ * ScriptCache holds compiled JavaScript code so that the code of an app is
+ * only parsed and compiled once, no matter how many instances of the app run
+ * or how often they are restarted. Compiled scripts do not depend on the
+ * scope they are executed in and are therefore shared by all instances.
+ * <p>
+ * Scripts are identified by the SHA-1 hash of their source code. When an app
+ * is updated, the new code has a different hash and is compiled once for all
+ * instances. The script of the previous version is evicted.
+ * <p>
+ * If a directory is specified, compiled scripts are also stored as class
+ * files to the disk and loaded from there after a restart of the app server.
+ *
+ * @author Martin Lanter
+ */
+public class ScriptCache {
+
+	private static final Logger LOG = Logger.getLogger(ScriptCache.class.getName());
+
+	private static final String CLASS_PREFIX = "ch.ethz.inf.vs.actinium.compiled.Script_";
+	private static final String FILE_SUFFIX = ".jsc";
+
+	// the directory for compiled scripts or null
+	private File directory;
+
+	// maps the hash of the source code to the compiled script
+	private ConcurrentHashMap<String, CachedScript> scripts;
+
+	// maps the name of an app to the hash of its most recent code
+	private ConcurrentHashMap<String, String> latest;
+
+	/**
+	 * Constructs a new ScriptCache that holds the compiled scripts in memory
+	 * only.
+	 */
+	public ScriptCache() {
+		this(null);
+	}
+
+	/**
+	 * Constructs a new ScriptCache that also stores the compiled scripts to
+	 * the specified directory.
+	 *
+	 * @param path the directory for compiled scripts or null
+	 */
+	public ScriptCache(String path) {
+		this.scripts = new ConcurrentHashMap<String, CachedScript>();
+		this.latest = new ConcurrentHashMap<String, String>();
+		if (path!=null) {
+			File dir = new File(path);
+			if (dir.isDirectory() || dir.mkdirs()) {
+				this.directory = dir;
+			} else {
+				System.err.println("Cannot create directory "+path+" for compiled scripts. Scripts are only cached in memory");
+			}
+		}
+	}
+
+	/**
+	 * Returns the compiled script for the specified code. If the code has not
+	 * been compiled yet, it is compiled with the specified context. Concurrent
+	 * calls for the same code compile it only once.
+	 *
+	 * @param cx the current context
+	 * @param code the source code
+	 * @param name the name of the app the code belongs to
+	 * @return the compiled script
+	 */
+	public Script getScript(Context cx, String code, String name) {
+		String hash = hash(code, cx.getOptimizationLevel(), cx.getInstructionObserverThreshold()>0);
+
+		CachedScript cached = scripts.get(hash);
+		if (cached==null) {
+			CachedScript created = new CachedScript(hash, code, name);
+			cached = scripts.putIfAbsent(hash, created);
+			if (cached==null) cached = created;
+		}
+
+		String previous = latest.put(name, hash);
+		if (previous!=null && !previous.equals(hash)) {
+			evict(previous);
+		}
+
+		return cached.get(cx);
+	}
+
+	/**
+	 * Removes the script with the specified hash from the cache.
+	 * @param hash the hash of the script's code.
+	 */
+	private void evict(String hash) {
+		if (latest.containsValue(hash))
+			return; // still in use by another app with the same code
+
+		scripts.remove(hash);
+		if (directory!=null) {
+			File file = new File(directory, hash+FILE_SUFFIX);
+			if (file.exists() && !file.delete())
+				System.err.println("Unable to delete compiled script "+file);
+		}
+	}
+
+	/**
+	 * Compiles the specified code to a script. If a directory is specified,
+	 * the script is loaded from there or compiled to class files and stored.
+	 */
+	private Script compile(Context cx, String hash, String code, String name) {
+		if (directory==null || cx.getOptimizationLevel()<0) {
+			return cx.compileString(code, name, 1, null);
+		}
+
+		File file = new File(directory, hash+FILE_SUFFIX);
+		Object[] classes = null;
+		if (file.exists()) {
+			try {
+				classes = loadClassFiles(file);
+			} catch (IOException e) {
+				System.err.println("Unable to load compiled script "+file+": "+e.getMessage());
+			}
+		}
+
+		if (classes==null) {
+			CompilerEnvirons env = new CompilerEnvirons();
+			env.initFromContext(cx);
+			ClassCompiler compiler = new ClassCompiler(env);
+			classes = compiler.compileToClassFiles(code, name, 1, CLASS_PREFIX+hash);
+			try {
+				storeClassFiles(file, classes);
+			} catch (IOException e) {
+				System.err.println("Unable to store compiled script "+file+": "+e.getMessage());
+			}
+		}
+
+		return defineScript(cx, classes);
+	}
+
+	/**
+	 * Defines the specified classes and creates an instance of the first
+	 * one, which is the main class of the script.
+	 */
+	private Script defineScript(Context cx, Object[] classes) {
+		GeneratedClassLoader loader = cx.createClassLoader(ScriptCache.class.getClassLoader());
+		Class<?> main = null;
+		for (int i=0;i<classes.length;i+=2) {
+			Class<?> c = loader.defineClass((String) classes[i], (byte[]) classes[i+1]);
+			if (i==0) main = c;
+		}
+		loader.linkClass(main);
+
+		try {
+			return (Script) main.newInstance();
+		} catch (InstantiationException e) {
+			throw new RuntimeException("Unable to instantiate compiled script "+main.getName(), e);
+		} catch (IllegalAccessException e) {
+			throw new RuntimeException("Unable to instantiate compiled script "+main.getName(), e);
+		}
+	}
+
+	/**
+	 * Stores the class names and bytes alternating in the specified array to
+	 * the specified file.
+	 */
+	private void storeClassFiles(File file, Object[] classes) throws IOException {
+		File temp = new File(file.getPath()+".tmp");
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(temp));
+		try {
+			out.writeInt(classes.length/2);
+			for (int i=0;i<classes.length;i+=2) {
+				byte[] bytes = (byte[]) classes[i+1];
+				out.writeUTF((String) classes[i]);
+				out.writeInt(bytes.length);
+				out.write(bytes);
+			}
+		} finally {
+			out.close();
+		}
+		if (!temp.renameTo(file)) {
+			temp.delete();
+			throw new IOException("Cannot rename "+temp+" to "+file);
+		}
+	}
+
+	/**
+	 * Loads the class names and bytes stored by storeClassFiles.
+	 */
+	private Object[] loadClassFiles(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try {
+			int count = in.readInt();
+			Object[] classes = new Object[2*count];
+			for (int i=0;i<count;i++) {
+				classes[2*i] = in.readUTF();
+				byte[] bytes = new byte[in.readInt()];
+				in.readFully(bytes);
+				classes[2*i+1] = bytes;
+			}
+			return classes;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Returns the SHA-1 hash of the specified code, optimization level and
+	 * whether the instructions are counted (for CPU budgets) as hex string.
+	 */
+	private static String hash(String code, int optimizationLevel, boolean observed) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			digest.update((byte) optimizationLevel);
+			digest.update((byte) (observed ? 1 : 0));
+			byte[] bytes = digest.digest(code.getBytes("UTF-8"));
+			StringBuilder buffer = new StringBuilder(2*bytes.length);
+			for (byte b:bytes) {
+				buffer.append(Character.forDigit((b >> 4) & 0xF, 16));
+				buffer.append(Character.forDigit(b & 0xF, 16));
+			}
+			return buffer.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException("SHA-1 not available", e);
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException("UTF-8 not available", e);
+		}
+	}
+
+	/**
+	 * Compiles its code lazily on first access, exactly once.
+	 */
+	private class CachedScript {
+
+		private final String hash;
+		private String code; // released after compilation
+		private final String name;
+		private Script script;
+
+		private CachedScript(String hash, String code, String name) {
+			this.hash = hash;
+			this.code = code;
+			this.name = name;
+		}
+
+		private synchronized Script get(Context cx) {
+			if (script==null) {
+				long start = System.nanoTime();
+				script = compile(cx, hash, code, name);
+				code = null;
+				LOG.info(String.format("Compiled app %s in %d ms", name, (System.nanoTime()-start)/1000000));
+			}
+			return script;
+		}
+	}
+}
@@ -0,0 +1,263 @@
+package ch.ethz.inf.vs.actinium.plugnplay;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+import org.mozilla.javascript.BaseFunction;
+import org.mozilla.javascript.ClassCache;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.ImporterTopLevel;
+import org.mozilla.javascript.NativeJavaClass;
+import org.mozilla.javascript.NativeJavaPackage;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+
+import xmlhttp.XMLHttpRequest;
+
+import ch.ethz.inf.vs.actinium.jscoap.JavaScriptCoAPRequest;
+
+/**
+ * SharedScope holds the JavaScript environment that is the same for all apps:
+ * the standard objects, the default Java packages, the classes XMLHttpRequest
+ * and JavaScriptCoAPRequest and the global functions dump and addSubResource.
+ * It is built once and then sealed, so that no app can change it.
+ * <p>
+ * The scope of an app only contains its own variables. Its prototype is the
+ * shared scope, where everything else is looked up. Assignments to a name of
+ * the shared scope create a new variable in the app's scope instead. An app
+ * that imports further packages imports them into its own scope only.
+ *
+ * @author Martin Lanter
+ */
+public final class SharedScope {
+
+	private static final Logger LOG = Logger.getLogger(SharedScope.class.getName());
+
+	// Java Packages, that are imported automatically for Rhino
+	private static final String[] DEFAULT_PACKAGES = {
+		"java.lang",
+		"java.util",
+		"java.io",
+		"java.net",
+		"java.text",
+		"ch.ethz.inf.vs.californium.coap", // Response, CodeRegistry
+		"ch.ethz.inf.vs.actinium.jscoap", // CoAPRequest
+		"ch.ethz.inf.vs.actinium.jscoap.jserror" // CoAPRequest RequestErrorException
+	};
+
+	private static volatile SharedTopLevel shared;
+
+	// prevent instantiation
+	private SharedScope() {}
+
+	/**
+	 * Returns the shared scope and builds it with the specified context if
+	 * this is the first call.
+	 *
+	 * @param cx the current context
+	 * @return the sealed shared scope
+	 */
+	public static Scriptable getInstance(Context cx) {
+		SharedTopLevel scope = shared;
+		if (scope==null) {
+			synchronized (SharedScope.class) {
+				scope = shared;
+				if (scope==null) {
+					scope = create(cx);
+					shared = scope;
+				}
+			}
+		}
+		return scope;
+	}
+
+	/**
+	 * Creates a new scope for an app. The new scope has the shared scope as
+	 * prototype and its own functions importPackage and importClass.
+	 *
+	 * @param cx the current context
+	 * @return the new scope for an app
+	 */
+	public static ScriptableObject createAppScope(Context cx) {
+		ImporterTopLevel scope = new ImporterTopLevel();
+		scope.setPrototype(getInstance(cx));
+		scope.setParentScope(null);
+
+		/*
+		 * The functions importPackage and importClass of the shared scope
+		 * would import into the shared scope. Take the ones of JavaImporter
+		 * that import into the scope they are called on.
+		 */
+		ImporterTopLevel.init(cx, scope, false);
+		Scriptable importer = (Scriptable) scope.get("JavaImporter", scope);
+		Scriptable proto = (Scriptable) importer.get("prototype", importer);
+		scope.defineProperty("importPackage", proto.get("importPackage", proto), ScriptableObject.DONTENUM);
+		scope.defineProperty("importClass", proto.get("importClass", proto), ScriptableObject.DONTENUM);
+		scope.delete("JavaImporter");
+
+		scope.cacheBuiltins();
+		return scope;
+	}
+
+	/**
+	 * Builds the shared scope
+	 */
+	private static SharedTopLevel create(Context cx) {
+		long start = System.nanoTime();
+		/*
+		 * The Java packages resolve their classes lazily and store them as
+		 * their properties. Therefore, they must not be sealed and the
+		 * standard objects are sealed separately when the scope is complete.
+		 */
+		SharedTopLevel scope = new SharedTopLevel(cx);
+
+		// add two global functions dump and addSubResource
+		String[] names = { "dump", "addSubResource"};
+		scope.defineFunctionProperties(names, JavaScriptStaticAccess.class,
+				ScriptableObject.DONTENUM);
+
+		try {
+			// Add AJAX' XMLHttpRequest to JavaScript
+			ScriptableObject.defineClass(scope, XMLHttpRequest.class, true);
+			ScriptableObject.defineClass(scope, JavaScriptCoAPRequest.class, true);
+		} catch (IllegalAccessException e) {
+			e.printStackTrace();
+		} catch (InstantiationException e) {
+			e.printStackTrace();
+		} catch (InvocationTargetException e) {
+			e.printStackTrace();
+		}
+
+		StringBuffer buffer = new StringBuffer();
+		for (String pckg:DEFAULT_PACKAGES) {
+			buffer.append("importPackage(Packages."+pckg+");");
+		}
+		cx.evaluateString(scope, buffer.toString(), "default packages", 1, null);
+
+		synchronizeClassCache(scope);
+		scope.cacheBuiltins();
+		sealStandardObjects(scope);
+		scope.sealObject();
+
+		LOG.info(String.format("Shared JavaScript scope built in %d ms", (System.nanoTime()-start)/1000000));
+		return scope;
+	}
+
+	/**
+	 * Seals all objects of the specified scope, i.e. the standard objects and
+	 * the prototypes of the constructors, but not the Java packages.
+	 */
+	private static void sealStandardObjects(ScriptableObject scope) {
+		for (Object id:scope.getAllIds()) {
+			if (!(id instanceof String)) continue;
+			Object value = scope.get((String) id, scope); // loads lazy constructors
+			if (value instanceof NativeJavaPackage || !(value instanceof ScriptableObject))
+				continue;
+			
+			ScriptableObject object = (ScriptableObject) value;
+			if (object instanceof BaseFunction) {
+				Object prototype = object.get("prototype", object);
+				if (prototype instanceof ScriptableObject)
+					((ScriptableObject) prototype).sealObject();
+			}
+			object.sealObject();
+		}
+	}
+
+	/**
+	 * Rhino caches the reflection data of Java classes per top-level scope in
+	 * unsynchronized HashMaps. Since all apps look up Java classes through the
+	 * shared scope from their own threads, the maps are replaced by
+	 * synchronized ones. If that fails, caching is disabled for the shared
+	 * scope, which is slower but safe.
+	 */
+	private static void synchronizeClassCache(ScriptableObject scope) {
+		ClassCache cache = ClassCache.get(scope);
+		try {
+			for (Field field:ClassCache.class.getDeclaredFields()) {
+				if (field.getType()==HashMap.class) {
+					field.setAccessible(true);
+					field.set(cache, new SynchronizedHashMap<Object, Object>());
+				}
+			}
+		} catch (Exception e) {
+			LOG.warning("Unable to synchronize the class cache of the shared scope. Caching disabled: "+e);
+			cache.setCachingEnabled(false);
+		}
+	}
+
+	/**
+	 * The top-level object of the shared scope. When a script looks up a class
+	 * of an imported package, Rhino stores the class to the top-level object
+	 * it has been found on. Since that is not possible after the shared scope
+	 * has been sealed, these classes are kept in a separate map.
+	 */
+	private static class SharedTopLevel extends ImporterTopLevel {
+
+		private static final long serialVersionUID = 2613564284826093542L;
+
+		private final ConcurrentHashMap<String, Object> classes = new ConcurrentHashMap<String, Object>();
+
+		private SharedTopLevel(Context cx) {
+			initStandardObjects(cx, false);
+		}
+
+		@Override
+		public boolean has(String name, Scriptable start) {
+			return classes.containsKey(name) || super.has(name, start);
+		}
+
+		@Override
+		public Object get(String name, Scriptable start) {
+			Object result = classes.get(name);
+			if (result!=null)
+				return result;
+			return super.get(name, start);
+		}
+
+		@Override
+		public void put(String name, Scriptable start, Object value) {
+			if (start==this && isSealed() && value instanceof NativeJavaClass) {
+				classes.putIfAbsent(name, value);
+			} else {
+				super.put(name, start, value);
+			}
+		}
+	}
+
+	/**
+	 * A HashMap whose accessors are synchronized.
+	 */
+	private static class SynchronizedHashMap<K, V> extends HashMap<K, V> {
+
+		private static final long serialVersionUID = -6391446432960323218L;
+
+		@Override
+		public synchronized V get(Object key) {
+			return super.get(key);
+		}
+
+		@Override
+		public synchronized V put(K key, V value) {
+			return super.put(key, value);
+		}
+
+		@Override
+		public synchronized V remove(Object key) {
+			return super.remove(key);
+		}
+
+		@Override
+		public synchronized boolean containsKey(Object key) {
+			return super.containsKey(key);
+		}
+
+		@Override
+		public synchronized void clear() {
+			super.clear();
+		}
+	}
+}
@@ -0,0 +1,193 @@
+package ch.ethz.inf.vs.actinium.plugnplay;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.mozilla.javascript.EvaluatorException;
+import org.mozilla.javascript.ScriptStackElement;
+
+import ch.ethz.inf.vs.californium.coap.CodeRegistry;
+import ch.ethz.inf.vs.californium.coap.Request;
+import ch.ethz.inf.vs.californium.endpoint.Resource;
+
+/**
+ * SlowHandlerLog logs the tasks of an app, that take longer than a threshold,
+ * e.g. a request handler or a timeout. The WorkQueue of the app begins and
+ * ends the log around every task. While JavaScript code executes, the
+ * BudgetContextFactory calls observe() regularly. When the current task
+ * exceeds the threshold, observe() captures the script stack of the task,
+ * i.e. the JavaScript lines the app is executing while it is still slow.
+ * <p>
+ * The log keeps the latest MAX_ENTRIES slow tasks. A task that is slow
+ * without executing JavaScript (e.g. blocked in a synchronous request) is
+ * logged without stack.
+ * <p>
+ * Other threads only call getEntries(), which copies the entries under
+ * their lock.
+ *
+ * @author Martin Lanter
+ */
+public class SlowHandlerLog {
+
+	public static final int MAX_ENTRIES = 100;
+	public static final int MAX_FRAMES = 20; // of a captured stack
+
+	// the log of the app the current thread is executing
+	private static final ThreadLocal<SlowHandlerLog> CURRENT = new ThreadLocal<SlowHandlerLog>();
+
+	private final String name;
+	private volatile long threshold; // ns, 0 to disable
+
+	private long taskStart; // ns
+	private ScriptStackElement[] stack; // captured in the current task or null
+
+	private final LinkedList<Entry> entries; // oldest first
+
+	/**
+	 * Constructs a new SlowHandlerLog.
+	 *
+	 * @param name the name of the app
+	 * @param threshold the duration in ms from which a task is slow or 0
+	 */
+	public SlowHandlerLog(String name, long threshold) {
+		this.name = name;
+		this.entries = new LinkedList<Entry>();
+		setThreshold(threshold);
+	}
+
+	/**
+	 * Returns the log of the app the current thread is executing or null.
+	 *
+	 * @return the current log or null
+	 */
+	public static SlowHandlerLog current() {
+		return CURRENT.get();
+	}
+
+	/**
+	 * Begins a task of the app on the current thread.
+	 */
+	public void begin() {
+		if (threshold>0) {
+			taskStart = System.nanoTime();
+			stack = null;
+			CURRENT.set(this);
+		}
+	}
+
+	/**
+	 * Called by the thread executing JavaScript code of the app regularly.
+	 * Captures the script stack, when the current task has become slow.
+	 */
+	public void observe() {
+		long t = threshold;
+		if (stack==null && t>0 && System.nanoTime() - taskStart > t) {
+			// the exception only serves to get the script stack
+			stack = new EvaluatorException("slow").getScriptStack();
+		}
+	}
+
+	/**
+	 * Ends the task of the app on the current thread and logs it, if it has
+	 * been slow.
+	 *
+	 * @param request the request the task has handled or null
+	 * @param resource the target resource of the request or null
+	 */
+	public void end(Request request, Resource resource) {
+		if (CURRENT.get()!=this)
+			return; // not begun
+		CURRENT.remove();
+		long duration = System.nanoTime() - taskStart;
+		long t = threshold;
+		if (t>0 && duration>t) {
+			String path = resource!=null ? resource.getPath() : null;
+			String method = request!=null ? CodeRegistry.toString(request.getCode()) : null;
+			add(new Entry(System.currentTimeMillis(), name, path, method, duration / 1000000, stack));
+		}
+		stack = null;
+	}
+
+	/**
+	 * Returns the logged slow tasks, oldest first.
+	 *
+	 * @return the entries
+	 */
+	public List<Entry> getEntries() {
+		synchronized (entries) {
+			return new ArrayList<Entry>(entries);
+		}
+	}
+
+	public void setThreshold(long millis) {
+		this.threshold = Math.max(0, millis) * 1000000;
+	}
+
+	private void add(Entry entry) {
+		synchronized (entries) {
+			if (entries.size()>=MAX_ENTRIES)
+				entries.removeFirst();
+			entries.addLast(entry);
+		}
+	}
+
+	/**
+	 * A slow task.
+	 */
+	public static final class Entry {
+
+		private final long time; // ms, end
+		private final String app;
+		private final String path;
+		private final String method;
+		private final long duration; // ms
+		private final String line; // the innermost script line or null
+		private final List<String> stack; // innermost first, empty if not captured
+
+		private Entry(long time, String app, String path, String method, long duration, ScriptStackElement[] frames) {
+			this.time = time;
+			this.app = app;
+			this.path = path;
+			this.method = method;
+			this.duration = duration;
+			this.stack = new ArrayList<String>();
+			if (frames!=null) {
+				for (int i=0;i<frames.length && i<MAX_FRAMES;i++) {
+					StringBuilder frame = new StringBuilder();
+					frames[i].renderJavaStyle(frame);
+					stack.add(frame.toString().trim());
+				}
+			}
+			this.line = frames!=null && frames.length>0 ? frames[0].fileName+":"+frames[0].lineNumber : null;
+		}
+
+		public long getTime() {
+			return time;
+		}
+
+		public String getApp() {
+			return app;
+		}
+
+		public String getPath() {
+			return path;
+		}
+
+		public String getMethod() {
+			return method;
+		}
+
+		public long getDuration() {
+			return duration;
+		}
+
+		public String getLine() {
+			return line;
+		}
+
+		public List<String> getStack() {
+			return stack;
+		}
+	}
+}
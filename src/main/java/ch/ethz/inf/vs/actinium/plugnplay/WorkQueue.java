@@ -1,115 +1,980 @@
 package ch.ethz.inf.vs.actinium.plugnplay;
 
-import java.util.LinkedList;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
 
+import ch.ethz.inf.vs.actinium.EventRecorder;
+import ch.ethz.inf.vs.actinium.StripedCounter;
+import ch.ethz.inf.vs.actinium.cfg.AppConfig;
+import ch.ethz.inf.vs.californium.coap.CodeRegistry;
+import ch.ethz.inf.vs.californium.coap.Option;
+import ch.ethz.inf.vs.californium.coap.OptionNumberRegistry;
 import ch.ethz.inf.vs.californium.coap.Request;
+import ch.ethz.inf.vs.californium.coap.Response;
 import ch.ethz.inf.vs.californium.endpoint.LocalResource;
 
 /**
- * Inspired by
+ * WorkQueue holds the requests and runnables of an app until the app's thread
+ * executes them one after another. Many threads (Californium's receiver
+ * threads, timers) deliver to the queue, but only one thread consumes it.
+ * <p>
+ * The queue is a lock-free multi-producer/single-consumer linked queue (see
+ * http://www.1024cores.net/home/lock-free-algorithms/queues/non-intrusive-mpsc-node-based-queue).
+ * Producers never wait for the consumer: tasks are executed outside of any
+ * lock a producer could contend for. The consumer drains the queue in batches
+ * and parks when the queue is empty.
+ * <p>
+ * The queue has a lane for each kind of task: internal tasks of the app (e.g.
+ * the memory check), responses to the app's outbound requests, requests of
+ * clients and timers (setTimeout, setInterval). Every lane is a queue of its
+ * own. The consumer takes the tasks from the lanes either in strict priority
+ * (in this order) or weighted fair, i.e. round robin with up to weight tasks
+ * from a lane in a row (see {@link AppConfig#QUEUE_SCHEDULING}). Thus, a
+ * burst of timer ticks does not delay the requests of clients and vice versa.
+ * <p>
+ * The queue is bounded by its capacity (0 for unbounded), which applies to all
+ * lanes together, except for the response lane: responses complete requests
+ * the app has already sent, their number is bounded by the requests in flight
+ * and they must not be lost. When the queue is full, the
+ * overflow policy decides what happens to a new task:
+ * <ul>
+ * <li>{@link AppConfig#OVERFLOW_REJECT}: requests are rejected with 5.03
+ * Service Unavailable and a Max-Age option as a hint when to retry,</li>
+ * <li>{@link AppConfig#OVERFLOW_DROP_OLDEST_NON}: the oldest queued
+ * non-confirmable request is dropped to make room (falls back to reject),</li>
+ * <li>{@link AppConfig#OVERFLOW_BLOCK}: the thread delivering a request waits
+ * until there is room again. Only requests block: tasks of the other lanes
+ * come from threads all apps share, e.g. the timer, which must never wait for
+ * a single app, and are dropped as with reject.</li>
+ * </ul>
+ * The queue is either executed by a thread of its own (see execute()) or
+ * scheduled on an EventLoopGroup whenever it has tasks (see schedule()). In
+ * both cases, the CPU time spent executing the tasks is accounted to the
+ * queue, i.e. to the app. So are the bytes the tasks allocate, if the queue
+ * has a HeapAccount.
+ * <p>
+ * The queue maintains gauges of its depth, high-water mark, the amount of
+ * enqueued and dequeued tasks and the age of its oldest task. Producers and
+ * the consumer update them without locking.
+ * <p>
+ * If the queue has LatencyStats, it records how long every request has waited
+ * in the queue and how long its handler took to respond (see RequestTiming).
+ * <p>
+ * Originally inspired by
  * http://www.ibm.com/developerworks/library/j-jtp0730/index.html
- * 
+ *
  * @author Martin Lanter
  */
 public class WorkQueue {
-	
-	private final PoolWorker thread;
-	private final LinkedList<Runnable> queue;
+
+	private static final Logger LOG = Logger.getLogger(WorkQueue.class.getName());
+
+	// the states of a node
+	private static final int QUEUED = 0;
+	private static final int TAKEN = 1;
+	private static final int DROPPED = 2;
+
+	// the lanes in the order of their priority
+	public static final int LANE_INTERNAL = 0;
+	public static final int LANE_RESPONSE = 1;
+	public static final int LANE_REQUEST = 2;
+	public static final int LANE_TIMER = 3;
+	public static final int LANES = 4;
+	public static final String[] LANE_NAMES = { "internal", "response", "request", "timer" };
+
+	private static final int DEFAULT_BATCH_SIZE = 16;
+	private static final int DEFAULT_MAX_AGE = 2; // seconds
+
+	private static final ThreadMXBean THREAD_BEAN = ManagementFactory.getThreadMXBean();
+
+	// the queue whose task the current thread is executing
+	private static final ThreadLocal<WorkQueue> CURRENT = new ThreadLocal<WorkQueue>();
+
+	private final String name;
+
+	private final Lane[] lanes;
+	private final AtomicInteger size; // of all lanes
+
+	private final AtomicInteger highWaterMark; // the largest size so far
+	private final StripedCounter enqueued; // tasks
+	private final StripedCounter overflowed; // tasks rejected or dropped, because the queue was full
+	private volatile long dequeued; // tasks, only written by the consumer
+
+	// the thread that currently consumes the queue or null
+	private final AtomicReference<Thread> owner;
+	// only held by consumers, never by producers. Serializes a handover
+	private final ReentrantLock consumerLock;
+	private volatile boolean parked;
+
+	// the event loops this queue is scheduled on or null
+	private volatile EventLoopGroup group;
+	// true, while the queue is in the run queue of an event loop or executed
+	private final AtomicBoolean scheduled;
+	// the task to execute before all others, e.g. the app's code
+	private volatile Runnable first;
+
+	// the thread that currently executes a task of this queue or null
+	private volatile Thread executing;
+	private volatile long cpuTime; // ns, only written by the consumer
+
+	// limits the CPU time of the tasks or null
+	private volatile CpuBudget budget;
+
+	// accounts the allocations of the tasks or null
+	private volatile HeapAccount heapAccount;
+
+	// records the latencies of the requests or null
+	private volatile LatencyStats latencyStats;
+
+	// logs the slow tasks or null
+	private volatile SlowHandlerLog slowLog;
+
+	// producers waiting for room with overflow policy "block"
+	private final Object notFull;
+	private volatile int blockedProducers;
+
+	private volatile int capacity;
+	private volatile int batchSize;
+	private volatile String overflowPolicy;
+	private volatile int overloadMaxAge;
+	private volatile boolean strictPriority; // false for weighted fair
+
+	// the lane the consumer takes from and how many more tasks it may take, only used by the consumer
+	private int currentLane;
+	private int credit;
+
+	private PoolWorker thread; // only used if started concurrently
 
 	public WorkQueue() {
 		this(null);
 	}
-	
+
 	public WorkQueue(String name) {
-		queue = new LinkedList<Runnable>();
-		if (name==null)
-			thread = new PoolWorker();
-		else
-			thread = new PoolWorker(name);
-		//thread.start();
+		this(name, 0, DEFAULT_BATCH_SIZE, AppConfig.OVERFLOW_REJECT, DEFAULT_MAX_AGE);
 	}
 
-	public void deliver(Request request, LocalResource resource) {
-		synchronized (queue) {
-			queue.addLast(new RequestDelivery(request, resource));
-			queue.notify(); // notifyAll not required
-		}
+	/**
+	 * Constructs a new WorkQueue.
+	 *
+	 * @param name the name of the queue (and its thread if started concurrently)
+	 * @param capacity the maximal amount of waiting tasks or 0 for unbounded
+	 * @param batchSize the amount of tasks executed in one batch
+	 * @param overflowPolicy what to do with new tasks if the queue is full
+	 * @param overloadMaxAge the Max-Age in seconds for rejected requests
+	 */
+	public WorkQueue(String name, int capacity, int batchSize, String overflowPolicy, int overloadMaxAge) {
+		this.name = name;
+		this.lanes = new Lane[LANES];
+		for (int i=0;i<LANES;i++)
+			lanes[i] = new Lane();
+		this.size = new AtomicInteger();
+		this.highWaterMark = new AtomicInteger();
+		this.enqueued = new StripedCounter();
+		this.overflowed = new StripedCounter();
+		this.owner = new AtomicReference<Thread>();
+		this.consumerLock = new ReentrantLock();
+		this.scheduled = new AtomicBoolean();
+		this.notFull = new Object();
+		setCapacity(capacity);
+		setBatchSize(batchSize);
+		setOverflowPolicy(overflowPolicy);
+		setOverloadMaxAge(overloadMaxAge);
 	}
-	
-	public void deliver(Runnable runnable) {
-		synchronized (queue) {
-			queue.addLast(runnable);
-			queue.notify(); // notifyAll not required
-		}
+
+	/**
+	 * Delivers the specified request for the specified resource to the queue.
+	 * If the queue is full, the overflow policy applies.
+	 *
+	 * @param request the request
+	 * @param resource the target resource
+	 * @return true, if the request has been queued
+	 */
+	public boolean deliver(Request request, LocalResource resource) {
+		return deliver(request, resource, System.nanoTime());
+	}
+
+	/**
+	 * Delivers the specified request for the specified resource to the queue,
+	 * as deliver(request, resource) does. The latencies of the request are
+	 * measured from the specified time, when the server has received it.
+	 *
+	 * @param request the request
+	 * @param resource the target resource
+	 * @param received the time in ns (System.nanoTime())
+	 * @return true, if the request has been queued
+	 */
+	public boolean deliver(Request request, LocalResource resource, long received) {
+		return offer(new Node(new RequestDelivery(request, resource, received)), LANE_REQUEST);
 	}
-	
+
+	/**
+	 * Delivers the specified runnable to the internal lane of the queue. If
+	 * the queue is full, the overflow policy applies.
+	 *
+	 * @param runnable the runnable
+	 * @return true, if the runnable has been queued
+	 */
+	public boolean deliver(Runnable runnable) {
+		return deliver(runnable, LANE_INTERNAL);
+	}
+
+	/**
+	 * Delivers the specified runnable to the specified lane of the queue, e.g.
+	 * LANE_TIMER for a timeout. If the queue is full, the overflow policy
+	 * applies.
+	 *
+	 * @param runnable the runnable
+	 * @param lane the lane
+	 * @return true, if the runnable has been queued
+	 */
+	public boolean deliver(Runnable runnable, int lane) {
+		if (lane<0 || lane>=LANES)
+			throw new IllegalArgumentException("Unknown lane "+lane);
+		return offer(new Node(runnable), lane);
+	}
+
+	/**
+	 * Returns the queue whose task the current thread is executing or null,
+	 * e.g. to deliver a callback to the app that has issued a request.
+	 *
+	 * @return the current queue or null
+	 */
+	public static WorkQueue current() {
+		return CURRENT.get();
+	}
+
 	/**
 	 * Starts the queue concurrently
 	 */
 	public void start() {
+		thread = name==null ? new PoolWorker() : new PoolWorker(name);
 		thread.start();
 	}
-	
+
 	/**
-	 * Executes the queue with the thread, that calls this method
+	 * Executes the queue with the thread, that calls this method. If another
+	 * thread is still executing the queue, it hands over after the task it is
+	 * currently executing. This method returns, when the queue is stopped, the
+	 * calling thread is interrupted while idle or another thread takes over.
 	 */
 	public void execute() {
-		thread.run();
+		execute(null);
+	}
+
+	/**
+	 * Executes the queue with the thread, that calls this method, as execute()
+	 * does, but executes the specified task before all tasks in the queue.
+	 *
+	 * @param first the task to execute first or null
+	 */
+	public void execute(Runnable first) {
+		Thread me = Thread.currentThread();
+		this.first = first;
+		group = null;
+		Thread previous = owner.getAndSet(me);
+		if (previous!=null && previous!=me)
+			LockSupport.unpark(previous);
+
+		try {
+			while (owner.get()==me) {
+				consumerLock.lock();
+				int executed;
+				try {
+					Runnable task = this.first;
+					if (task!=null && owner.get()==me) {
+						this.first = null;
+						long start = startCpuTime();
+						run(task);
+						stopCpuTime(start);
+					}
+					executed = drain(me, null);
+				} finally {
+					consumerLock.unlock();
+				}
+
+				if (executed==0) {
+					// wait for another task to execute
+					parked = true;
+					if (isEmpty() && owner.get()==me)
+						LockSupport.park(this);
+					parked = false;
+					if (Thread.interrupted())
+						break; // controlled shutdown of the executing thread
+				}
+			}
+		} finally {
+			owner.compareAndSet(me, null);
+		}
+	}
+
+	/**
+	 * Schedules the queue on the specified event loops. The specified task is
+	 * executed before all tasks in the queue. If a thread is executing the
+	 * queue, it hands over after the task it is currently executing.
+	 *
+	 * @param group the event loops
+	 * @param first the task to execute first or null
+	 */
+	public void schedule(EventLoopGroup group, Runnable first) {
+		if (group==null) throw new NullPointerException("EventLoopGroup must not be null");
+		this.first = first;
+		this.group = group;
+		Thread previous = owner.getAndSet(null);
+		if (previous!=null)
+			LockSupport.unpark(previous);
+		if (scheduled.compareAndSet(false, true))
+			group.submit(this);
+	}
+
+	/**
+	 * Executes the first task and one batch of tasks. Called by an event loop
+	 * of the specified group.
+	 */
+	void executeScheduled(EventLoopGroup from) {
+		consumerLock.lock();
+		try {
+			if (group==from) {
+				long start = startCpuTime();
+				Runnable task = first;
+				if (task!=null) {
+					first = null;
+					run(task);
+				}
+				drain(null, from);
+				stopCpuTime(start);
+			}
+		} finally {
+			consumerLock.unlock();
+			scheduled.set(false);
+		}
+
+		// reschedule at the end of the run queue, if there are tasks left
+		EventLoopGroup current = group;
+		if (current!=null && (!isEmpty() || first!=null) && scheduled.compareAndSet(false, true))
+			current.submit(this);
 	}
-	
+
+	/**
+	 * Stops the executing thread after the task it is currently executing or
+	 * removes the queue from its event loops. Queued tasks remain in the queue
+	 * until it is executed again.
+	 */
 	public void stop() {
-		thread.interrupt();
+		group = null;
+		first = null;
+		Thread current = owner.getAndSet(null);
+		if (current!=null)
+			LockSupport.unpark(current);
+		signalNotFull();
+	}
+
+	/**
+	 * Returns the CPU time in nanoseconds, that has been spent executing the
+	 * tasks of this queue, or -1 if not supported by the JVM.
+	 *
+	 * @return the CPU time in nanoseconds or -1
+	 */
+	public long getCpuTime() {
+		return THREAD_BEAN.isThreadCpuTimeSupported() ? cpuTime : -1;
+	}
+
+	/**
+	 * Returns the thread that is currently executing a task of this queue or
+	 * waiting for one, or null.
+	 *
+	 * @return the executing thread or null
+	 */
+	public Thread getExecutingThread() {
+		Thread thread = executing;
+		return thread!=null ? thread : owner.get();
+	}
+
+	/**
+	 * Returns the amount of tasks waiting in the queue.
+	 * @return the amount of tasks waiting in the queue.
+	 */
+	public int size() {
+		return size.get();
+	}
+
+	/**
+	 * Returns the amount of tasks waiting in the specified lane.
+	 *
+	 * @param lane the lane
+	 * @return the amount of tasks waiting in the lane
+	 */
+	public int size(int lane) {
+		return lanes[lane].size.get();
+	}
+
+	/**
+	 * Returns the largest amount of tasks, that have been waiting in the
+	 * queue at the same time.
+	 *
+	 * @return the high-water mark of the queue
+	 */
+	public int getHighWaterMark() {
+		return highWaterMark.get();
+	}
+
+	/**
+	 * Returns the amount of tasks, that have been added to the queue.
+	 *
+	 * @return the amount of enqueued tasks
+	 */
+	public long getEnqueued() {
+		return enqueued.sum();
+	}
+
+	/**
+	 * Returns the amount of tasks, that have been taken from the queue for
+	 * execution.
+	 *
+	 * @return the amount of dequeued tasks
+	 */
+	public long getDequeued() {
+		return dequeued;
+	}
+
+	/**
+	 * Returns the amount of tasks, that have been rejected or dropped,
+	 * because the queue was full.
+	 *
+	 * @return the amount of overflowed tasks
+	 */
+	public long getOverflowed() {
+		return overflowed.sum();
+	}
+
+	/**
+	 * Returns how long the oldest task has been waiting in the queue.
+	 *
+	 * @return the age of the oldest task in ms or 0, if the queue is empty
+	 */
+	public long getOldestAge() {
+		long now = System.nanoTime();
+		long oldest = 0;
+		for (Lane lane:lanes)
+			oldest = Math.max(oldest, lane.getOldestAge(now));
+		return oldest;
+	}
+
+	/**
+	 * Returns how long the oldest task has been waiting in the specified lane,
+	 * e.g. the oldest request in LANE_REQUEST.
+	 *
+	 * @param lane the lane
+	 * @return the age of the oldest task in ms or 0, if the lane is empty
+	 */
+	public long getOldestAge(int lane) {
+		return lanes[lane].getOldestAge(System.nanoTime());
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Returns true, if no task is waiting in the queue.
+	 * @return true, if no task is waiting in the queue.
+	 */
+	public boolean isEmpty() {
+		for (Lane lane:lanes) {
+			if (lane.head.next!=null)
+				return false;
+		}
+		return true;
+	}
+
+	public void setCapacity(int capacity) {
+		this.capacity = Math.max(0, capacity);
+		signalNotFull();
+	}
+
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize>0 ? batchSize : DEFAULT_BATCH_SIZE;
+	}
+
+	public void setOverflowPolicy(String overflowPolicy) {
+		if (AppConfig.OVERFLOW_BLOCK.equals(overflowPolicy)
+				|| AppConfig.OVERFLOW_DROP_OLDEST_NON.equals(overflowPolicy)) {
+			this.overflowPolicy = overflowPolicy;
+		} else {
+			this.overflowPolicy = AppConfig.OVERFLOW_REJECT;
+		}
+		signalNotFull();
+	}
+
+	/**
+	 * Sets how the consumer takes the tasks from the lanes: in strict
+	 * priority or weighted fair (see {@link AppConfig#QUEUE_SCHEDULING}).
+	 *
+	 * @param scheduling the scheduling
+	 */
+	public void setScheduling(String scheduling) {
+		this.strictPriority = AppConfig.SCHEDULING_PRIORITY.equals(scheduling);
+	}
+
+	/**
+	 * Sets the weights of the lanes for weighted fair scheduling from a comma
+	 * separated list in the order of the lanes, e.g. "1,1,4,1". Missing or
+	 * invalid weights are 1.
+	 *
+	 * @param weights the weights
+	 */
+	public void setWeights(String weights) {
+		String[] parts = weights!=null ? weights.split(",") : new String[0];
+		for (int i=0;i<LANES;i++) {
+			int weight = 1;
+			if (i<parts.length) {
+				try {
+					weight = Math.max(1, Integer.parseInt(parts[i].trim()));
+				} catch (NumberFormatException e) {
+					LOG.warning("Invalid weight "+parts[i]+" for the lane "+LANE_NAMES[i]+" of "+name);
+				}
+			}
+			lanes[i].weight = weight;
+		}
+	}
+
+	public void setOverloadMaxAge(int overloadMaxAge) {
+		this.overloadMaxAge = overloadMaxAge>=0 ? overloadMaxAge : DEFAULT_MAX_AGE;
+	}
+
+	public void setCpuBudget(CpuBudget budget) {
+		this.budget = budget;
+	}
+
+	public void setHeapAccount(HeapAccount heapAccount) {
+		this.heapAccount = heapAccount;
+	}
+
+	public void setLatencyStats(LatencyStats latencyStats) {
+		this.latencyStats = latencyStats;
+	}
+
+	public void setSlowHandlerLog(SlowHandlerLog slowLog) {
+		this.slowLog = slowLog;
+	}
+
+	/*
+	 * Reserves a slot (applying the overflow policy if there is none), links
+	 * the node and wakes up the consumer if necessary.
+	 */
+	private boolean offer(Node node, int lane) {
+		if (lane==LANE_RESPONSE) {
+			// not bounded by the capacity
+			updateHighWaterMark(size.incrementAndGet());
+		} else {
+			while (true) {
+				int cap = capacity;
+				int s = size.get();
+				if (cap==0 || s<cap) {
+					if (size.compareAndSet(s, s+1)) {
+						updateHighWaterMark(s+1);
+						break;
+					}
+				} else if (!handleOverflow(node, lane)) {
+					return false;
+				}
+			}
+		}
+
+		enqueued.increment();
+		Lane l = lanes[lane];
+		l.size.incrementAndGet();
+		Node prev = l.tail.getAndSet(node);
+		prev.next = node; // volatile write, pairs with the read of parked
+
+		if (parked) {
+			Thread consumer = owner.get();
+			if (consumer!=null)
+				LockSupport.unpark(consumer);
+		}
+
+		EventLoopGroup loops = group;
+		if (loops!=null && scheduled.compareAndSet(false, true))
+			loops.submit(this);
+		return true;
+	}
+
+	private void updateHighWaterMark(int s) {
+		int mark = highWaterMark.get();
+		while (s>mark && !highWaterMark.compareAndSet(mark, s))
+			mark = highWaterMark.get();
+	}
+
+	/*
+	 * Returns true, if the caller should try again to reserve a slot. Only
+	 * requests block, the other lanes are delivered by shared threads.
+	 */
+	private boolean handleOverflow(Node node, int lane) {
+		String policy = overflowPolicy;
+		if (AppConfig.OVERFLOW_BLOCK.equals(policy) && lane==LANE_REQUEST) {
+			return awaitNotFull();
+		} else if (AppConfig.OVERFLOW_DROP_OLDEST_NON.equals(policy) && dropOldestNON()) {
+			return true;
+		} else {
+			reject(node.task);
+			return false;
+		}
+	}
+
+	/*
+	 * Waits until a slot is free. Returns false, if the waiting thread has
+	 * been interrupted and the task is dropped.
+	 */
+	private boolean awaitNotFull() {
+		synchronized (notFull) {
+			blockedProducers++;
+			try {
+				while (capacity>0 && size.get()>=capacity && AppConfig.OVERFLOW_BLOCK.equals(overflowPolicy)) {
+					notFull.wait(100);
+				}
+				return true;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				LOG.warning("Interrupted while waiting for room in the work queue "+name+". Task dropped.");
+				return false;
+			} finally {
+				blockedProducers--;
+			}
+		}
+	}
+
+	private void signalNotFull() {
+		if (blockedProducers>0) {
+			synchronized (notFull) {
+				notFull.notifyAll();
+			}
+		}
+	}
+
+	/*
+	 * Scans the request lane from the head for the oldest non-confirmable
+	 * request that has not been taken yet and drops it. Coalesced requests
+	 * stand in for others, which would never be responded, and are skipped.
+	 */
+	private boolean dropOldestNON() {
+		Lane lane = lanes[LANE_REQUEST];
+		for (Node n = lane.head.next; n!=null; n = n.next) {
+			// read the task once, the consumer or another producer may clear it
+			Runnable task = n.task;
+			if (task instanceof RequestDelivery
+					&& ((RequestDelivery) task).request.isNonConfirmable()
+					&& !RequestCoalescer.isCoalesced(((RequestDelivery) task).request)
+					&& n.casState(QUEUED, DROPPED)) {
+				size.decrementAndGet();
+				lane.size.decrementAndGet();
+				overflowed.increment();
+				n.task = null; // release the request right away
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/*
+	 * Rejects the specified task. A request is responded with 5.03 Service
+	 * Unavailable and the Max-Age option to tell the client when to retry.
+	 */
+	private void reject(Runnable task) {
+		overflowed.increment();
+		if (task instanceof RequestDelivery) {
+			RequestDelivery delivery = (RequestDelivery) task;
+			delivery.rejected(CodeRegistry.RESP_SERVICE_UNAVAILABLE);
+			reject(delivery.request, null, "Work queue of "+name+" is full", overloadMaxAge);
+		} else {
+			LOG.warning("Work queue "+name+" is full. Task "+task+" dropped.");
+		}
+	}
+
+	/**
+	 * Responds to the specified request with 5.03 Service Unavailable and the
+	 * Max-Age option to tell the client when to retry, e.g. if the request
+	 * is not admitted to the queue. The response is counted in the
+	 * LatencyStats of the app and of the specified resource.
+	 *
+	 * @param request the request
+	 * @param resource the target resource or null, if not to be counted
+	 * @param reason the payload of the response
+	 */
+	public void reject(Request request, LocalResource resource, String reason) {
+		reject(request, resource, reason, overloadMaxAge);
+	}
+
+	/**
+	 * Responds to the specified request with 5.03 Service Unavailable and the
+	 * specified Max-Age option, as reject(request, resource, reason) does.
+	 *
+	 * @param request the request
+	 * @param resource the target resource or null, if not to be counted
+	 * @param reason the payload of the response
+	 * @param maxAge the Max-Age in seconds
+	 */
+	public void reject(Request request, LocalResource resource, String reason, int maxAge) {
+		LatencyStats stats = latencyStats;
+		if (stats!=null && resource!=null)
+			stats.recordResponse(resource, CodeRegistry.RESP_SERVICE_UNAVAILABLE);
+		Response response = new Response(CodeRegistry.RESP_SERVICE_UNAVAILABLE);
+		response.setOption(new Option(maxAge, OptionNumberRegistry.MAX_AGE));
+		response.setPayload(reason);
+		request.respond(response);
+	}
+
+	/*
+	 * Executes up to one batch of tasks, as long as the specified thread or
+	 * event loops are the consumer. Must hold the consumerLock.
+	 */
+	private int drain(Thread me, EventLoopGroup loops) {
+		int executed = 0;
+		int max = batchSize;
+		long start = me!=null ? startCpuTime() : 0;
+		while (executed<max && (me!=null ? owner.get()==me : group==loops)) {
+			Runnable task = poll();
+			if (task==null) break;
+			size.decrementAndGet();
+			dequeued++;
+			signalNotFull();
+			run(task);
+			executed++;
+		}
+		if (me!=null && executed>0)
+			stopCpuTime(start);
+		return executed;
+	}
+
+	/*
+	 * Takes the next task from the lanes, in strict priority or weighted
+	 * fair. Returns null, if all lanes are empty. Must hold the consumerLock.
+	 */
+	private Runnable poll() {
+		if (strictPriority) {
+			for (Lane lane:lanes) {
+				Runnable task = lane.poll();
+				if (task!=null)
+					return task;
+			}
+			return null;
+		}
+		// visit every lane at most once after the current one
+		for (int i=0;i<=LANES;i++) {
+			if (credit>0) {
+				Runnable task = lanes[currentLane].poll();
+				if (task!=null) {
+					credit--;
+					return task;
+				}
+			}
+			currentLane = (currentLane + 1) % LANES;
+			credit = lanes[currentLane].weight;
+		}
+		return null;
+	}
+
+	private void run(Runnable task) {
+		long start = EventRecorder.begin();
+		executing = Thread.currentThread();
+		CURRENT.set(this);
+		CpuBudget b = budget;
+		HeapAccount h = heapAccount;
+		SlowHandlerLog s = slowLog;
+		if (h!=null) h.begin();
+		if (s!=null) s.begin();
+		try {
+			if (b!=null) b.begin();
+			task.run();
+		} catch (CpuBudget.BudgetExceededError e) {
+			abort(task, b, e);
+		} catch (RuntimeException e) {
+			// the consuming thread must not stop
+			e.printStackTrace();
+		} finally {
+			if (b!=null) b.end();
+			if (h!=null) h.end();
+			if (s!=null) {
+				if (task instanceof RequestDelivery) {
+					s.end(((RequestDelivery) task).request, ((RequestDelivery) task).resource);
+				} else {
+					s.end(null, null);
+				}
+			}
+			executing = null;
+			CURRENT.remove();
+			if (start!=0)
+				recordTask(task, b, start);
+		}
+	}
+
+	/*
+	 * Records the execution of the specified task as an event.
+	 */
+	private void recordTask(Runnable task, CpuBudget b, long start) {
+		String app = b!=null ? b.getName() : name;
+		if (task instanceof RequestDelivery) {
+			RequestDelivery delivery = (RequestDelivery) task;
+			EventRecorder.commit(EventRecorder.TASK, start, app, delivery.resource.getPath(), delivery.request);
+		} else {
+			EventRecorder.commit(EventRecorder.TASK, start, app, null, null, 0);
+		}
 	}
 
 	/*
-	 * The handler for the requests of the queue
+	 * Aborts the specified task, that has exceeded the CPU budget. A request
+	 * is responded with 5.03 Service Unavailable and the Max-Age option to
+	 * tell the client when to retry.
+	 */
+	private void abort(Runnable task, CpuBudget b, CpuBudget.BudgetExceededError e) {
+		if (b!=null) b.onAborted();
+		LOG.warning("Task of "+name+" aborted: "+e.getMessage());
+		if (task instanceof RequestDelivery) {
+			Request request = ((RequestDelivery) task).request;
+			int maxAge = Math.max(e.getRetryAfter(), overloadMaxAge);
+			Response response = new Response(CodeRegistry.RESP_SERVICE_UNAVAILABLE);
+			response.setOption(new Option(maxAge, OptionNumberRegistry.MAX_AGE));
+			response.setPayload(e.getMessage());
+			request.respond(response);
+			((RequestDelivery) task).responded(CodeRegistry.RESP_SERVICE_UNAVAILABLE);
+		}
+	}
+
+	private static long startCpuTime() {
+		return THREAD_BEAN.isCurrentThreadCpuTimeSupported() ? THREAD_BEAN.getCurrentThreadCpuTime() : 0;
+	}
+
+	// Must hold the consumerLock.
+	private void stopCpuTime(long start) {
+		if (THREAD_BEAN.isCurrentThreadCpuTimeSupported())
+			cpuTime += THREAD_BEAN.getCurrentThreadCpuTime() - start;
+	}
+
+	/*
+	 * A node of the linked queue
+	 */
+	private static final class Node {
+
+		private static final AtomicIntegerFieldUpdater<Node> STATE =
+				AtomicIntegerFieldUpdater.newUpdater(Node.class, "state");
+
+		private volatile Node next;
+		private volatile Runnable task;
+		private volatile int state; // QUEUED, TAKEN or DROPPED
+		private final long enqueued; // ns
+
+		private Node(Runnable task) {
+			this.task = task;
+			this.enqueued = System.nanoTime();
+		}
+
+		private boolean casState(int expect, int update) {
+			return STATE.compareAndSet(this, expect, update);
+		}
+	}
+
+	/*
+	 * A lane is a linked queue of its own. Many producers swing its tail, only
+	 * the consumer advances its head.
+	 */
+	private static final class Lane {
+
+		private volatile Node head; // only advanced by the consumer
+		private final AtomicReference<Node> tail; // swung by the producers
+		private final AtomicInteger size;
+		private volatile int weight; // tasks in a row, if weighted fair
+
+		private Lane() {
+			this.head = new Node(null);
+			this.tail = new AtomicReference<Node>(head);
+			this.size = new AtomicInteger();
+			this.weight = 1;
+		}
+
+		/*
+		 * Takes the next task, that has not been dropped, or returns null, if
+		 * the lane is empty. Must hold the consumerLock.
+		 */
+		private Runnable poll() {
+			while (true) {
+				Node next = head.next;
+				if (next==null)
+					return null;
+				Runnable task = next.task;
+				next.task = null; // the new head becomes the stub, don't leak the task
+				head = next;
+				if (next.casState(QUEUED, TAKEN)) {
+					size.decrementAndGet();
+					return task;
+				}
+			}
+		}
+
+		/*
+		 * Returns the age in ms of the oldest task, that has not been dropped,
+		 * or 0, if the lane is empty. Any thread may call this method.
+		 */
+		private long getOldestAge(long now) {
+			Node n = head.next;
+			while (n!=null && n.state==DROPPED)
+				n = n.next;
+			return n!=null ? (now - n.enqueued) / 1000000L : 0;
+		}
+	}
+
+	/*
+	 * The handler for the requests of the queue if started concurrently
 	 */
 	private class PoolWorker extends Thread {
-		
+
 		private PoolWorker() {
 			super();
 		}
-		
+
 		private PoolWorker(String name) {
 			super(name);
 		}
-		
+
 		public void run() {
-			Runnable r;
-			while (true) {
-				// wait for another task to execute
-				synchronized (queue) {
-					while (queue.isEmpty()) {
-						try {
-							queue.wait();
-						} catch (InterruptedException ignored) { }
-					}
-					r = queue.removeFirst();
-					r.run();
-				}
-			}
+			execute();
 		}
 	}
-	
-	private class RequestDelivery implements Runnable {
-		
+
+	/*
+	 * The delivery is the timing of its request as well, so that timing a
+	 * request does not need another object.
+	 */
+	private class RequestDelivery extends RequestTiming implements Runnable {
+
 		private Request request;
 		private LocalResource resource;
-		
-		private RequestDelivery(Request request, LocalResource resource) {
+
+		private RequestDelivery(Request request, LocalResource resource, long received) {
+			super(latencyStats, resource, received);
 			this.request = request;
 			this.resource = resource;
 		}
-		
+
 		public void run() {
 			/*
 			 * Calls performXXX Method. If an exception occurs it must be
 			 * caught, to ensure, the thread doesn't stop.
 			 */
+			dequeued();
 			try {
 				request.dispatch(resource);
+				Response response = request.getResponse();
+				if (response!=null)
+					responded(response.getCode()); // if not already recorded by the handler
 			} catch (Exception e) {
 				e.printStackTrace();
+			} finally {
+				handled();
 			}
 		}
 	}
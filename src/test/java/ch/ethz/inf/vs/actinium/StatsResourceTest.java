@@ -0,0 +1,135 @@
+package ch.ethz.inf.vs.actinium;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ch.ethz.inf.vs.actinium.StatsResource.ResourceInfo;
+import ch.ethz.inf.vs.actinium.cfg.Config;
+import ch.ethz.inf.vs.californium.coap.GETRequest;
+import ch.ethz.inf.vs.californium.coap.POSTRequest;
+import ch.ethz.inf.vs.californium.coap.Request;
+import ch.ethz.inf.vs.californium.endpoint.LocalResource;
+
+/**
+ * Tests that StatsResource.record() counts every request exactly, when many
+ * threads record requests to the same resource concurrently, including the
+ * first ones, which race to create the information about the resource.
+ *
+ * @author Martin Lanter
+ */
+public class StatsResourceTest {
+
+	public static final String APP = "test";
+	public static final int THREADS = 8;
+	public static final int REQUESTS = 100000; // per thread
+
+	private File dir;
+	private StatsResource stats;
+	private LocalResource resource;
+
+	@Before
+	public void setup() throws IOException {
+		dir = File.createTempFile("actinium-test", "");
+		if (!dir.delete() || !dir.mkdir())
+			throw new IOException("Unable to create directory "+dir);
+		Config config = new Config(new File(dir, "config.cfg").getPath());
+		config.setProperty(Config.APP_PATH, mkdir(dir, "installed"));
+		config.setProperty(Config.APP_CONFIG_PATH, mkdir(dir, "apps"));
+		config.setProperty(Config.SCRIPT_CACHE_PATH, mkdir(dir, "compiled"));
+		config.setProperty(Config.STATS_HISTORY_PATH, mkdir(dir, "history"));
+
+		AppManager manager = new AppManager(config);
+		AppResource apps = new AppResource(manager);
+		stats = new StatsResource(config, manager);
+		stats.oninstallApp(APP);
+
+		// /apps/running/test/res
+		LocalResource app = new LocalResource(APP);
+		apps.getResource(config.getProperty(Config.RUNNING_RESOURCE_ID)).add(app);
+		resource = new LocalResource("res");
+		app.add(resource);
+	}
+
+	@After
+	public void tearDown() {
+		stats.stop(); // before the sampler recreates the history in dir
+		delete(dir);
+	}
+
+	@Test
+	public void testRecord() {
+		stats.record(new GETRequest(), resource);
+		stats.record(post(), resource);
+
+		ResourceInfo info = stats.getResourceInfo(resource);
+		assertEquals(1, info.getreqcount.sum());
+		assertEquals(1, info.postreqcount.sum());
+		assertEquals(2, info.requests.getCount());
+		assertEquals(3, info.payloadsum.sum());
+	}
+
+	@Test
+	public void testConcurrentRecord() throws Exception {
+		final Request get = new GETRequest();
+		final Request post = post();
+		StripedCounterTest.run(THREADS, new Runnable() {
+			public void run() {
+				for (int i=0;i<REQUESTS;i++)
+					stats.record(i % 2 == 0 ? get : post, resource);
+			}
+		});
+
+		long expected = (long) THREADS * REQUESTS;
+		ResourceInfo info = stats.getResourceInfo(resource);
+		assertEquals(expected / 2, info.getreqcount.sum());
+		assertEquals(expected / 2, info.postreqcount.sum());
+		assertEquals(0, info.putreqcount.sum());
+		assertEquals(0, info.deletereqcount.sum());
+		assertEquals(expected, info.requests.getCount());
+		assertEquals(expected / 2 * 3, info.payloadsum.sum());
+	}
+
+	@Test
+	public void testConcurrentResourceInfo() throws Exception {
+		final ResourceInfo[] infos = new ResourceInfo[THREADS];
+		final int[] next = new int[1];
+		StripedCounterTest.run(THREADS, new Runnable() {
+			public void run() {
+				ResourceInfo info = stats.getResourceInfo(resource);
+				synchronized (infos) {
+					infos[next[0]++] = info;
+				}
+			}
+		});
+		for (ResourceInfo info:infos)
+			assertSame(infos[0], info);
+	}
+
+	private static Request post() {
+		Request post = new POSTRequest();
+		post.setPayload(new byte[3]);
+		return post;
+	}
+
+	private static String mkdir(File parent, String name) {
+		File dir = new File(parent, name);
+		dir.mkdirs();
+		return dir.getPath()+File.separator;
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children!=null) {
+			for (File child:children)
+				delete(child);
+		}
+		file.delete();
+	}
+}
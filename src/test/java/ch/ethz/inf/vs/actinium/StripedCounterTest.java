@@ -0,0 +1,98 @@
+package ch.ethz.inf.vs.actinium;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+/**
+ * Tests that StripedCounter loses no increments, when many threads count
+ * concurrently and its cells grow, and that it counts beyond 32 bits.
+ *
+ * @author Martin Lanter
+ */
+public class StripedCounterTest {
+
+	public static final int THREADS = 8;
+	public static final int INCREMENTS = 1000000; // per thread
+
+	@Test
+	public void testIncrement() {
+		StripedCounter counter = new StripedCounter();
+		for (int i=0;i<1000;i++)
+			counter.increment();
+		assertEquals(1000, counter.sum());
+	}
+
+	@Test
+	public void testConcurrentIncrements() throws Exception {
+		final StripedCounter counter = new StripedCounter();
+		run(THREADS, new Runnable() {
+			public void run() {
+				for (int i=0;i<INCREMENTS;i++)
+					counter.increment();
+			}
+		});
+		assertEquals((long) THREADS * INCREMENTS, counter.sum());
+	}
+
+	@Test
+	public void testConcurrentAddsBeyond32Bits() throws Exception {
+		// 8 threads add 2^31 a thousand times each: 2^44 in total
+		final long value = 1L << 31;
+		final int adds = 1000;
+		final StripedCounter counter = new StripedCounter();
+		run(THREADS, new Runnable() {
+			public void run() {
+				for (int i=0;i<adds;i++)
+					counter.add(value);
+			}
+		});
+		assertEquals(THREADS * adds * value, counter.sum());
+	}
+
+	@Test
+	public void testReset() throws Exception {
+		final StripedCounter counter = new StripedCounter();
+		run(THREADS, new Runnable() {
+			public void run() {
+				for (int i=0;i<1000;i++)
+					counter.increment();
+			}
+		});
+		counter.reset();
+		assertEquals(0, counter.sum());
+		counter.add(-5);
+		assertEquals(-5, counter.sum());
+	}
+
+	/**
+	 * Runs the specified runnable on the specified number of threads, which
+	 * all start at once, and waits until they have finished.
+	 *
+	 * @param threads the number of threads
+	 * @param runnable the runnable
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	static void run(int threads, final Runnable runnable) throws InterruptedException {
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] workers = new Thread[threads];
+		for (int i=0;i<threads;i++) {
+			workers[i] = new Thread() {
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					runnable.run();
+				}
+			};
+			workers[i].start();
+		}
+		start.countDown();
+		for (Thread worker:workers)
+			worker.join();
+	}
+}